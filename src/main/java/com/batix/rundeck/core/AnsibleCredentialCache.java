@@ -0,0 +1,236 @@
+package com.batix.rundeck.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import com.dtolabs.rundeck.core.storage.StorageTree;
+
+import org.rundeck.storage.api.PathUtil;
+import org.rundeck.storage.api.StorageException;
+
+/**
+ * Caches the secrets read from key storage for the steps and nodes of an execution.
+ *
+ * Secrets are cached per execution and per storage tree, so they are only ever handed out with the
+ * same authorization they were read with. They are kept as byte arrays, which are wiped once the
+ * execution hasn't used them for {@link #IDLE_TIMEOUT} seconds, plugins aren't told when an execution ends.
+ * This only covers the cached copies, see {@link #get(ExecutionContext, String)}.
+ *
+ * Reads run on a few threads of their own, a slow storage backend doesn't hold up the threads draining
+ * the output of running jobs.
+ */
+public class AnsibleCredentialCache {
+
+    static final int IDLE_TIMEOUT = 60;
+
+    // most concurrent reads from key storage, for all executions together
+    private static final int READERS = 4;
+
+    private static final ThreadPoolExecutor readers = new ThreadPoolExecutor(READERS, READERS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ansible-key-storage-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        readers.allowCoreThreadTimeOut(true);
+    }
+
+    private static class ScopeKey {
+        final StorageTree tree;
+        final String execution;
+
+        ScopeKey(StorageTree tree, String execution) {
+            this.tree = tree;
+            this.execution = execution;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ScopeKey)) {
+                return false;
+            }
+            ScopeKey other = (ScopeKey) o;
+            return tree == other.tree
+                    && (execution == null ? other.execution == null : execution.equals(other.execution));
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(tree) * 31 + (execution == null ? 0 : execution.hashCode());
+        }
+    }
+
+    private static class Scope {
+        // storage path -> secret, concurrent readers of a path wait for a single read
+        final ConcurrentMap<String, FutureTask<byte[]>> secrets = new ConcurrentHashMap<>();
+        volatile long lastUsed = System.currentTimeMillis();
+        boolean prefetched = false;
+
+        void wipe() {
+            for (FutureTask<byte[]> secret : secrets.values()) {
+                if (secret.isDone()) {
+                    try {
+                        Arrays.fill(secret.get(), (byte) 0);
+                    } catch (InterruptedException | ExecutionException e) {
+                        // nothing was read
+                    }
+                }
+            }
+            secrets.clear();
+        }
+    }
+
+    private static final Map<ScopeKey, Scope> scopes = new HashMap<>();
+    private static boolean reaperScheduled = false;
+
+    /**
+     * Read a secret from key storage, or from the cache if the execution read it before.
+     * @return a copy of the secret, the caller should wipe it once it's used, anything made of it
+     *         (like a String for the runner) is out of reach of the cache and stays until it's collected
+     */
+    public static byte[] get(ExecutionContext context, String storagePath) throws IOException, StorageException {
+        Scope scope = getScope(context);
+        FutureTask<byte[]> secret = load(scope, context.getStorageTree(), storagePath);
+        // still queued behind other prefetches, read it right away, the queued run then does nothing
+        secret.run();
+        try {
+            return secret.get().clone();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading " + storagePath, e);
+        } catch (ExecutionException e) {
+            // not cached, the next run tries again
+            scope.secrets.remove(storagePath, secret);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return true the first time it's called for the execution, which should then prefetch its secrets
+     */
+    public static boolean startPrefetch(ExecutionContext context) {
+        Scope scope = getScope(context);
+        synchronized (scope) {
+            if (scope.prefetched) {
+                return false;
+            }
+            scope.prefetched = true;
+            return true;
+        }
+    }
+
+    /**
+     * Start reading secrets the execution is going to need.
+     * The reads run in the background, later lookups wait for them.
+     */
+    public static void prefetch(ExecutionContext context, Collection<String> storagePaths) {
+        Scope scope = getScope(context);
+        StorageTree tree = context.getStorageTree();
+        for (String storagePath : storagePaths) {
+            if (!scope.secrets.containsKey(storagePath)) {
+                load(scope, tree, storagePath);
+            }
+        }
+    }
+
+    private static FutureTask<byte[]> load(final Scope scope, final StorageTree tree, final String storagePath) {
+        FutureTask<byte[]> secret = scope.secrets.get(storagePath);
+        if (secret != null) {
+            return secret;
+        }
+        secret = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                ResourceMeta contents = tree.getResource(PathUtil.asPath(storagePath)).getContents();
+                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                contents.writeContent(byteArrayOutputStream);
+                return byteArrayOutputStream.toByteArray();
+            }
+        });
+        FutureTask<byte[]> existing = scope.secrets.putIfAbsent(storagePath, secret);
+        if (existing != null) {
+            return existing;
+        }
+        readers.execute(secret);
+        return secret;
+    }
+
+    private static Scope getScope(ExecutionContext context) {
+        String execution = null;
+        if (context.getDataContext() != null && context.getDataContext().get("job") != null) {
+            execution = context.getDataContext().get("job").get("execid");
+        }
+        ScopeKey key = new ScopeKey(context.getStorageTree(), execution);
+        synchronized (scopes) {
+            Scope scope = scopes.get(key);
+            if (scope == null) {
+                scope = new Scope();
+                scopes.put(key, scope);
+                scheduleReaper();
+            }
+            scope.lastUsed = System.currentTimeMillis();
+            return scope;
+        }
+    }
+
+    // guarded by scopes
+    private static void scheduleReaper() {
+        if (reaperScheduled) {
+            return;
+        }
+        reaperScheduled = true;
+        AnsibleProcessReactor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(IDLE_TIMEOUT);
+                synchronized (scopes) {
+                    for (Iterator<Scope> it = scopes.values().iterator(); it.hasNext(); ) {
+                        Scope scope = it.next();
+                        if (scope.lastUsed < idleSince) {
+                            it.remove();
+                            scope.wipe();
+                        }
+                    }
+                    reaperScheduled = false;
+                    if (!scopes.isEmpty()) {
+                        scheduleReaper();
+                    }
+                }
+            }
+        }, IDLE_TIMEOUT / 2, TimeUnit.SECONDS);
+    }
+}
@@ -83,6 +83,42 @@ public interface AnsibleDescribable extends Describable {
     	}
     }
 
+    /**
+     * What to do with Ansible output while the output buffer is full.
+     */
+    public static enum OutputOverflow {
+        block("block"),
+        dropDebug("drop-debug"),
+        summarize("summarize");
+
+        private final String value;
+
+        OutputOverflow(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public static OutputOverflow fromValue(String value) {
+            for (OutputOverflow s : OutputOverflow.values()) {
+                if (s.value.equals(value)) {
+                    return s;
+                }
+            }
+            throw new IllegalArgumentException("Unknown output overflow policy: " + value);
+        }
+
+        public static String[] getValues() {
+            java.util.LinkedList<String> list = new LinkedList<String>();
+            for (OutputOverflow s : OutputOverflow.values()) {
+                list.add(s.value);
+            }
+            return list.toArray(new String[list.size()]);
+        }
+    }
+
     public static final String SERVICE_PROVIDER_TYPE = "ansible-service";
     public static final String ANSIBLE_PLAYBOOK_PATH = "ansible-playbook";
     public static final String ANSIBLE_PLAYBOOK_INLINE = "ansible-playbook-inline";
@@ -142,6 +178,36 @@ public interface AnsibleDescribable extends Describable {
     public static final String ANSIBLE_CONFIG_FILE_PATH = "ansible-config-file-path";
     public static final String ANSIBLE_BASE_DIR_PATH = "ansible-base-dir-path";
 
+    // worker pool configuration
+    public static final String ANSIBLE_WORKER_POOL = "ansible-worker-pool";
+    public static final String ANSIBLE_WORKER_POOL_SIZE = "ansible-worker-pool-size";
+    public static final String ANSIBLE_WORKER_MAX_TASKS = "ansible-worker-max-tasks";
+    public static final String ANSIBLE_WORKER_PYTHON = "ansible-worker-python";
+    public static final String DEFAULT_ANSIBLE_WORKER_POOL_SIZE = "4";
+    public static final String DEFAULT_ANSIBLE_WORKER_MAX_TASKS = "100";
+    public static final String DEFAULT_ANSIBLE_WORKER_PYTHON = "python";
+    public static final String ANSIBLE_BATCH_WINDOW = "ansible-batch-window";
+    public static final String ANSIBLE_STRUCTURED_RESULTS = "ansible-structured-results";
+    public static final String ANSIBLE_NODE_CACHE_TTL = "ansible-node-cache-ttl";
+    public static final String ANSIBLE_FACTS_MAX_AGE = "ansible-facts-max-age";
+    public static final String ANSIBLE_FACT_CACHE_PATH = "ansible-fact-cache-path";
+    public static final String ANSIBLE_ATTRIBUTE_MAPPING = "ansible-attribute-mapping";
+    public static final String ANSIBLE_PARSE_THREADS = "ansible-parse-threads";
+    public static final String ANSIBLE_INVENTORY_PER_NODE = "ansible-inventory-per-node";
+    public static final String ANSIBLE_INVENTORY_SCRIPT = "ansible-inventory-script";
+    public static final String ANSIBLE_INVENTORY_GROUP_BY = "ansible-inventory-group-by";
+    public static final String ANSIBLE_OUTPUT_BUFFER = "ansible-output-buffer";
+    public static final String ANSIBLE_OUTPUT_OVERFLOW = "ansible-output-overflow";
+    public static final String ANSIBLE_RAW_OUTPUT = "ansible-raw-output";
+    public static final String ANSIBLE_SSH_CONTROL_PERSIST = "ansible-ssh-control-persist";
+    public static final String ANSIBLE_SSH_CONTROL_MAX = "ansible-ssh-control-max";
+    public static final String DEFAULT_ANSIBLE_SSH_CONTROL_MAX = "64";
+    public static final String ANSIBLE_SSH_AGENT_TTL = "ansible-ssh-agent-ttl";
+    public static final String DEFAULT_ANSIBLE_SSH_AGENT_TTL = "300";
+    public static final String ANSIBLE_SECRET_PIPES = "ansible-secret-pipes";
+    public static final String ANSIBLE_WORKSPACE_SLOTS = "ansible-workspace-slots";
+    public static final String ANSIBLE_WORKSPACE_QUOTA = "ansible-workspace-quota";
+
     public static final String PROJ_PROP_PREFIX = "project.";
     public static final String FWK_PROP_PREFIX = "framework.";
 
@@ -232,6 +298,47 @@ public interface AnsibleDescribable extends Describable {
               "true"
     );
 
+    public static Property NODE_CACHE_TTL_PROP = PropertyUtil.integer(
+              ANSIBLE_NODE_CACHE_TTL,
+              "Node Cache TTL",
+              "Seconds to keep the imported nodes, they are refreshed in the background after that. 0 imports on every request.",
+              false,
+              "0"
+    );
+
+    public static Property FACTS_MAX_AGE_PROP = PropertyUtil.integer(
+              ANSIBLE_FACTS_MAX_AGE,
+              "Facts Max Age",
+              "Seconds to keep the gathered facts of a host, only hosts with older or no facts are gathered again. 0 gathers facts for all hosts every time.",
+              false,
+              "0"
+    );
+
+    public static Property FACT_CACHE_PATH_PROP = PropertyUtil.string(
+              ANSIBLE_FACT_CACHE_PATH,
+              "Fact Cache Path",
+              "Read facts from this jsonfile fact cache directory (fact_caching_connection) instead of gathering them. Hosts and variables come from ansible-inventory, no host is contacted.",
+              false,
+              ""
+    );
+
+    public static Property ATTRIBUTE_MAPPING_PROP = PropertyBuilder.builder()
+            .string(ANSIBLE_ATTRIBUTE_MAPPING)
+            .required(false)
+            .title("Attribute Mapping")
+            .description("Additional facts to import as node attributes, one 'path -> attribute' per line, e.g. 'ansible_default_ipv4.address -> ip'. "
+                + "Paths are dotted or JSONPath-like ($.ansible_processor[0]), mapping a default path to nothing leaves it out.")
+            .renderingOption(StringRenderingConstants.DISPLAY_TYPE_KEY, StringRenderingConstants.DisplayType.MULTI_LINE)
+            .build();
+
+    public static Property PARSE_THREADS_PROP = PropertyUtil.integer(
+              ANSIBLE_PARSE_THREADS,
+              "Fact Parser Threads",
+              "Threads reading stored or cached fact files in parallel. 0 uses one per processor, 1 reads them one after the other.",
+              false,
+              "0"
+    );
+
     public static Property LIMIT_PROP = PropertyUtil.string(
               ANSIBLE_LIMIT,
               "Limit Targets",
@@ -476,4 +583,150 @@ public interface AnsibleDescribable extends Describable {
             .title("Ansible config file path")
             .description("Set ansible config file path.")
             .build();
+
+    static final Property WORKER_POOL_PROP = PropertyBuilder.builder()
+            .booleanType(ANSIBLE_WORKER_POOL)
+            .required(false)
+            .title("Use worker pool")
+            .description("Run commands on a pool of warm Ansible processes instead of starting a new one for every command.")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"Worker Pool")
+            .build();
+
+    static final Property WORKER_POOL_SIZE_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_WORKER_POOL_SIZE)
+            .required(false)
+            .title("Worker pool size")
+            .description("Maximum number of Ansible workers per project (default=" + DEFAULT_ANSIBLE_WORKER_POOL_SIZE + ").")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"Worker Pool")
+            .build();
+
+    static final Property WORKER_MAX_TASKS_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_WORKER_MAX_TASKS)
+            .required(false)
+            .title("Worker max tasks")
+            .description("Number of commands after which a worker is replaced by a fresh one (default=" + DEFAULT_ANSIBLE_WORKER_MAX_TASKS + ").")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"Worker Pool")
+            .build();
+
+    static final Property WORKER_PYTHON_PROP = PropertyBuilder.builder()
+            .string(ANSIBLE_WORKER_PYTHON)
+            .required(false)
+            .title("Worker Python interpreter")
+            .description("Python interpreter which has Ansible installed (default=" + DEFAULT_ANSIBLE_WORKER_PYTHON + ").")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"Worker Pool")
+            .build();
+
+    static final Property BATCH_WINDOW_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_BATCH_WINDOW)
+            .required(false)
+            .title("Batch window")
+            .description("Milliseconds to wait for the other nodes of a parallel execution, so a command runs as a single Ansible call for all of them (default=0, disabled).")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"Worker Pool")
+            .build();
+
+    static final Property STRUCTURED_RESULTS_PROP = PropertyBuilder.builder()
+            .booleanType(ANSIBLE_STRUCTURED_RESULTS)
+            .required(false)
+            .title("Structured results")
+            .description("Have Ansible report its results as JSON events, so they can be evaluated per host.")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"Worker Pool")
+            .build();
+
+    static final Property INVENTORY_PER_NODE_PROP = PropertyBuilder.builder()
+            .booleanType(ANSIBLE_INVENTORY_PER_NODE)
+            .required(false)
+            .title("Per-node inventory")
+            .description("Generate the inventory of a playbook node step with just the node it runs on, instead of all nodes of the job. "
+                + "The playbook then can't see the other nodes through groups or hostvars.")
+            .build();
+
+    static final Property INVENTORY_SCRIPT_PROP = PropertyBuilder.builder()
+            .booleanType(ANSIBLE_INVENTORY_SCRIPT)
+            .required(false)
+            .title("Inventory script")
+            .description("Pass the generated inventory to Ansible through an inventory script fetching it from Rundeck, instead of writing an inventory file.")
+            .build();
+
+    static final Property INVENTORY_GROUP_BY_PROP = PropertyBuilder.builder()
+            .string(ANSIBLE_INVENTORY_GROUP_BY)
+            .required(false)
+            .title("Inventory groups")
+            .description("Comma separated node attributes whose values become groups of the generated inventory, e.g. osFamily,tags,distribution (default=osFamily,tags).")
+            .build();
+
+    static final Property OUTPUT_BUFFER_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_OUTPUT_BUFFER)
+            .required(false)
+            .title("Output buffer")
+            .description("Number of Ansible output lines buffered while the log can't keep up, 0 writes each line directly (default=10000).")
+            .build();
+
+    static final Property OUTPUT_OVERFLOW_PROP = PropertyBuilder.builder()
+            .select(ANSIBLE_OUTPUT_OVERFLOW)
+            .required(false)
+            .title("Output overflow")
+            .description("What to do while the output buffer is full: block Ansible, drop-debug lines of verbose output, or summarize by dropping lines and logging how many were dropped (default=block).")
+            .values(Arrays.asList(OutputOverflow.getValues()))
+            .build();
+
+    static final Property RAW_OUTPUT_PROP = PropertyBuilder.builder()
+            .booleanType(ANSIBLE_RAW_OUTPUT)
+            .required(false)
+            .title("Raw output")
+            .description("Pass the Ansible output to the log as UTF-8 bytes, without splitting it into lines. Not used with structured results.")
+            .build();
+
+    static final Property SSH_CONTROL_PERSIST_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_SSH_CONTROL_PERSIST)
+            .required(false)
+            .title("SSH Connection Sharing")
+            .description("Keep SSH connections open for this many seconds after their last use and share them between runs, 0 leaves it to Ansible (default=0).")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"SSH Connection")
+            .build();
+
+    static final Property SSH_CONTROL_MAX_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_SSH_CONTROL_MAX)
+            .required(false)
+            .title("SSH Shared Connections")
+            .description("Most shared SSH connections kept open per project, the oldest ones are closed first (default=" + DEFAULT_ANSIBLE_SSH_CONTROL_MAX + ").")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"SSH Connection")
+            .build();
+
+    static final Property SSH_AGENT_TTL_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_SSH_AGENT_TTL)
+            .required(false)
+            .title("ssh-agent idle time")
+            .description("With ssh-agent, share one agent per private key between runs and stop it after this many seconds without use, 0 starts an agent for each run (default=" + DEFAULT_ANSIBLE_SSH_AGENT_TTL + ").")
+            .renderingOption(StringRenderingConstants.GROUPING,"SECONDARY")
+            .renderingOption(StringRenderingConstants.GROUP_NAME,"SSH Connection")
+            .build();
+
+    static final Property SECRET_PIPES_PROP = PropertyBuilder.builder()
+            .booleanType(ANSIBLE_SECRET_PIPES)
+            .required(false)
+            .title("Vault password pipe")
+            .description("Hand the vault password to Ansible through a named pipe, so it isn't written to a temporary file. Falls back to a file if the system has no mkfifo.")
+            .build();
+
+    static final Property WORKSPACE_SLOTS_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_WORKSPACE_SLOTS)
+            .required(false)
+            .title("Workspaces")
+            .description("Reuse up to this many working directories between runs and empty them in the background, 0 creates and deletes one for each run (default=" + AnsibleWorkspacePool.DEFAULT_SLOTS + ").")
+            .build();
+
+    static final Property WORKSPACE_QUOTA_PROP = PropertyBuilder.builder()
+            .integer(ANSIBLE_WORKSPACE_QUOTA)
+            .required(false)
+            .title("Workspace cleanup quota")
+            .description("Megabytes the working directories waiting to be emptied in the background may take, beyond that runs empty their own (default=" + AnsibleWorkspacePool.DEFAULT_QUOTA + ").")
+            .build();
 }
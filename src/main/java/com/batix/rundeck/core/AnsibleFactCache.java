@@ -0,0 +1,125 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.core.AnsibleNodeMapper.HostFacts;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads the facts of Ansible's jsonfile fact cache, one file per inventory_hostname.
+ *
+ * Only the values a node mapper needs are kept in memory, files are read again when
+ * their modification time or size changed or another mapper asks for them,
+ * so a scan of an unchanged cache doesn't parse anything.
+ */
+public class AnsibleFactCache {
+
+  private static final ConcurrentMap<Path, AnsibleFactCache> caches = new ConcurrentHashMap<>();
+
+  public static AnsibleFactCache forDirectory(Path directory) {
+    Path key = directory.toAbsolutePath().normalize();
+    AnsibleFactCache cache = caches.get(key);
+    if (cache == null) {
+      AnsibleFactCache created = new AnsibleFactCache(key);
+      cache = caches.putIfAbsent(key, created);
+      if (cache == null) {
+        cache = created;
+      }
+    }
+    return cache;
+  }
+
+  private static class Entry {
+    final long modified;
+    final long size;
+    final AnsibleNodeMapper mapper;
+    final HostFacts facts;
+
+    Entry(long modified, long size, AnsibleNodeMapper mapper, HostFacts facts) {
+      this.modified = modified;
+      this.size = size;
+      this.mapper = mapper;
+      this.facts = facts;
+    }
+  }
+
+  private final Path directory;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+  private AnsibleFactCache(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Get the cached facts of some hosts, hosts without a cache file are left out.
+   * The returned facts are shared, don't modify them.
+   * @param hosts  inventory hostnames
+   * @param mapper  picks the values to read from the files
+   * @param threads  threads to parse changed files on, 0 for one per processor
+   */
+  public synchronized Map<String, HostFacts> getFacts(Collection<String> hosts, AnsibleNodeMapper mapper, int threads)
+      throws IOException {
+    // find the files to read first, so they can be parsed in parallel
+    List<String> changedHosts = new ArrayList<>();
+    List<Path> changedFiles = new ArrayList<>();
+    List<BasicFileAttributes> changedAttrs = new ArrayList<>();
+    for (String host : hosts) {
+      Path file = directory.resolve(host);
+      BasicFileAttributes attrs;
+      try {
+        attrs = Files.readAttributes(file, BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        entries.remove(host);
+        continue;
+      }
+
+      Entry entry = entries.get(host);
+      if (entry == null || entry.modified != attrs.lastModifiedTime().toMillis() || entry.size != attrs.size()
+          || entry.mapper != mapper) {
+        changedHosts.add(host);
+        changedFiles.add(file);
+        changedAttrs.add(attrs);
+      }
+    }
+
+    List<HostFacts> parsed = mapper.readFiles(changedFiles, threads);
+    for (int i = 0; i < parsed.size(); i++) {
+      // unreadable files are most likely just being written by Ansible, keep what we had
+      if (parsed.get(i) != null) {
+        BasicFileAttributes attrs = changedAttrs.get(i);
+        entries.put(changedHosts.get(i),
+          new Entry(attrs.lastModifiedTime().toMillis(), attrs.size(), mapper, parsed.get(i)));
+      }
+    }
+
+    Map<String, HostFacts> facts = new LinkedHashMap<>();
+    for (String host : hosts) {
+      Entry entry = entries.get(host);
+      if (entry != null) {
+        facts.put(host, entry.facts);
+      }
+    }
+
+    // forget hosts which aren't asked for anymore
+    Set<String> wanted = new HashSet<>(hosts);
+    for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); ) {
+      if (!wanted.contains(it.next())) {
+        it.remove();
+      }
+    }
+    return facts;
+  }
+}
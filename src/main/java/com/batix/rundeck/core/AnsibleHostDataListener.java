@@ -0,0 +1,19 @@
+package com.batix.rundeck.core;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+/**
+ * Receives the values debug tasks print for each host, when running with structured results.
+ */
+public interface AnsibleHostDataListener {
+
+  /**
+   * Called once for every host result carrying data, as soon as its line is read.
+   * @param host  the inventory hostname
+   * @param data  reader positioned at the value, which must be consumed completely
+   */
+  void hostData(String host, JsonReader data) throws IOException;
+
+}
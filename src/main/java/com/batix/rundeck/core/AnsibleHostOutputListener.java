@@ -0,0 +1,16 @@
+package com.batix.rundeck.core;
+
+/**
+ * Receives the output of each host, when running with structured results.
+ */
+public interface AnsibleHostOutputListener {
+
+  /**
+   * Called for every line rendered from a result or the stats of a host, instead of the run's listener.
+   * Lines which don't belong to a host, like play and task headers or warnings, still go to the listener.
+   * @param host  the inventory hostname
+   * @param line  the output line
+   */
+  void output(String host, String line);
+
+}
@@ -0,0 +1,99 @@
+package com.batix.rundeck.core;
+
+/**
+ * Outcome of an Ansible run for a single host, collected from the structured results.
+ */
+public class AnsibleHostResult {
+
+  private final String host;
+  private int ok = 0;
+  private int changed = 0;
+  private int failed = 0;
+  private int unreachable = 0;
+  private int skipped = 0;
+  private Integer rc;
+  private String message;
+
+  AnsibleHostResult(String host) {
+    this.host = host;
+  }
+
+  void add(String status, Integer rc, String message, boolean ignored) {
+    boolean failedBefore = isFailed();
+    if ("ok".equals(status)) {
+      ok++;
+    } else if ("changed".equals(status)) {
+      changed++;
+    } else if ("failed".equals(status)) {
+      if (ignored) {
+        ok++;
+      } else {
+        failed++;
+      }
+    } else if ("unreachable".equals(status)) {
+      unreachable++;
+    } else if ("skipped".equals(status)) {
+      skipped++;
+    }
+
+    if (rc != null) {
+      this.rc = rc;
+    }
+    // keep the message of the first failure, later tasks usually don't run anymore
+    if (message != null && !failedBefore) {
+      this.message = message;
+    }
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getOk() {
+    return ok;
+  }
+
+  public int getChanged() {
+    return changed;
+  }
+
+  public int getFailed() {
+    return failed;
+  }
+
+  public int getUnreachable() {
+    return unreachable;
+  }
+
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return the return code of the last task reporting one, null if none did
+   */
+  public Integer getRc() {
+    return rc;
+  }
+
+  /**
+   * @return the message of the first failure, or of the last task if nothing failed
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  public boolean isUnreachable() {
+    return unreachable > 0;
+  }
+
+  public boolean isFailed() {
+    return failed > 0 || unreachable > 0;
+  }
+
+  @Override
+  public String toString() {
+    return host + ": ok=" + ok + " changed=" + changed + " unreachable=" + unreachable
+      + " failed=" + failed + " skipped=" + skipped;
+  }
+}
@@ -4,34 +4,388 @@ import com.dtolabs.rundeck.core.common.INodeEntry;
 import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 
 import java.io.File;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
+/**
+ * Writes the inventory of a node set.
+ *
+ * Inventories are cached by a hash of the nodes and their attributes, so steps and node executions
+ * running on the same nodes share one file. Files are reference counted and the least recently used
+ * ones nobody holds anymore are deleted once there are more than {@link #MAX_UNUSED} of them.
+ */
 public class AnsibleInventoryBuilder {
 
+    static final int MAX_UNUSED = 32;
+
+    private static final Charset UTF_8 = Charset.forName("utf-8");
+
+    private static final Set<String> RESERVED = new HashSet<>(Arrays.asList("hostvars", "group_names", "groups", "environment"));
+
+    /**
+     * Attributes whose (comma separated) values become groups, osFamily is needed for windows hosts setup.
+     */
+    public static final List<String> DEFAULT_GROUP_BY = Collections.unmodifiableList(Arrays.asList("osFamily", "tags"));
+
+    private static class CachedInventory {
+        final File file;
+        int references = 0;
+        boolean written = false;
+
+        CachedInventory(File file) {
+            this.file = file;
+        }
+    }
+
+    // hash -> inventory, in access order
+    private static final LinkedHashMap<String, CachedInventory> inventories = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<File, CachedInventory> byFile = new HashMap<>();
+    private static Path directory;
+
     private final Collection<INodeEntry> nodes;
+    private final List<String> groupBy;
 
     public AnsibleInventoryBuilder(Collection<INodeEntry> nodes) {
+        this(nodes, DEFAULT_GROUP_BY);
+    }
+
+    /**
+     * @param groupBy  attributes whose values become groups
+     */
+    public AnsibleInventoryBuilder(Collection<INodeEntry> nodes, List<String> groupBy) {
         this.nodes = nodes;
+        this.groupBy = groupBy;
     }
 
+    /**
+     * Get the inventory file of the nodes, writing it if there is none for them yet.
+     * The file is shared, don't modify or delete it, call {@link #releaseInventory(File)} when done with it.
+     */
     public File buildInventory() throws ConfigurationException {
+        String hash = hashNodes(nodes, groupBy);
+
+        CachedInventory inventory;
+        synchronized (inventories) {
+            inventory = inventories.get(hash);
+            if (inventory == null) {
+                inventory = new CachedInventory(getDirectory().resolve(hash + ".json").toFile());
+                inventories.put(hash, inventory);
+                byFile.put(inventory.file, inventory);
+            }
+            inventory.references++;
+        }
+
+        // written outside the cache lock, other node sets don't have to wait for it
+        synchronized (inventory) {
+            // rewritten if something cleaned up the temp directory
+            if (!inventory.written || !inventory.file.exists()) {
+                try {
+                    writeInventory(inventory.file.toPath());
+                    inventory.written = true;
+                } catch (IOException e) {
+                    synchronized (inventories) {
+                        inventory.references--;
+                        if (inventory.references == 0) {
+                            inventories.remove(hash);
+                            byFile.remove(inventory.file);
+                        }
+                    }
+                    throw new ConfigurationException("Could not write temporary inventory: " + e.getMessage());
+                }
+            }
+        }
+        return inventory.file;
+    }
+
+    /**
+     * Give back an inventory got from {@link #buildInventory()}.
+     */
+    public static void releaseInventory(File file) {
+        synchronized (inventories) {
+            CachedInventory inventory = byFile.get(file);
+            if (inventory == null || inventory.references == 0) {
+                return;
+            }
+            inventory.references--;
+
+            int unused = 0;
+            for (CachedInventory cached : inventories.values()) {
+                if (cached.references == 0) {
+                    unused++;
+                }
+            }
+            // least recently used first
+            for (Iterator<CachedInventory> it = inventories.values().iterator(); it.hasNext() && unused > MAX_UNUSED; ) {
+                CachedInventory cached = it.next();
+                if (cached.references == 0) {
+                    it.remove();
+                    byFile.remove(cached.file);
+                    // deleted under the lock, the same nodes may get a new entry writing the same file right after
+                    cached.file.delete();
+                    unused--;
+                }
+            }
+        }
+    }
+
+    private void writeInventory(Path file) throws IOException {
+        Path part = Files.createTempFile(Files.createDirectories(file.getParent()), ".inventory", ".tmp");
         try {
-            File file = File.createTempFile("ansible-inventory", ".json");
-            file.deleteOnExit();
-            PrintWriter writer = new PrintWriter(file);
-            AnsibleInventory ai = new AnsibleInventory();
-            for (INodeEntry e : nodes) {
-                ai.addHost(e.getNodename(), e.getHostname(), new HashMap<String, String>(e.getAttributes()));
-            }
-            writer.write(new Gson().toJson(ai));
-            writer.close();
-            return file;
-        } catch (Exception e) {
-            throw new ConfigurationException("Could not write temporary inventory: " + e.getMessage());
+            try (Writer writer = Files.newBufferedWriter(part, UTF_8)) {
+                writeInventory(writer, false);
+            }
+            Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Stream the inventory, hosts with their attributes and a group for each value of the group-by attributes.
+     * @param script  write it the way an inventory script answers --list, with the host variables under _meta,
+     *                otherwise as a JSON inventory file with everything under "all"
+     */
+    void writeInventory(Writer out, boolean script) throws IOException {
+        // same node name twice, the last one wins
+        Map<String, INodeEntry> hosts = new LinkedHashMap<>();
+        for (INodeEntry e : nodes) {
+            hosts.put(e.getNodename(), e);
+        }
+
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        if (script) {
+            writer.name("_meta").beginObject().name("hostvars");
+        } else {
+            writer.name("all").beginObject().name("hosts");
+        }
+
+        // filled while writing the hosts
+        GroupIndex groups = new GroupIndex();
+        List<String> hostNames = new ArrayList<>(hosts.size());
+
+        writer.beginObject();
+        for (INodeEntry e : hosts.values()) {
+            int index = hostNames.size();
+            hostNames.add(e.getNodename());
+            writeHost(writer, e);
+
+            // Create Ansible groups by attribute
+            Map<String, String> attributes = e.getAttributes();
+            for (String g : groupBy) {
+                String value = attributes.get(g);
+                if (value != null) {
+                    groups.add(index, value);
+                }
+            }
+        }
+        writer.endObject();
+
+        if (script) {
+            writer.endObject();
+
+            writer.name("all").beginObject().name("hosts").beginArray();
+            for (String host : hostNames) {
+                writer.value(host);
+            }
+            writer.endArray().name("children").beginArray();
+            for (String group : groups.names) {
+                writer.value(group);
+            }
+            writer.endArray().endObject();
+
+            for (int group = 0; group < groups.names.size(); group++) {
+                writer.name(groups.names.get(group)).beginObject().name("hosts").beginArray();
+                IntList members = groups.members.get(group);
+                for (int i = 0; i < members.size; i++) {
+                    if (i > 0 && members.values[i] == members.values[i - 1]) {
+                        continue;
+                    }
+                    writer.value(hostNames.get(members.values[i]));
+                }
+                writer.endArray().endObject();
+            }
+        } else {
+            writer.name("children").beginObject();
+            for (int group = 0; group < groups.names.size(); group++) {
+                writer.name(groups.names.get(group)).beginObject().name("hosts").beginObject();
+                IntList members = groups.members.get(group);
+                for (int i = 0; i < members.size; i++) {
+                    // a host is listed once, even if several attributes lead to the same group
+                    if (i > 0 && members.values[i] == members.values[i - 1]) {
+                        continue;
+                    }
+                    writer.name(hostNames.get(members.values[i])).beginObject().endObject();
+                }
+                writer.endObject().name("children").beginObject().endObject().endObject();
+            }
+            writer.endObject();
+
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    private static void writeHost(JsonWriter writer, INodeEntry e) throws IOException {
+        writer.name(e.getNodename()).beginObject();
+        for (Map.Entry<String, String> attribute : e.getAttributes().entrySet()) {
+            // Leave out attributes that are reserved in Ansible
+            if (attribute.getValue() == null || RESERVED.contains(attribute.getKey())
+                    || "ansible_host".equals(attribute.getKey())) {
+                continue;
+            }
+            writer.name(attribute.getKey()).value(attribute.getValue());
+        }
+        if (e.getHostname() != null) {
+            writer.name("ansible_host").value(e.getHostname());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Group memberships of the hosts. Group names are interned to ids, and each distinct attribute value
+     * is split into group names only once, as most hosts share the same few values.
+     */
+    private static class GroupIndex {
+        // group id -> name, members
+        final List<String> names = new ArrayList<>();
+        final List<IntList> members = new ArrayList<>();
+
+        private final Map<String, Integer> ids = new HashMap<>();
+        // attribute value -> ids of its groups
+        private final Map<String, int[]> valueGroups = new HashMap<>();
+
+        void add(int host, String value) {
+            int[] groups = valueGroups.get(value);
+            if (groups == null) {
+                groups = parse(value);
+                valueGroups.put(value, groups);
+            }
+            for (int group : groups) {
+                members.get(group).add(host);
+            }
+        }
+
+        private int[] parse(String value) {
+            IntList groups = new IntList();
+            for (String name : value.toLowerCase().split(",")) {
+                name = name.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                Integer id = ids.get(name);
+                if (id == null) {
+                    id = names.size();
+                    ids.put(name, id);
+                    names.add(name);
+                    members.add(new IntList());
+                }
+                groups.add(id);
+            }
+            return Arrays.copyOf(groups.values, groups.size);
+        }
+    }
+
+    /**
+     * Growable list of host indexes, without boxing.
+     */
+    private static class IntList {
+        int[] values = new int[8];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Hash of everything ending up in the inventory, independent of the order of nodes and attributes.
+     */
+    static String hashNodes(Collection<INodeEntry> nodes, List<String> groupBy) throws ConfigurationException {
+        Map<String, INodeEntry> sorted = new TreeMap<>();
+        for (INodeEntry e : nodes) {
+            sorted.put(e.getNodename(), e);
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String attribute : groupBy) {
+                update(digest, attribute);
+            }
+            digest.update((byte) 1);
+            for (INodeEntry e : sorted.values()) {
+                update(digest, e.getNodename());
+                update(digest, e.getHostname());
+                for (Map.Entry<String, String> attribute : new TreeMap<>(e.getAttributes()).entrySet()) {
+                    update(digest, attribute.getKey());
+                    update(digest, attribute.getValue());
+                }
+                digest.update((byte) 1);
+            }
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConfigurationException("Can't hash the inventory: " + e.getMessage());
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(UTF_8));
+        }
+        // separator, so that shifting characters between values changes the hash
+        digest.update((byte) 0);
+    }
+
+    // guarded by inventories
+    private static Path getDirectory() throws ConfigurationException {
+        if (directory == null || !Files.isDirectory(directory)) {
+            try {
+                directory = Files.createTempDirectory("ansible-inventories");
+            } catch (IOException e) {
+                throw new ConfigurationException("Could not create the inventory directory: " + e.getMessage());
+            }
+            final Path created = directory;
+            // a single hook for all inventories instead of one deleteOnExit entry per file
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    File[] files = created.toFile().listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            file.delete();
+                        }
+                    }
+                    created.toFile().delete();
+                }
+            });
         }
+        return directory;
     }
 }
@@ -0,0 +1,210 @@
+package com.batix.rundeck.core;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves node sets to the rundeck-inventory.py inventory script, so no inventory file is written per run.
+ *
+ * Each node set is serialized once into an in-memory snapshot, which is shared by all runs on the same
+ * nodes and reference counted like the generated inventory files. Snapshots are served on the loopback
+ * interface only, under a random token, and a few unused ones are kept for the next runs.
+ */
+public class AnsibleInventoryServer {
+
+    public static final String URL_ENV = "RUNDECK_INVENTORY_URL";
+
+    static final String SCRIPT_NAME = "rundeck-inventory.py";
+    static final int MAX_UNUSED = 4;
+
+    private static final String PATH_PREFIX = "/inventory/";
+    private static final SecureRandom random = new SecureRandom();
+
+    private static class Snapshot {
+        final String token;
+        final byte[] inventory;
+        int references = 0;
+
+        Snapshot(String token, byte[] inventory) {
+            this.token = token;
+            this.inventory = inventory;
+        }
+    }
+
+    // hash -> snapshot, in access order
+    private static final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Map<String, Snapshot> byToken = new HashMap<>();
+    private static HttpServer server;
+    private static Path script;
+
+    /**
+     * Make the nodes available to the inventory script.
+     * @return the URL to pass to the script as {@link #URL_ENV}, give it back with {@link #release(String)}
+     */
+    public static String acquire(Collection<INodeEntry> nodes, List<String> groupBy)
+            throws IOException, ConfigurationException {
+        String hash = AnsibleInventoryBuilder.hashNodes(nodes, groupBy);
+        int port = getPort();
+
+        synchronized (snapshots) {
+            Snapshot snapshot = snapshots.get(hash);
+            if (snapshot != null) {
+                snapshot.references++;
+                return url(port, snapshot);
+            }
+        }
+
+        // serialized outside the lock, runs on other nodes don't have to wait for it
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(bytes, Charset.forName("utf-8"))) {
+            new AnsibleInventoryBuilder(nodes, groupBy).writeInventory(writer, true);
+        }
+
+        synchronized (snapshots) {
+            Snapshot snapshot = snapshots.get(hash);
+            if (snapshot == null) {
+                byte[] token = new byte[16];
+                random.nextBytes(token);
+                StringBuilder hex = new StringBuilder();
+                for (byte b : token) {
+                    hex.append(String.format("%02x", b));
+                }
+                snapshot = new Snapshot(hex.toString(), bytes.toByteArray());
+                snapshots.put(hash, snapshot);
+                byToken.put(snapshot.token, snapshot);
+            }
+            snapshot.references++;
+            return url(port, snapshot);
+        }
+    }
+
+    /**
+     * Give back a snapshot got from {@link #acquire(Collection, List)}.
+     */
+    public static void release(String url) {
+        String token = url.substring(url.lastIndexOf('/') + 1);
+        synchronized (snapshots) {
+            Snapshot snapshot = byToken.get(token);
+            if (snapshot == null || snapshot.references == 0) {
+                return;
+            }
+            snapshot.references--;
+
+            int unused = 0;
+            for (Snapshot cached : snapshots.values()) {
+                if (cached.references == 0) {
+                    unused++;
+                }
+            }
+            // least recently used first
+            for (Iterator<Snapshot> it = snapshots.values().iterator(); it.hasNext() && unused > MAX_UNUSED; ) {
+                Snapshot cached = it.next();
+                if (cached.references == 0) {
+                    it.remove();
+                    byToken.remove(cached.token);
+                    unused--;
+                }
+            }
+        }
+    }
+
+    /**
+     * The inventory script, to be used as inventory.
+     */
+    public static synchronized Path getScript() throws IOException {
+        if (script == null || !Files.exists(script)) {
+            Path dir = Files.createTempDirectory("ansible-inventory-script");
+            Path file = dir.resolve(SCRIPT_NAME);
+            try (InputStream in = AnsibleInventoryServer.class.getClassLoader().getResourceAsStream(SCRIPT_NAME)) {
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (!file.toFile().setExecutable(true)) {
+                throw new IOException("Could not make " + file + " executable");
+            }
+            file.toFile().deleteOnExit();
+            dir.toFile().deleteOnExit();
+            script = file;
+        }
+        return script;
+    }
+
+    private static String url(int port, Snapshot snapshot) {
+        return "http://127.0.0.1:" + port + PATH_PREFIX + snapshot.token;
+    }
+
+    private static synchronized int getPort() throws IOException {
+        if (server == null) {
+            HttpServer created = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+            created.createContext(PATH_PREFIX, new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    serve(exchange);
+                }
+            });
+            created.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ansible-inventory-server");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+            created.start();
+            server = created;
+        }
+        return server.getAddress().getPort();
+    }
+
+    private static void serve(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            byte[] inventory = null;
+            if ("GET".equals(exchange.getRequestMethod())) {
+                synchronized (snapshots) {
+                    Snapshot snapshot = byToken.get(path.substring(PATH_PREFIX.length()));
+                    if (snapshot != null) {
+                        inventory = snapshot.inventory;
+                    }
+                }
+            }
+
+            if (inventory == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, inventory.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(inventory);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+import com.batix.rundeck.utils.ListenerFactory;
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.execution.ExecutionContext;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResult;
+import com.dtolabs.rundeck.core.execution.service.NodeExecutorResultImpl;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses concurrent node executor calls for the same command into a single ansible run.
+ *
+ * The first call for a command opens a batch and waits up to the batch window for the other
+ * node threads of the execution to join, then runs ansible once with all of their nodes as limit.
+ * The run uses structured results to tell how every node did, its output is split up by the host
+ * of each result event and streamed to the log of that host's caller as it's read, so it ends up in
+ * the right node's log without being held until the whole batch is done.
+ */
+public class AnsibleNodeBatcher {
+
+  private static final Map<String, Batch> openBatches = new HashMap<>();
+
+  /**
+   * Batching only pays off when Rundeck dispatches to several nodes in parallel.
+   */
+  public static boolean canBatch(ExecutionContext context) {
+    return context.getThreadCount() > 1 && getExecutionId(context) != null;
+  }
+
+  /**
+   * Run the command of the builder, together with concurrent calls for the same command.
+   * @param builder  builder of the node executor call, limited to its node
+   * @param window  milliseconds to wait for other nodes to join the batch
+   * @return the result for the node, or null if no other node joined and the caller should run the command itself
+   */
+  public static NodeExecutorResult execute(AnsibleRunnerBuilder builder, long window) {
+    String key = batchKey(builder);
+    Member member = new Member(builder);
+
+    Batch batch;
+    boolean leader = false;
+    synchronized (openBatches) {
+      batch = openBatches.get(key);
+      if (batch == null || !batch.join(member)) {
+        batch = new Batch(builder.getContext().getThreadCount());
+        batch.join(member);
+        openBatches.put(key, batch);
+        leader = true;
+      }
+    }
+
+    if (leader) {
+      batch.awaitMembers(window);
+      synchronized (openBatches) {
+        batch.close();
+        if (openBatches.get(key) == batch) {
+          openBatches.remove(key);
+        }
+      }
+      if (batch.members.size() == 1) {
+        // nothing to share, let the caller stream its output as usual
+        return null;
+      }
+      batch.run();
+    } else {
+      try {
+        batch.awaitDone();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return NodeExecutorResultImpl.createFailure(AnsibleException.AnsibleFailureReason.Interrupted,
+          "Interrupted while waiting for the batched Ansible run.", member.node);
+      }
+    }
+    return member.result;
+  }
+
+  private static String getExecutionId(ExecutionContext context) {
+    Map<String, String> job = context.getDataContext() != null ? context.getDataContext().get("job") : null;
+    return job != null ? job.get("execid") : null;
+  }
+
+  /**
+   * Calls can only share a run if everything but the node is resolved the same way,
+   * node attributes can override the ansible-* settings so they are part of the key.
+   */
+  private static String batchKey(AnsibleRunnerBuilder builder) {
+    StringBuilder key = new StringBuilder();
+    key.append(builder.getFrameworkProject()).append('\n')
+       .append(getExecutionId(builder.getContext())).append('\n')
+       .append(builder.getModule()).append('\n')
+       .append(builder.getModuleArgs()).append('\n');
+
+    Map<String, String> attributes = builder.getNode().getAttributes();
+    if (attributes != null) {
+      for (Map.Entry<String, String> attribute : new TreeMap<>(attributes).entrySet()) {
+        if (attribute.getKey().startsWith("ansible-")) {
+          key.append(attribute.getKey()).append('=').append(attribute.getValue()).append('\n');
+        }
+      }
+    }
+    return key.toString();
+  }
+
+  private static class Member {
+    final AnsibleRunnerBuilder builder;
+    final INodeEntry node;
+    // created on the caller's thread, so it writes to the caller's log from the thread reading the output
+    final Listener listener;
+    NodeExecutorResult result;
+
+    Member(AnsibleRunnerBuilder builder) {
+      this.builder = builder;
+      this.node = builder.getNode();
+      this.listener = ListenerFactory.getListener(builder.getContext().getExecutionListener());
+    }
+  }
+
+  private static class Batch {
+    private final int maxSize;
+    private final Map<String, Member> members = new LinkedHashMap<>();
+    private final CountDownLatch full = new CountDownLatch(1);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private boolean closed = false;
+
+    Batch(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    // guarded by openBatches
+    boolean join(Member member) {
+      if (closed || members.containsKey(member.node.getNodename())) {
+        return false;
+      }
+      members.put(member.node.getNodename(), member);
+      if (members.size() >= maxSize) {
+        closed = true;
+        full.countDown();
+      }
+      return true;
+    }
+
+    // guarded by openBatches
+    void close() {
+      closed = true;
+    }
+
+    void awaitMembers(long window) {
+      try {
+        full.await(window, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        // run with the members we have
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    void awaitDone() throws InterruptedException {
+      done.await();
+    }
+
+    void run() {
+      try {
+        runBatch();
+      } catch (ConfigurationException e) {
+        fail(AnsibleException.AnsibleFailureReason.ParseArgumentsError, e.getMessage());
+      } catch (Throwable e) {
+        // every member gets a result, null would make the callers run the command again
+        fail(AnsibleException.AnsibleFailureReason.AnsibleError, e.getMessage() != null ? e.getMessage() : e.toString());
+      } finally {
+        done.countDown();
+      }
+    }
+
+    private void runBatch() throws Exception {
+      Member leader = members.values().iterator().next();
+      List<INodeEntry> nodes = new ArrayList<>();
+      for (Member member : members.values()) {
+        nodes.add(member.node);
+      }
+
+      Map<String, Object> configuration = new HashMap<>(leader.builder.getjobConf());
+      configuration.remove(AnsibleDescribable.ANSIBLE_LIMIT);
+      configuration.put(AnsibleDescribable.ANSIBLE_DISABLE_LIMIT, "true");
+      configuration.put(AnsibleDescribable.ANSIBLE_STRUCTURED_RESULTS, "true");
+      AnsibleRunnerBuilder builder = leader.builder.forNodes(nodes, configuration);
+
+      HostOutputListener listener = new HostOutputListener(leader);
+      AnsibleRunner runner;
+      try {
+        runner = builder.buildAnsibleRunner();
+        runner.limit(members.keySet())
+              .ignoreErrors(true)
+              .listener(listener)
+              .hostOutputListener(listener)
+              .run();
+      } finally {
+        builder.cleanupTempFiles();
+      }
+
+      Map<String, AnsibleHostResult> results = runner.getHostResults();
+      for (Member member : members.values()) {
+        AnsibleHostResult result = results.get(member.node.getNodename());
+        if (result == null) {
+          member.result = NodeExecutorResultImpl.createFailure(AnsibleException.AnsibleFailureReason.AnsibleError,
+            "Ansible reported no result for this node.", member.node);
+        } else if (result.isFailed()) {
+          String message = result.getMessage() != null ? result.getMessage() : result.toString();
+          member.result = NodeExecutorResultImpl.createFailure(AnsibleException.AnsibleFailureReason.AnsibleNonZero,
+            message, member.node);
+        } else {
+          member.result = NodeExecutorResultImpl.createSuccess(member.node);
+        }
+      }
+    }
+
+    private void fail(AnsibleException.AnsibleFailureReason reason, String message) {
+      for (Member member : members.values()) {
+        member.result = NodeExecutorResultImpl.createFailure(reason, message, member.node);
+      }
+    }
+
+    /**
+     * Hands the output of each host to its member's log as it's read,
+     * lines which don't belong to a member's host (play and task headers, warnings etc.) go to the leader.
+     */
+    private class HostOutputListener implements Listener, AnsibleHostOutputListener {
+      private final Member leader;
+
+      HostOutputListener(Member leader) {
+        this.leader = leader;
+      }
+
+      @Override
+      public void output(String line) {
+        leader.listener.output(line);
+      }
+
+      @Override
+      public void output(String host, String line) {
+        Member member = members.get(host);
+        if (member == null) {
+          member = leader;
+        }
+        member.listener.output(line);
+      }
+    }
+  }
+}
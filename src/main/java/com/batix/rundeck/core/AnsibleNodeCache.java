@@ -0,0 +1,184 @@
+package com.batix.rundeck.core;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last good node set of a resource model source and refreshes it in the background.
+ *
+ * Callers get the cached nodes right away, even when they are older than the TTL,
+ * a refresh is started for them instead. Concurrent refreshes share a single load,
+ * and a failed refresh keeps the previous nodes. Entries nobody asked for
+ * during a few refresh intervals stop refreshing and are dropped.
+ */
+public class AnsibleNodeCache {
+
+  // refresh intervals without a request after which an entry is dropped
+  private static final int IDLE_INTERVALS = 5;
+
+  private static final ConcurrentMap<String, AnsibleNodeCache> caches = new ConcurrentHashMap<>();
+
+  private static final ThreadFactory threadFactory = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "ansible-node-cache");
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  // only triggers refreshes, the loads themselves can take minutes and run on their own threads
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+  private static final ExecutorService loaders = Executors.newCachedThreadPool(threadFactory);
+
+  /**
+   * Get the nodes for a key, loading them if there are none cached yet.
+   * @param key  identifies the source, should change whenever its configuration does
+   * @param ttl  milliseconds after which the nodes are refreshed
+   * @param loader  loads the nodes, the one of the latest call is used for background refreshes
+   */
+  public static INodeSet getNodes(String key, long ttl, Callable<INodeSet> loader)
+      throws ExecutionException, InterruptedException {
+    while (true) {
+      AnsibleNodeCache cache = caches.get(key);
+      if (cache != null && cache.ttl == ttl) {
+        return cache.get(loader);
+      }
+      AnsibleNodeCache created = new AnsibleNodeCache(key, ttl);
+      boolean replaced = cache == null ? caches.putIfAbsent(key, created) == null : caches.replace(key, cache, created);
+      if (replaced) {
+        if (cache != null) {
+          cache.drop();
+        }
+        return created.get(loader);
+      }
+    }
+  }
+
+  private final String key;
+  private final long ttl;
+
+  private volatile Callable<INodeSet> loader;
+  private volatile INodeSet nodes;
+  private volatile long loadedAt;
+  private volatile long accessedAt;
+
+  private FutureTask<INodeSet> inFlight;
+  private ScheduledFuture<?> schedule;
+  private boolean dropped = false;
+
+  private AnsibleNodeCache(String key, long ttl) {
+    this.key = key;
+    this.ttl = ttl;
+  }
+
+  private INodeSet get(Callable<INodeSet> loader) throws ExecutionException, InterruptedException {
+    this.loader = loader;
+    accessedAt = System.currentTimeMillis();
+
+    INodeSet current = nodes;
+    if (current == null) {
+      // nothing to serve yet, wait for the load
+      return refresh(false).get();
+    }
+    if (System.currentTimeMillis() - loadedAt >= ttl) {
+      refresh(true);
+    }
+    return current;
+  }
+
+  /**
+   * Start a load unless one is running already.
+   * @param async  run it in the background, otherwise in the calling thread
+   */
+  private FutureTask<INodeSet> refresh(boolean async) {
+    final FutureTask<INodeSet> task;
+    boolean start = false;
+    synchronized (this) {
+      if (inFlight == null) {
+        inFlight = new FutureTask<>(new Callable<INodeSet>() {
+          @Override
+          public INodeSet call() throws Exception {
+            try {
+              INodeSet loaded = loader.call();
+              nodes = loaded;
+              loadedAt = System.currentTimeMillis();
+              return loaded;
+            } finally {
+              synchronized (AnsibleNodeCache.this) {
+                inFlight = null;
+              }
+            }
+          }
+        });
+        start = true;
+        scheduleRefresh();
+      }
+      task = inFlight;
+    }
+
+    if (start) {
+      if (async) {
+        loaders.execute(new Runnable() {
+          @Override
+          public void run() {
+            runRefresh(task);
+          }
+        });
+      } else {
+        runRefresh(task);
+      }
+    }
+    return task;
+  }
+
+  private void runRefresh(FutureTask<INodeSet> task) {
+    task.run();
+    try {
+      task.get();
+    } catch (ExecutionException e) {
+      if (nodes != null) {
+        System.out.println("[warn] Refreshing the Ansible nodes failed, keeping the previous ones: " + e.getCause());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // guarded by this
+  private void scheduleRefresh() {
+    if (schedule != null || dropped) {
+      return;
+    }
+    schedule = scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (System.currentTimeMillis() - accessedAt > IDLE_INTERVALS * ttl) {
+          caches.remove(key, AnsibleNodeCache.this);
+          drop();
+        } else if (System.currentTimeMillis() - loadedAt >= ttl) {
+          refresh(true);
+        }
+      }
+    }, ttl, ttl, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void drop() {
+    dropped = true;
+    if (schedule != null) {
+      schedule.cancel(false);
+    }
+    nodes = null;
+  }
+}
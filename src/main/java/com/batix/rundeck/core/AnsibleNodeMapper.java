@@ -0,0 +1,630 @@
+package com.batix.rundeck.core;
+
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Turns the hostvars of a host into a Rundeck node.
+ *
+ * The dotted paths of all values needed for a node are compiled once into a tree,
+ * which is then used to pull just those values out of the hostvars, straight from
+ * a {@link JsonReader} if possible, skipping everything else without building it in memory.
+ */
+public class AnsibleNodeMapper {
+
+  // values used for the node itself, always in these slots
+  private static final int INVENTORY_HOSTNAME = 0;
+  private static final int ANSIBLE_HOST = 1;
+  private static final int ANSIBLE_SSH_HOST = 2;
+  private static final int ANSIBLE_USER = 3;
+  private static final int ANSIBLE_SSH_USER = 4;
+  private static final int ANSIBLE_USER_ID = 5;
+  private static final int LSB_DESCRIPTION = 6;
+  private static final int DISTRIBUTION = 7;
+  private static final int DISTRIBUTION_VERSION = 8;
+  private static final int OS_FAMILY = 9;
+  private static final int OS_NAME = 10;
+  private static final int ARCHITECTURE = 11;
+  private static final int KERNEL = 12;
+
+  private static final List<String> NODE_PATHS = Arrays.asList(
+    "inventory_hostname",
+    "ansible_host",
+    "ansible_ssh_host", // deprecated variable
+    "ansible_user",
+    "ansible_ssh_user", // deprecated variable
+    "ansible_user_id", // fact
+    "ansible_lsb.description",
+    "ansible_distribution",
+    "ansible_distribution_version",
+    // ansible_system     = Linux   = osFamily in Rundeck
+    // ansible_os_family  = Debian  = osName in Rundeck
+    "ansible_os_family",
+    "ansible_os_name",
+    "ansible_architecture",
+    "ansible_kernel"
+  );
+
+  private static final String GROUP_NAMES = "group_names";
+
+  // highest array index a path may use, each step keeps an array up to its highest index
+  static final int MAX_INDEX = 1023;
+
+  /**
+   * JSON-Path -> Attribute-Name of the facts imported as node attributes.
+   */
+  public static final Map<String, String> DEFAULT_ATTRIBUTES;
+
+  static {
+    Map<String, String> attributes = new LinkedHashMap<>();
+    attributes.put("ansible_form_factor", "form_factor");
+
+    attributes.put("ansible_system_vendor", "system_vendor");
+
+    attributes.put("ansible_product_name", "product_name");
+    attributes.put("ansible_product_version", "product_version");
+    attributes.put("ansible_product_serial", "product_serial");
+
+    attributes.put("ansible_bios_version", "bios_version");
+    attributes.put("ansible_bios_date", "bios_date");
+
+    attributes.put("ansible_machine_id", "machine_id");
+
+    attributes.put("ansible_virtualization_type", "virtualization_type");
+    attributes.put("ansible_virtualization_role", "virtualization_role");
+
+    attributes.put("ansible_selinux", "selinux");
+    attributes.put("ansible_fips", "fips");
+
+    attributes.put("ansible_service_mgr", "service_mgr");
+    attributes.put("ansible_pkg_mgr", "pkg_mgr");
+
+    attributes.put("ansible_distribution", "distribution");
+    attributes.put("ansible_distribution_version", "distribution_version");
+    attributes.put("ansible_distribution_major_version", "distribution_major_version");
+    attributes.put("ansible_distribution_release", "distribution_release");
+    attributes.put("ansible_lsb.codename", "lsb_codename");
+
+    attributes.put("ansible_domain", "domain");
+
+    attributes.put("ansible_date_time.tz", "tz");
+    attributes.put("ansible_date_time.tz_offset", "tz_offset");
+
+    attributes.put("ansible_processor_count", "processor_count");
+    attributes.put("ansible_processor_cores", "processor_cores");
+    attributes.put("ansible_processor_vcpus", "processor_vcpus");
+    attributes.put("ansible_processor_threads_per_core", "processor_threads_per_core");
+
+    attributes.put("ansible_userspace_architecture", "userspace_architecture");
+    attributes.put("ansible_userspace_bits", "userspace_bits");
+
+    attributes.put("ansible_memtotal_mb", "memtotal_mb");
+    attributes.put("ansible_swaptotal_mb", "swaptotal_mb");
+    attributes.put("ansible_processor.0", "processor0");
+    attributes.put("ansible_processor.1", "processor1");
+    DEFAULT_ATTRIBUTES = Collections.unmodifiableMap(attributes);
+  }
+
+  private static final AnsibleNodeMapper DEFAULT = new AnsibleNodeMapper(DEFAULT_ATTRIBUTES);
+
+  // threads helping readFiles, one per processor at most for all calls together, idle ones go away after a minute
+  private static final ThreadPoolExecutor parsers;
+
+  static {
+    int processors = Runtime.getRuntime().availableProcessors();
+    parsers = new ThreadPoolExecutor(processors, processors, 60, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "ansible-fact-parser");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    parsers.allowCoreThreadTimeOut(true);
+  }
+
+  // configured mapping -> its compiled mapper
+  private static final ConcurrentMap<String, AnsibleNodeMapper> compiled = new ConcurrentHashMap<>();
+
+  public static AnsibleNodeMapper getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Get the mapper for a configured mapping, it is compiled once and shared by everyone using the same mapping.
+   *
+   * The mapping has one "path -> attribute" entry per line (or separated by commas), which are added
+   * to the default attributes. A path is either dotted ("ansible_processor.0") or JSONPath-like
+   * ("$.ansible_processor[0]"). A path of the defaults is imported under the new name,
+   * mapping it to nothing ("ansible_bios_date ->") leaves it out. Lines starting with # are ignored.
+   * @throws IllegalArgumentException if an entry can't be parsed
+   */
+  public static AnsibleNodeMapper forMapping(String mapping) {
+    if (mapping == null || mapping.trim().isEmpty()) {
+      return DEFAULT;
+    }
+    AnsibleNodeMapper mapper = compiled.get(mapping);
+    if (mapper == null) {
+      AnsibleNodeMapper created = new AnsibleNodeMapper(parseMapping(mapping));
+      mapper = compiled.putIfAbsent(mapping, created);
+      if (mapper == null) {
+        mapper = created;
+      }
+    }
+    return mapper;
+  }
+
+  private static Map<String, String> parseMapping(String mapping) {
+    Map<String, String> attributes = new LinkedHashMap<>(DEFAULT_ATTRIBUTES);
+    for (String entry : mapping.split("[\\r\\n,]+")) {
+      entry = entry.trim();
+      if (entry.isEmpty() || entry.startsWith("#")) {
+        continue;
+      }
+      int arrow = entry.indexOf("->");
+      if (arrow < 0) {
+        throw new IllegalArgumentException("Missing '->' in attribute mapping '" + entry + "'");
+      }
+      String path = normalizePath(entry.substring(0, arrow).trim());
+      if (path == null) {
+        throw new IllegalArgumentException("Invalid path in attribute mapping '" + entry + "'");
+      }
+      for (String part : path.split("\\.")) {
+        if (part.matches("\\d+") && !isIndex(part)) {
+          throw new IllegalArgumentException("Array index above " + MAX_INDEX + " in attribute mapping '" + entry + "'");
+        }
+      }
+      String attribute = entry.substring(arrow + 2).trim();
+      if (attribute.isEmpty()) {
+        attributes.remove(path);
+      } else if (attribute.matches(".*\\s.*")) {
+        throw new IllegalArgumentException("Invalid attribute name in attribute mapping '" + entry + "'");
+      } else {
+        attributes.put(path, attribute);
+      }
+    }
+    return attributes;
+  }
+
+  private static boolean isIndex(String part) {
+    // longer ones don't fit an int
+    return part.matches("\\d{1,9}") && Integer.parseInt(part) <= MAX_INDEX;
+  }
+
+  /**
+   * @return the path in dotted form, null if it isn't valid
+   */
+  private static String normalizePath(String path) {
+    if (path.startsWith("$.")) {
+      path = path.substring(2);
+    }
+    path = path.replaceAll("\\[(\\d+)\\]", ".$1");
+    for (String part : path.split("\\.", -1)) {
+      if (part.isEmpty() || part.contains("[") || part.contains("]")) {
+        return null;
+      }
+    }
+    return path;
+  }
+
+  /**
+   * A step of the compiled paths, object keys and array indexes lead to the next steps.
+   * A numeric part matches both an object key, like a device named "0", and an array index.
+   */
+  private static class PathNode {
+    Map<String, PathNode> keys;
+    PathNode[] indexes;
+    int slot = -1;
+    boolean groupNames = false;
+
+    PathNode child(String part) {
+      if (keys == null) {
+        keys = new HashMap<>();
+      }
+      PathNode child = keys.get(part);
+      if (child == null) {
+        child = new PathNode();
+        keys.put(part, child);
+      }
+      if (isIndex(part)) {
+        int index = Integer.parseInt(part);
+        if (indexes == null || indexes.length <= index) {
+          indexes = indexes == null ? new PathNode[index + 1] : Arrays.copyOf(indexes, index + 1);
+        }
+        indexes[index] = child;
+      }
+      return child;
+    }
+  }
+
+  /**
+   * The values of a host pulled out of its hostvars.
+   */
+  public static class HostFacts {
+    private final String[] values;
+    private List<String> groups;
+
+    private HostFacts(int size) {
+      this.values = new String[size];
+    }
+
+    /**
+     * @return new facts with the values of over replacing the ones of base
+     */
+    public static HostFacts merge(HostFacts base, HostFacts over) {
+      HostFacts merged = new HostFacts(base.values.length);
+      for (int i = 0; i < merged.values.length; i++) {
+        merged.values[i] = over.values[i] != null ? over.values[i] : base.values[i];
+      }
+      merged.groups = over.groups != null ? over.groups : base.groups;
+      return merged;
+    }
+
+    public void setGroups(Collection<String> groups) {
+      this.groups = new ArrayList<>(groups);
+    }
+  }
+
+  private final PathNode root = new PathNode();
+  private final String[] attributeNames;
+  // slot -> slot holding its value, for paths used more than once
+  private final Map<Integer, Integer> aliases = new HashMap<>();
+
+  /**
+   * @param attributes  JSON-Path -> Attribute-Name of the facts to import as node attributes,
+   *                    a path is the keys and array indexes leading to the value, separated by dots
+   */
+  public AnsibleNodeMapper(Map<String, String> attributes) {
+    List<String> names = new ArrayList<>();
+    for (String path : NODE_PATHS) {
+      compile(path, names.size());
+      names.add(null);
+    }
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      compile(attribute.getKey(), names.size());
+      names.add(attribute.getValue());
+    }
+    root.child(GROUP_NAMES).groupNames = true;
+    attributeNames = names.toArray(new String[names.size()]);
+  }
+
+  private void compile(String path, int slot) {
+    PathNode node = root;
+    for (String part : path.split("\\.")) {
+      node = node.child(part);
+    }
+    if (node.slot >= 0) {
+      // same path imported as several attributes, e.g. ansible_distribution, share the slot
+      aliases.put(slot, node.slot);
+    } else {
+      node.slot = slot;
+    }
+  }
+
+  private int valueSlot(int slot) {
+    Integer alias = aliases.get(slot);
+    return alias != null ? alias : slot;
+  }
+
+  /**
+   * Pull the values out of the hostvars of a host, reading only what is needed.
+   * @param reader  positioned at the hostvars object, which is consumed completely
+   */
+  public HostFacts read(JsonReader reader) throws IOException {
+    HostFacts facts = new HostFacts(attributeNames.length);
+    read(reader, root, facts);
+    return facts;
+  }
+
+  private void read(JsonReader reader, PathNode node, HostFacts facts) throws IOException {
+    JsonToken token = reader.peek();
+    switch (token) {
+      case STRING:
+      case NUMBER:
+        if (node.slot >= 0) {
+          facts.values[node.slot] = reader.nextString();
+        } else {
+          reader.skipValue();
+        }
+        break;
+      case BOOLEAN:
+        if (node.slot >= 0) {
+          facts.values[node.slot] = String.valueOf(reader.nextBoolean());
+        } else {
+          reader.skipValue();
+        }
+        break;
+      case BEGIN_OBJECT:
+        if (node.keys == null) {
+          reader.skipValue();
+          break;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+          PathNode child = node.keys.get(reader.nextName());
+          if (child == null) {
+            reader.skipValue();
+          } else {
+            read(reader, child, facts);
+          }
+        }
+        reader.endObject();
+        break;
+      case BEGIN_ARRAY:
+        if (node.groupNames) {
+          List<String> groups = new ArrayList<>();
+          reader.beginArray();
+          while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.STRING) {
+              groups.add(reader.nextString());
+            } else {
+              reader.skipValue();
+            }
+          }
+          reader.endArray();
+          facts.groups = groups;
+          break;
+        }
+        if (node.indexes == null) {
+          reader.skipValue();
+          break;
+        }
+        reader.beginArray();
+        for (int index = 0; reader.hasNext(); index++) {
+          PathNode child = index < node.indexes.length ? node.indexes[index] : null;
+          if (child == null) {
+            reader.skipValue();
+          } else {
+            read(reader, child, facts);
+          }
+        }
+        reader.endArray();
+        break;
+      default:
+        reader.skipValue();
+    }
+  }
+
+  /**
+   * Read files holding the hostvars (or facts) of a host each, on up to the given number of threads.
+   * Files which can't be read are reported and left out.
+   *
+   * The calling thread parses as well, the others come from a pool shared by all calls with one thread
+   * per processor, which keeps idle threads for a while, so refreshing the nodes doesn't start new
+   * threads every time. While the pool is busy with other calls, the calling thread does the work.
+   * @param threads  threads to parse on, 0 for one per processor
+   * @return the facts in the order of the files, null for the ones which couldn't be read
+   */
+  public List<HostFacts> readFiles(List<Path> files, int threads) throws InterruptedIOException {
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    threads = Math.min(threads, files.size());
+
+    FactReader reader = new FactReader(files);
+    List<Future<?>> helpers = new ArrayList<>(Math.max(threads - 1, 0));
+    try {
+      for (int i = 1; i < threads; i++) {
+        helpers.add(parsers.submit(reader));
+      }
+      reader.run();
+      // files taken by helpers may still be parsed
+      reader.parsed.acquire(files.size());
+    } catch (InterruptedException e) {
+      // the helpers stop after their current file
+      reader.next.set(files.size());
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading facts");
+    } finally {
+      // helpers which didn't start have nothing left to do
+      for (Future<?> helper : helpers) {
+        helper.cancel(false);
+      }
+    }
+    if (reader.error.get() != null) {
+      throw new IllegalStateException(reader.error.get());
+    }
+    // the slots keep the order of the files
+    return new ArrayList<>(Arrays.asList(reader.facts));
+  }
+
+  /**
+   * Parses the files nobody took yet until there are none left, on every thread running it.
+   */
+  private class FactReader implements Runnable {
+    final List<Path> files;
+    final HostFacts[] facts;
+    final AtomicInteger next = new AtomicInteger();
+    // released once for each file that is done, which also publishes its slot
+    final Semaphore parsed = new Semaphore(0);
+    final AtomicReference<RuntimeException> error = new AtomicReference<>();
+
+    FactReader(List<Path> files) {
+      this.files = files;
+      this.facts = new HostFacts[files.size()];
+    }
+
+    @Override
+    public void run() {
+      int index;
+      while ((index = next.getAndIncrement()) < files.size()) {
+        try {
+          facts[index] = readFileOrWarn(files.get(index));
+        } catch (RuntimeException e) {
+          error.compareAndSet(null, e);
+        } finally {
+          parsed.release();
+        }
+      }
+    }
+  }
+
+  private HostFacts readFileOrWarn(Path file) {
+    try (BufferedReader reader = Files.newBufferedReader(file, Charset.forName("utf-8"))) {
+      JsonReader jsonReader = new JsonReader(reader);
+      if (jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+        throw new IOException("not a JSON object");
+      }
+      return read(jsonReader);
+    } catch (IOException | IllegalStateException e) {
+      System.out.println("[warn] Could not read facts " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Pull the values out of hostvars which are already in memory.
+   */
+  public HostFacts read(JsonElement hostvars) {
+    HostFacts facts = new HostFacts(attributeNames.length);
+    read(hostvars, root, facts);
+    return facts;
+  }
+
+  private void read(JsonElement element, PathNode node, HostFacts facts) {
+    if (element.isJsonPrimitive()) {
+      if (node.slot >= 0) {
+        facts.values[node.slot] = element.getAsString();
+      }
+    } else if (element.isJsonObject()) {
+      if (node.keys != null) {
+        for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+          PathNode child = node.keys.get(entry.getKey());
+          if (child != null) {
+            read(entry.getValue(), child, facts);
+          }
+        }
+      }
+    } else if (element.isJsonArray()) {
+      JsonArray array = element.getAsJsonArray();
+      if (node.groupNames) {
+        List<String> groups = new ArrayList<>();
+        for (JsonElement group : array) {
+          if (group.isJsonPrimitive()) {
+            groups.add(group.getAsString());
+          }
+        }
+        facts.groups = groups;
+      } else if (node.indexes != null) {
+        for (int index = 0; index < array.size() && index < node.indexes.length; index++) {
+          if (node.indexes[index] != null) {
+            read(array.get(index), node.indexes[index], facts);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @param nodename  the inventory_hostname, used if the hostvars didn't contain it
+   * @param ignoreTagPrefix  groups starting with this aren't imported as tags, may be null
+   * @param extraTag  tag added to every node, may be null
+   */
+  public NodeEntryImpl createNode(String nodename, HostFacts facts, String ignoreTagPrefix, String extraTag) {
+    String[] values = facts.values;
+    NodeEntryImpl node = new NodeEntryImpl();
+
+    if (values[INVENTORY_HOSTNAME] != null) {
+      nodename = values[INVENTORY_HOSTNAME];
+    }
+    String hostname = first(values[ANSIBLE_HOST], values[ANSIBLE_SSH_HOST], nodename);
+    node.setHostname(hostname);
+    node.setNodename(nodename);
+
+    String username = first(values[ANSIBLE_USER], values[ANSIBLE_SSH_USER], values[ANSIBLE_USER_ID],
+      System.getProperty("user.name")); // TODO better default?
+    node.setUsername(username);
+
+    Set<String> tags = new HashSet<>();
+    if (facts.groups != null) {
+      for (String group : facts.groups) {
+        if (ignoreTagPrefix != null && ignoreTagPrefix.length() > 0 && group.startsWith(ignoreTagPrefix)) continue;
+        tags.add(group);
+      }
+    }
+    if (extraTag != null && extraTag.length() > 0) {
+      tags.add(extraTag);
+    }
+    node.setTags(tags);
+
+    if (values[LSB_DESCRIPTION] != null) {
+      node.setDescription(values[LSB_DESCRIPTION]);
+    } else {
+      StringBuilder sb = new StringBuilder();
+
+      if (values[DISTRIBUTION] != null) {
+        sb.append(values[DISTRIBUTION]).append(" ");
+      }
+      if (values[DISTRIBUTION_VERSION] != null) {
+        sb.append(values[DISTRIBUTION_VERSION]).append(" ");
+      }
+
+      if (sb.length() > 0) {
+        node.setDescription(sb.toString().trim());
+      }
+    }
+
+    if (values[OS_FAMILY] != null) {
+      node.setOsFamily(values[OS_FAMILY]);
+    }
+    if (values[OS_NAME] != null) {
+      node.setOsName(values[OS_NAME]);
+    }
+    if (values[ARCHITECTURE] != null) {
+      node.setOsArch(values[ARCHITECTURE]);
+    }
+    if (values[KERNEL] != null) {
+      node.setOsVersion(values[KERNEL]);
+    }
+
+    for (int slot = NODE_PATHS.size(); slot < attributeNames.length; slot++) {
+      String value = values[valueSlot(slot)];
+      if (value != null && value.length() > 0) {
+        node.setAttribute(attributeNames[slot], value);
+      }
+    }
+
+    return node;
+  }
+
+  private static String first(String... candidates) {
+    for (String candidate : candidates) {
+      if (candidate != null) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,171 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.core.AnsibleDescribable.OutputOverflow;
+import com.batix.rundeck.utils.BatchListener;
+import com.batix.rundeck.utils.BytesListener;
+import com.batix.rundeck.utils.Listener;
+import com.batix.rundeck.utils.ListenerFactory;
+import com.batix.rundeck.utils.Logging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decouples reading the Ansible output from writing it to the log.
+ *
+ * Lines are queued in a bounded ring buffer and written in chunks by a reactor thread, to a
+ * {@link BatchListener} in one call per chunk. The sink is bound to the log of the execution when the
+ * buffer is created, as the chunks are written from whatever reactor thread drains the buffer.
+ *
+ * While the buffer is full the overflow policy decides whether Ansible has to wait for the log, like it
+ * did without the buffer, or lines are dropped. Lines are added by the tasks handing on the output of
+ * the run's own streams, so waiting only holds up this run: its streams stop being read and Ansible
+ * waits once its pipes are full, the shared pump threads carry on with the other runs.
+ */
+class AnsibleOutputBuffer implements BytesListener {
+
+  static final int DEFAULT_CAPACITY = 10000;
+
+  // most lines handed to the sink at once
+  private static final int CHUNK = 512;
+
+  // prefixes of the lines Ansible prints when running with -v and up, dropped first with drop-debug
+  private static final String[] DEBUG_PREFIXES = {
+    "<", "Pipelining is enabled", "META: ", "Loading callback plugin ",
+    "Skipping callback ", "Read vars_file ", "Parsed ", "PLAYBOOK: ", "Using ", "redirecting ",
+    "Attempting to use ", "EXEC ", "ESTABLISH ", "PUT ", "SSH: "
+  };
+
+  private final Listener sink;
+  private final OutputOverflow overflow;
+
+  private final String[] ring;
+  private int head = 0;
+  private int size = 0;
+  private long dropped = 0;
+  private boolean draining = false;
+
+  private final Runnable drain = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  /**
+   * @param sink  receives the chunks, null for the log System.out writes to on the calling thread
+   */
+  AnsibleOutputBuffer(Listener sink, int capacity, OutputOverflow overflow) {
+    this.sink = sink != null ? sink : ListenerFactory.getThreadListener();
+    this.ring = new String[Math.max(1, capacity)];
+    this.overflow = overflow != null ? overflow : OutputOverflow.block;
+  }
+
+  @Override
+  public void output(byte[] buffer, int offset, int length) {
+    output(new String(buffer, offset, length, Logging.UTF_8));
+  }
+
+  /**
+   * Called by the tasks handing on the output of the run, never by the shared pump threads,
+   * with the block policy it waits for room.
+   */
+  @Override
+  public synchronized void output(String line) {
+    while (size == ring.length) {
+      if (overflow == OutputOverflow.summarize || (overflow == OutputOverflow.dropDebug && isDebug(line))) {
+        dropped++;
+        return;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        dropped++;
+        return;
+      }
+    }
+    // the summary goes where the lines were dropped, once there is room again
+    if (dropped > 0 && size < ring.length - 1) {
+      enqueue(droppedMessage());
+    }
+    enqueue(line);
+  }
+
+  /**
+   * Wait until everything buffered is written.
+   */
+  synchronized void flush() throws InterruptedException {
+    while (draining || size > 0) {
+      wait();
+    }
+  }
+
+  private void enqueue(String line) {
+    ring[(head + size) % ring.length] = line;
+    size++;
+    if (!draining) {
+      draining = true;
+      AnsibleProcessReactor.execute(drain);
+    }
+  }
+
+  private String droppedMessage() {
+    String message = "[warn] " + dropped + " lines of Ansible output were dropped, the log couldn't keep up";
+    dropped = 0;
+    return message;
+  }
+
+  private void drain() {
+    while (true) {
+      List<String> chunk;
+      synchronized (this) {
+        if (size == 0 && dropped > 0) {
+          chunk = new ArrayList<>(1);
+          chunk.add(droppedMessage());
+        } else if (size == 0) {
+          draining = false;
+          notifyAll();
+          return;
+        } else {
+          int count = Math.min(size, CHUNK);
+          chunk = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            chunk.add(ring[head]);
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+          }
+          size -= count;
+          // room for the reader again
+          notifyAll();
+        }
+      }
+
+      try {
+        if (sink instanceof BatchListener) {
+          ((BatchListener) sink).output(chunk);
+        } else {
+          for (String line : chunk) {
+            sink.output(line);
+          }
+        }
+      } catch (RuntimeException e) {
+        // System.out of this thread may be bound to another execution
+        try {
+          sink.output("[warn] Could not write Ansible output: " + e);
+        } catch (RuntimeException ignored) {
+          // the log is gone
+        }
+      }
+    }
+  }
+
+  private static boolean isDebug(String line) {
+    for (String prefix : DEBUG_PREFIXES) {
+      if (line.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
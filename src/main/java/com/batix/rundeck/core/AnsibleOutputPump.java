@@ -0,0 +1,377 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.BytesListener;
+import com.batix.rundeck.utils.Listener;
+import com.batix.rundeck.utils.Logging;
+import com.batix.rundeck.utils.RawListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drains the output of all running Ansible processes on a few shared threads, instead of two threads per run.
+ *
+ * Each pump thread polls its streams for the bytes available without blocking and queues them for their
+ * stream. The listeners are only called by a reactor task draining the queue of a stream, which splits the
+ * bytes into lines in a per stream buffer that is reused, and hands them on, as raw bytes if the listener
+ * takes them. In raw mode the bytes are passed on in the chunks they were read, without looking for lines.
+ * A slow listener only fills the queue of its own stream, the pump stops reading that stream until there
+ * is room again, so only its own process has to wait.
+ *
+ * Process pipes can't be selected in Java, reading them without polling takes a blocked thread per stream.
+ * The pump sleeps up to {@link #MAX_IDLE} ms while no stream has output, and waits without polling if
+ * no process is running.
+ *
+ * A stream whose process has exited is drained to its end on the reactor threads, as descendants of the
+ * process may still hold the pipe open and reading it could block.
+ */
+class AnsibleOutputPump {
+
+  interface CloseCallback {
+    /**
+     * @param error  error reading the stream, null if it was read to its end
+     */
+    void closed(IOException error);
+  }
+
+  // milliseconds to sleep while no stream has output, growing up to the maximum
+  private static final int MIN_IDLE = 1;
+  private static final int MAX_IDLE = 20;
+
+  // bytes queued for the listener of a stream before the pump stops reading it
+  private static final int QUEUE_LIMIT = 256 * 1024;
+
+  private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+  private static final Pump[] pumps = new Pump[THREADS];
+  private static final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Pump a process output stream to a listener.
+   * @param raw  pass the output to the {@link RawListener} as it's read, instead of splitting it into lines
+   */
+  static void pump(Process process, InputStream stream, Listener listener, boolean raw, CloseCallback callback) {
+    if (raw && !(listener instanceof RawListener)) {
+      throw new IllegalArgumentException("Raw output needs a RawListener");
+    }
+    Pump pump;
+    synchronized (pumps) {
+      int index = (next.getAndIncrement() & Integer.MAX_VALUE) % THREADS;
+      pump = pumps[index];
+      if (pump == null) {
+        pump = new Pump("ansible-output-pump-" + (index + 1));
+        pump.start();
+        pumps[index] = pump;
+      }
+    }
+    pump.add(new Source(process, stream, listener, raw, callback));
+  }
+
+  private static class Pump extends Thread {
+    private final ConcurrentLinkedQueue<Source> added = new ConcurrentLinkedQueue<>();
+    private final List<Source> sources = new ArrayList<>();
+    // shared by all streams of this thread, they are read one after the other
+    private final byte[] buffer = new byte[8192];
+
+    Pump(String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    void add(Source source) {
+      added.add(source);
+      synchronized (this) {
+        notify();
+      }
+    }
+
+    @Override
+    public void run() {
+      int idle = MIN_IDLE;
+      while (true) {
+        Source source;
+        while ((source = added.poll()) != null) {
+          sources.add(source);
+        }
+
+        boolean progress = false;
+        for (Iterator<Source> it = sources.iterator(); it.hasNext(); ) {
+          Source current = it.next();
+          if (current.isFull()) {
+            // its listener is behind, the process waits once the pipe is full
+            continue;
+          }
+          try {
+            int read = current.poll(buffer);
+            if (read > 0) {
+              progress = true;
+            } else if (read < 0) {
+              it.remove();
+              current.drainRest();
+            }
+          } catch (IOException e) {
+            it.remove();
+            current.end(e);
+          }
+        }
+
+        try {
+          if (progress) {
+            idle = MIN_IDLE;
+          } else if (sources.isEmpty()) {
+            synchronized (this) {
+              if (added.isEmpty()) {
+                wait();
+              }
+            }
+            idle = MIN_IDLE;
+          } else {
+            Thread.sleep(idle);
+            idle = Math.min(idle * 2, MAX_IDLE);
+          }
+        } catch (InterruptedException e) {
+          // daemon thread, nobody interrupts it on purpose
+          Thread.interrupted();
+        }
+      }
+    }
+  }
+
+  private static class Source {
+    final Process process;
+    final InputStream stream;
+    final Listener listener;
+    final RawListener rawListener;
+    final CloseCallback callback;
+
+    // read but not handed to the listener yet, guarded by this
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private int queued = 0;
+    private boolean draining = false;
+    private boolean ended = false;
+    private IOException error;
+
+    // the line read so far, only used by the drain task
+    byte[] line = new byte[256];
+    int length = 0;
+    // the last line ended with \r, so a following \n is part of its terminator
+    boolean skipLF = false;
+
+    private final Runnable drain = new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    };
+
+    Source(Process process, InputStream stream, Listener listener, boolean raw, CloseCallback callback) {
+      this.process = process;
+      this.stream = stream;
+      this.listener = listener;
+      this.rawListener = raw ? (RawListener) listener : null;
+      this.callback = callback;
+    }
+
+    synchronized boolean isFull() {
+      return queued >= QUEUE_LIMIT;
+    }
+
+    /**
+     * Read what's available without blocking.
+     * @return the number of bytes read, 0 if there was nothing, -1 if the process has exited and nothing is available
+     */
+    int poll(byte[] buffer) throws IOException {
+      int available = stream.available();
+      if (available <= 0) {
+        return process.isAlive() ? 0 : -1;
+      }
+      int read = stream.read(buffer, 0, Math.min(available, buffer.length));
+      if (read < 0) {
+        return -1;
+      }
+      enqueue(Arrays.copyOf(buffer, read));
+      return read;
+    }
+
+    /**
+     * Read the stream to its end on a thread that may block.
+     */
+    void drainRest() {
+      AnsibleProcessReactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          byte[] buffer = new byte[8192];
+          try {
+            int read;
+            while ((read = stream.read(buffer)) >= 0) {
+              awaitRoom();
+              enqueue(Arrays.copyOf(buffer, read));
+            }
+            end(null);
+          } catch (IOException e) {
+            end(e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            end(new IOException("Interrupted reading the Ansible output", e));
+          }
+        }
+      });
+    }
+
+    private synchronized void awaitRoom() throws InterruptedException {
+      while (queued >= QUEUE_LIMIT && error == null) {
+        wait();
+      }
+    }
+
+    private synchronized void enqueue(byte[] chunk) {
+      if (error != null) {
+        // the listener failed, the rest is read and dropped so the process doesn't block
+        return;
+      }
+      queue.add(chunk);
+      queued += chunk.length;
+      startDrain();
+    }
+
+    /**
+     * No more output, the stream is closed once everything queued is handed on.
+     */
+    synchronized void end(IOException e) {
+      ended = true;
+      if (error == null) {
+        error = e;
+      }
+      startDrain();
+    }
+
+    // guarded by this
+    private void startDrain() {
+      if (!draining) {
+        draining = true;
+        AnsibleProcessReactor.execute(drain);
+      }
+    }
+
+    private void drain() {
+      while (true) {
+        byte[] chunk;
+        boolean failed;
+        synchronized (this) {
+          chunk = queue.poll();
+          if (chunk == null) {
+            if (!ended) {
+              draining = false;
+              return;
+            }
+          } else {
+            queued -= chunk.length;
+            // room for the reader again
+            notifyAll();
+          }
+          failed = error != null;
+        }
+
+        if (chunk == null) {
+          if (!failed) {
+            try {
+              finishLine();
+            } catch (RuntimeException e) {
+              failed(e);
+            }
+          }
+          close();
+          return;
+        }
+        if (failed) {
+          continue;
+        }
+        try {
+          split(chunk, chunk.length);
+        } catch (RuntimeException e) {
+          // a failing listener must not stop the output of the other runs
+          failed(e);
+        }
+      }
+    }
+
+    private synchronized void failed(RuntimeException e) {
+      if (error == null) {
+        error = new IOException("Could not handle Ansible output: " + e, e);
+      }
+      queue.clear();
+      queued = 0;
+      notifyAll();
+    }
+
+    private void split(byte[] buffer, int count) {
+      if (rawListener != null) {
+        rawListener.write(buffer, 0, count);
+        return;
+      }
+      int start = 0;
+      for (int i = 0; i < count; i++) {
+        byte b = buffer[i];
+        if (b != '\n' && b != '\r') {
+          continue;
+        }
+        if (b == '\n' && skipLF && i == start && length == 0) {
+          // second half of \r\n
+          skipLF = false;
+          start = i + 1;
+          continue;
+        }
+        append(buffer, start, i - start);
+        emit();
+        skipLF = b == '\r';
+        start = i + 1;
+      }
+      if (start < count) {
+        skipLF = false;
+        append(buffer, start, count - start);
+      }
+    }
+
+    private void append(byte[] buffer, int offset, int count) {
+      if (length + count > line.length) {
+        line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+      }
+      System.arraycopy(buffer, offset, line, length, count);
+      length += count;
+    }
+
+    private void emit() {
+      if (listener instanceof BytesListener) {
+        ((BytesListener) listener).output(line, 0, length);
+      } else {
+        listener.output(new String(line, 0, length, Logging.UTF_8));
+      }
+      length = 0;
+    }
+
+    private void finishLine() {
+      if (length > 0) {
+        emit();
+      }
+    }
+
+    private void close() {
+      try {
+        stream.close();
+      } catch (IOException ignored) {
+      }
+      IOException e;
+      synchronized (this) {
+        e = error;
+      }
+      callback.closed(e);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Drives running Ansible processes for all runners, so a run doesn't need threads of its own.
+ *
+ * The output of a process is drained by the {@link AnsibleOutputPump}, once both streams are closed
+ * the exit code is reported. Blocking work like dispatching to a worker pool runs on the reactor threads.
+ */
+class AnsibleProcessReactor {
+
+  // seconds between asking a cancelled process tree to stop and killing it
+  private static final int KILL_GRACE = 5;
+
+  interface ExitCallback {
+    /**
+     * @param error  first error reading the output, null if there was none
+     */
+    void exited(int exitCode, IOException error);
+  }
+
+  private static final ThreadFactory threadFactory = new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "ansible-reactor-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(threadFactory);
+  private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+  static void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  static void schedule(Runnable task, long delay, TimeUnit unit) {
+    scheduler.schedule(task, delay, unit);
+  }
+
+  /**
+   * Pump the output of a started process to the listener, and report when it's done.
+   * @param raw  pass the output on in chunks of bytes, see {@link AnsibleOutputPump#pump(Process, java.io.InputStream, Listener, boolean, AnsibleOutputPump.CloseCallback)}
+   */
+  static void start(final Process process, final Listener listener, boolean raw, final ExitCallback callback) {
+    final AtomicInteger open = new AtomicInteger(2);
+    final AtomicReference<IOException> error = new AtomicReference<>();
+
+    AnsibleOutputPump.CloseCallback closed = new AnsibleOutputPump.CloseCallback() {
+      @Override
+      public void closed(IOException e) {
+        if (e != null) {
+          error.compareAndSet(null, e);
+        }
+        if (open.decrementAndGet() == 0) {
+          // both pipes are closed, the process is gone or about to be
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              int exitCode;
+              try {
+                exitCode = process.waitFor();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exitCode = -1;
+              }
+              callback.exited(exitCode, error.get());
+            }
+          });
+        }
+      }
+    };
+    AnsibleOutputPump.pump(process, process.getInputStream(), listener, raw, closed);
+    AnsibleOutputPump.pump(process, process.getErrorStream(), listener, raw, closed);
+  }
+
+  /**
+   * Stop a process and everything it started, like the forks of ansible and their ssh connections.
+   * The processes are asked to terminate first and killed if they are still around after a grace period.
+   *
+   * Only processes which are still the ones found at first are killed: on Java 9+ the process handles
+   * check this themselves, before that the start time of each pid is compared, so a pid reused in the
+   * meantime by an unrelated process isn't hit.
+   * @param log  receives the warnings, they are written on shared threads
+   */
+  static void killTree(final Process process, final Listener log) {
+    final List<Object> handles = getDescendants(process);
+    if (handles != null) {
+      // the parent goes first, so it doesn't start anything new
+      process.destroy();
+      invokeAll(handles, "destroy", log);
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          process.destroyForcibly();
+          invokeAll(handles, "destroyForcibly", log);
+        }
+      }, KILL_GRACE, TimeUnit.SECONDS);
+      return;
+    }
+
+    // pid -> start time
+    final Map<Long, String> pids = new LinkedHashMap<>();
+    Long pid = getPid(process);
+    if (pid != null) {
+      // the parent goes first, so it doesn't start anything new
+      pids.put(pid, getStartTime(pid));
+      collectChildren(pid, pids);
+      signal("TERM", pids.keySet(), log);
+    }
+    process.destroy();
+
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        List<Long> remaining = new ArrayList<>();
+        for (Map.Entry<Long, String> entry : pids.entrySet()) {
+          // without a start time to compare, the pid can't be told apart from a reused one
+          if (entry.getValue() != null && entry.getValue().equals(getStartTime(entry.getKey()))) {
+            remaining.add(entry.getKey());
+          }
+        }
+        if (!remaining.isEmpty()) {
+          signal("KILL", remaining, log);
+        }
+        process.destroyForcibly();
+      }
+    }, KILL_GRACE, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @return the ProcessHandles of everything the process started, null before Java 9
+   */
+  private static List<Object> getDescendants(Process process) {
+    try {
+      Object handle = Process.class.getMethod("toHandle").invoke(process);
+      Method descendants = Class.forName("java.lang.ProcessHandle").getMethod("descendants");
+      Stream<?> stream = (Stream<?>) descendants.invoke(handle);
+      return new ArrayList<Object>(Arrays.asList(stream.toArray()));
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static void invokeAll(List<Object> handles, String method, Listener log) {
+    try {
+      Method destroy = Class.forName("java.lang.ProcessHandle").getMethod(method);
+      for (Object handle : handles) {
+        destroy.invoke(handle);
+      }
+    } catch (Exception e) {
+      log.output("[warn] Could not stop the Ansible processes: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return when the process started, in clock ticks since boot, null if it's gone or there is no /proc
+   */
+  private static String getStartTime(long pid) {
+    try {
+      String stat = new String(Files.readAllBytes(Paths.get("/proc", Long.toString(pid), "stat")), "UTF-8");
+      // the command name in parentheses may contain spaces, the fields after it start with the state
+      String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+      return fields.length > 19 ? fields[19] : null;
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static Long getPid(Process process) {
+    try {
+      // Java 9+
+      Method pid = Process.class.getMethod("pid");
+      return (Long) pid.invoke(process);
+    } catch (NoSuchMethodException e) {
+      try {
+        Field pid = process.getClass().getDeclaredField("pid");
+        pid.setAccessible(true);
+        return ((Number) pid.get(process)).longValue();
+      } catch (Exception unsupported) {
+        return null;
+      }
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static void collectChildren(long pid, Map<Long, String> pids) {
+    List<Long> children = new ArrayList<>();
+    try {
+      Process pgrep = new ProcessBuilder("pgrep", "-P", Long.toString(pid)).redirectErrorStream(true).start();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(pgrep.getInputStream(), "UTF-8"))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.matches("\\d+")) {
+            children.add(Long.parseLong(line));
+          }
+        }
+      }
+      pgrep.waitFor();
+    } catch (IOException e) {
+      // no pgrep, only the process itself is stopped
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    for (Long child : children) {
+      pids.put(child, getStartTime(child));
+      collectChildren(child, pids);
+    }
+  }
+
+  private static void signal(String signal, Collection<Long> pids, Listener log) {
+    List<String> command = new ArrayList<>();
+    command.add("kill");
+    command.add("-" + signal);
+    for (Long pid : pids) {
+      command.add(pid.toString());
+    }
+    try {
+      // processes which are gone already make kill complain, that's fine
+      new ProcessBuilder(command).redirectErrorStream(true).start().waitFor();
+    } catch (IOException e) {
+      log.output("[warn] Could not stop the Ansible processes " + pids + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
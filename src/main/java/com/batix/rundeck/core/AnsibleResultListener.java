@@ -0,0 +1,237 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.BytesListener;
+import com.batix.rundeck.utils.Listener;
+import com.batix.rundeck.utils.Logging;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects per-host results from the events of the rundeck_jsonl stdout callback
+ * and hands a readable version of them on to the delegate listener, or the lines of a host to the host
+ * output listener if there is one.
+ * Events are parsed line by line as they arrive, anything else is passed through as is.
+ */
+class AnsibleResultListener implements BytesListener {
+
+  static final String CALLBACK_NAME = "rundeck_jsonl";
+  static final String EVENT_PREFIX = "{\"event\": ";
+  private static final byte[] EVENT_PREFIX_BYTES = EVENT_PREFIX.getBytes(Charset.forName("US-ASCII"));
+
+  private static Path callbackPluginDir;
+
+  /**
+   * Directory holding the callback plugin shipped with this plugin, to be used as ANSIBLE_CALLBACK_PLUGINS.
+   */
+  static synchronized Path getCallbackPluginDir() throws IOException {
+    if (callbackPluginDir == null || !Files.exists(callbackPluginDir.resolve(CALLBACK_NAME + ".py"))) {
+      Path dir = Files.createTempDirectory("ansible-callbacks");
+      Path plugin = dir.resolve(CALLBACK_NAME + ".py");
+      try (InputStream in = AnsibleResultListener.class.getClassLoader()
+          .getResourceAsStream("callback_plugins/" + CALLBACK_NAME + ".py")) {
+        Files.copy(in, plugin, StandardCopyOption.REPLACE_EXISTING);
+      }
+      plugin.toFile().deleteOnExit();
+      dir.toFile().deleteOnExit();
+      callbackPluginDir = dir;
+    }
+    return callbackPluginDir;
+  }
+
+  private final Listener delegate;
+  private final AnsibleHostDataListener dataListener;
+  private final AnsibleHostOutputListener hostOutputListener;
+  private final Map<String, AnsibleHostResult> results = new LinkedHashMap<>();
+
+  AnsibleResultListener(Listener delegate, AnsibleHostDataListener dataListener,
+                        AnsibleHostOutputListener hostOutputListener) {
+    this.delegate = delegate;
+    this.dataListener = dataListener;
+    this.hostOutputListener = hostOutputListener;
+  }
+
+  /**
+   * @return the results collected so far, by host name in the order hosts first reported
+   */
+  synchronized Map<String, AnsibleHostResult> getResults() {
+    return Collections.unmodifiableMap(new LinkedHashMap<>(results));
+  }
+
+  @Override
+  public synchronized void output(String line) {
+    if (!line.startsWith(EVENT_PREFIX)) {
+      delegate.output(line);
+      return;
+    }
+    try {
+      handleEvent(line);
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      // events can be huge, don't dump them
+      delegate.output("[warn] Could not read Ansible event: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized void output(byte[] buffer, int offset, int length) {
+    if (isEvent(buffer, offset, length)) {
+      output(new String(buffer, offset, length, Logging.UTF_8));
+    } else if (delegate instanceof BytesListener) {
+      // most lines aren't events, they're passed on without decoding them
+      ((BytesListener) delegate).output(buffer, offset, length);
+    } else {
+      delegate.output(new String(buffer, offset, length, Logging.UTF_8));
+    }
+  }
+
+  private static boolean isEvent(byte[] buffer, int offset, int length) {
+    if (length < EVENT_PREFIX_BYTES.length) {
+      return false;
+    }
+    for (int i = 0; i < EVENT_PREFIX_BYTES.length; i++) {
+      if (buffer[offset + i] != EVENT_PREFIX_BYTES[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void handleEvent(String line) throws IOException {
+    String event = null;
+    String name = null;
+    String host = null;
+    String status = null;
+    Integer rc = null;
+    String stdout = null;
+    String stderr = null;
+    String msg = null;
+    boolean ignored = false;
+    Map<String, Integer> stats = new LinkedHashMap<>();
+
+    JsonReader reader = new JsonReader(new StringReader(line));
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      switch (field) {
+        case "event":
+          event = reader.nextString();
+          break;
+        case "name":
+          name = reader.nextString();
+          break;
+        case "host":
+          host = reader.nextString();
+          break;
+        case "status":
+          status = reader.nextString();
+          break;
+        case "rc":
+          rc = reader.nextInt();
+          break;
+        case "stdout":
+          stdout = reader.nextString();
+          break;
+        case "stderr":
+          stderr = reader.nextString();
+          break;
+        case "msg":
+          msg = reader.nextString();
+          break;
+        case "ignored":
+          ignored = reader.nextBoolean();
+          break;
+        case "data":
+          // the callback writes the host first
+          if (dataListener != null && host != null) {
+            dataListener.hostData(host, reader);
+          } else {
+            reader.skipValue();
+          }
+          break;
+        case "ok":
+        case "changed":
+        case "unreachable":
+        case "failed":
+        case "skipped":
+          stats.put(field, reader.nextInt());
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if ("play".equals(event)) {
+      delegate.output("PLAY [" + name + "]");
+    } else if ("task".equals(event)) {
+      delegate.output("TASK [" + name + "]");
+    } else if ("result".equals(event) && host != null && status != null) {
+      AnsibleHostResult result = results.get(host);
+      if (result == null) {
+        result = new AnsibleHostResult(host);
+        results.put(host, result);
+      }
+      result.add(status, rc, msg, ignored);
+      renderResult(host, status, rc, stdout, stderr, msg, ignored);
+    } else if ("stats".equals(event) && host != null) {
+      StringBuilder summary = new StringBuilder(host).append(" :");
+      for (Map.Entry<String, Integer> entry : stats.entrySet()) {
+        summary.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+      }
+      output(host, summary.toString());
+    }
+  }
+
+  private void renderResult(String host, String status, Integer rc, String stdout, String stderr, String msg,
+                            boolean ignored) {
+    StringBuilder header = new StringBuilder(host).append(" | ");
+    if ("failed".equals(status)) {
+      header.append(ignored ? "FAILED (ignored)" : "FAILED!");
+    } else if ("unreachable".equals(status)) {
+      header.append("UNREACHABLE!");
+    } else {
+      header.append(status.toUpperCase());
+    }
+    if (rc != null) {
+      header.append(" | rc=").append(rc);
+    }
+    header.append(" >>");
+    output(host, header.toString());
+
+    outputLines(host, stdout);
+    outputLines(host, stderr);
+    outputLines(host, msg);
+  }
+
+  private void outputLines(String host, String text) {
+    if (text == null || text.isEmpty()) {
+      return;
+    }
+    for (String line : text.split("\r?\n", -1)) {
+      output(host, line);
+    }
+  }
+
+  private void output(String host, String line) {
+    if (hostOutputListener != null) {
+      hostOutputListener.output(host, line);
+    } else {
+      delegate.output(line);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.batix.rundeck.core;
+
+import java.util.Map;
+
+/**
+ * Outcome of an Ansible run started with {@link AnsibleRunner#runAsync()}.
+ */
+public class AnsibleRunResult {
+
+  private final int exitCode;
+  private final Map<String, AnsibleHostResult> hostResults;
+
+  AnsibleRunResult(int exitCode, Map<String, AnsibleHostResult> hostResults) {
+    this.exitCode = exitCode;
+    this.hostResults = hostResults;
+  }
+
+  public int getExitCode() {
+    return exitCode;
+  }
+
+  /**
+   * @return results by host name, empty if structured results weren't used
+   */
+  public Map<String, AnsibleHostResult> getHostResults() {
+    return hostResults;
+  }
+}
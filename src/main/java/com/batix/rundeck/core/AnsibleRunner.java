@@ -3,6 +3,7 @@ package com.batix.rundeck.core;
 import com.batix.rundeck.utils.Logging;
 import com.batix.rundeck.utils.ListenerFactory;
 import com.batix.rundeck.utils.Listener;
+import com.batix.rundeck.utils.RawListener;
 import com.batix.rundeck.utils.ArgumentTokenizer;
 import com.dtolabs.rundeck.core.utils.SSHAgentProcess;
 
@@ -15,19 +16,24 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class AnsibleRunner {
 
   enum AnsibleCommand {
     AdHoc("ansible"),
     PlaybookPath("ansible-playbook"),
-	   PlaybookInline("ansible-playbook");
+	   PlaybookInline("ansible-playbook"),
+    InventoryList("ansible-inventory");
 
     final String command;
     AnsibleCommand(String command) {
@@ -54,6 +60,16 @@ public class AnsibleRunner {
     return ar;
   }
 
+  /**
+   * Dump the inventory with all host variables as JSON, see ansible-inventory --list.
+   * @param outputFile  file to write the JSON to, keeps it apart from warnings on stdout
+   */
+  public static AnsibleRunner inventoryList(String outputFile) {
+    AnsibleRunner ar = new AnsibleRunner(AnsibleCommand.InventoryList);
+    ar.outputFile = outputFile;
+    return ar;
+  }
+
   /**
    * Splits up a command and its arguments inf form of a string into a list of strings.
    * @param commandline  String with a possibly complex command and arguments
@@ -73,12 +89,14 @@ public class AnsibleRunner {
   private final AnsibleCommand type;
 
   private String playbook;
+  private String outputFile;
   private String inventory;
   private String module;
   private String arg;
   private String extraVars;
   private String extraParams;
   private String vaultPass;
+  private boolean secretPipes = false;
   private boolean ignoreErrors = false;
 
   // ansible ssh args
@@ -91,6 +109,8 @@ public class AnsibleRunner {
   private String sshPassphrase;
   private SSHAgentProcess sshAgent;
   private Integer sshAgentTimeToLive = 0;
+  private int sshAgentPoolTtl = 0;
+  private AnsibleSshAgentPool.Lease sshAgentLease;
 
   // ansible become args
   protected Boolean become = Boolean.FALSE;
@@ -103,6 +123,8 @@ public class AnsibleRunner {
   private Path baseDirectory;
   private boolean usingTempDirectory;
   private boolean retainTempDirectory;
+  private int workspaceSlots = 0;
+  private int workspaceQuota = AnsibleWorkspacePool.DEFAULT_QUOTA;
   private final List<String> limits = new ArrayList<>();
   private int result;
   private Map<String, String> options = new HashMap<>();
@@ -111,6 +133,35 @@ public class AnsibleRunner {
   protected String configFile;
 
   private Listener listener;
+  // the log of the run as it was given, for warnings written on other threads, whose System.out may be bound to another execution
+  private Listener log;
+
+  private AnsibleWorkerPool workerPool;
+
+  // ANSIBLE_* settings ansible-worker.py applies to each task, any other one needs a new process
+  private static final Set<String> WORKER_TASK_SETTINGS = new HashSet<>(Arrays.asList(
+    "ANSIBLE_STDOUT_CALLBACK", "ANSIBLE_LOAD_CALLBACK_PLUGINS", "ANSIBLE_CALLBACK_PLUGINS"));
+
+  private boolean structuredResults = false;
+  private AnsibleHostDataListener hostDataListener;
+  private AnsibleHostOutputListener hostOutputListener;
+  private AnsibleResultListener resultListener;
+  private int outputBufferLines = AnsibleOutputBuffer.DEFAULT_CAPACITY;
+  private AnsibleDescribable.OutputOverflow outputOverflow = AnsibleDescribable.OutputOverflow.block;
+  private AnsibleOutputBuffer outputBuffer;
+  private boolean rawOutput = false;
+  private boolean rawPassthrough = false;
+
+  // set while running
+  private File tempPlaybook;
+  private File tempFile;
+  private File tempVaultFile;
+  private File tempPkFile;
+  private File tempVarsFile;
+  private AnsibleSecretPipe vaultPipe;
+  private AnsibleWorkspacePool.Workspace workspace;
+  private volatile Process process;
+  private volatile AnsibleWorkerPool.Task workerTask;
 
   private AnsibleRunner(AnsibleCommand type) {
     this.type = type;
@@ -170,6 +221,14 @@ public class AnsibleRunner {
     return this;
   }
 
+  /**
+   * Hand the vault password to Ansible through a named pipe instead of a temporary file, if the system supports it.
+   */
+  public AnsibleRunner secretPipes(boolean secretPipes) {
+    this.secretPipes = secretPipes;
+    return this;
+  }
+
   public AnsibleRunner ignoreErrors(boolean ignoreErrors) {
 	  this.ignoreErrors = ignoreErrors;
 	  return this;
@@ -214,6 +273,17 @@ public class AnsibleRunner {
     return this;
   }
 
+  /**
+   * Share one ssh-agent per private key between runs, instead of starting one for each run.
+   * Runs using a shared agent don't write the key to a file of their own, ssh gets it from the agent.
+   * The key is only written to a temporary file while it's added to a new agent.
+   * @param ttl  seconds to keep an agent after its last use, 0 stops the agent of each run when it's done
+   */
+  public AnsibleRunner sshAgentPoolTtl(int ttl) {
+    this.sshAgentPoolTtl = ttl;
+    return this;
+  }
+
   public AnsibleRunner sshPassphrase(String passphrase) {
     if (passphrase != null && passphrase.length() > 0) {
       sshPassphrase = passphrase;
@@ -274,6 +344,66 @@ public class AnsibleRunner {
     return this;
   }
 
+  /**
+   * Dispatch ad-hoc commands to a pool of warm Ansible workers instead of starting a new process.
+   * Commands which need to answer password prompts, or set ANSIBLE_* options other than the callback
+   * settings, are still run in their own process.
+   * @param pool  the pool to use, null to always start a new process
+   */
+  public AnsibleRunner workerPool(AnsibleWorkerPool pool) {
+    this.workerPool = pool;
+    return this;
+  }
+
+  /**
+   * Buffer the output on its way to the listener, so Ansible doesn't wait for each line to be written.
+   * @param lines  lines to buffer, 0 hands each line to the listener as it's read
+   * @param overflow  what to do with output while the buffer is full
+   */
+  public AnsibleRunner outputBuffer(int lines, AnsibleDescribable.OutputOverflow overflow) {
+    this.outputBufferLines = lines;
+    this.outputOverflow = overflow;
+    return this;
+  }
+
+  /**
+   * Pass the output to a {@link RawListener} in chunks of bytes as it's read, without splitting it into lines.
+   * Only used without structured results, and if the platform charset is UTF-8 too, otherwise the listener gets lines.
+   */
+  public AnsibleRunner rawOutput(boolean rawOutput) {
+    this.rawOutput = rawOutput;
+    return this;
+  }
+
+  /**
+   * Have Ansible report its results as JSON events, which are collected per host,
+   * see {@link #getHostResults()}. The listener still receives a readable version of the output.
+   */
+  public AnsibleRunner structuredResults(boolean structuredResults) {
+    this.structuredResults = structuredResults;
+    return this;
+  }
+
+  /**
+   * Receive the values debug tasks print for each host, turns on structured results.
+   * @param hostDataListener  called as each host's value is read from the output
+   */
+  public AnsibleRunner hostDataListener(AnsibleHostDataListener hostDataListener) {
+    this.hostDataListener = hostDataListener;
+    this.structuredResults = true;
+    return this;
+  }
+
+  /**
+   * Receive the output of each host apart from the rest, turns on structured results.
+   * @param hostOutputListener  called with the lines rendered for a host, as its events are read
+   */
+  public AnsibleRunner hostOutputListener(AnsibleHostOutputListener hostOutputListener) {
+    this.hostOutputListener = hostOutputListener;
+    this.structuredResults = true;
+    return this;
+  }
+
   /**
    * Run Ansible with -vvvv and print the command and output to the console / log
    */
@@ -304,6 +434,17 @@ public class AnsibleRunner {
     return this;
   }
 
+  /**
+   * Run in a workspace of the {@link AnsibleWorkspacePool} if no directory is specified, instead of a new temporary directory.
+   * @param slots  most idle workspaces kept, 0 creates and deletes a temporary directory for each run
+   * @param quota  megabytes the workspaces waiting to be cleaned may take
+   */
+  public AnsibleRunner workspacePool(int slots, int quota) {
+    this.workspaceSlots = slots;
+    this.workspaceQuota = quota;
+    return this;
+  }
+
   /**
    * Specify in which directory Ansible is run, noting it is a temporary directory.
    */
@@ -334,6 +475,16 @@ public class AnsibleRunner {
     return this;
   }
 
+  /**
+   * Temporary files go into the workspace if there is one, the janitor removes what's left of them.
+   */
+  private File createTempFile(String suffix) throws IOException {
+    if (workspace != null) {
+      return Files.createTempFile(workspace.getPath(), "ansible-runner", suffix).toFile();
+    }
+    return File.createTempFile("ansible-runner", suffix);
+  }
+
   public void deleteTempDirectory(Path tempDirectory) throws IOException {
       Files.walkFileTree(tempDirectory, new SimpleFileVisitor<Path>() {
         @Override
@@ -351,23 +502,68 @@ public class AnsibleRunner {
   }
 
   public int run() throws Exception {
+    CompletableFuture<AnsibleRunResult> future = runAsync();
+    try {
+      return future.get().getExitCode();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new AnsibleException("ERROR: Ansible Execution Interrupted.", e, AnsibleException.AnsibleFailureReason.Interrupted);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Start the run without waiting for it to finish, no thread is blocked while Ansible runs.
+   * The future fails with an {@link AnsibleException} if Ansible returned a non zero code, unless errors are ignored.
+   * Cancelling it stops Ansible and every process it started.
+   */
+  public CompletableFuture<AnsibleRunResult> runAsync() {
     if (done) {
       throw new IllegalStateException("already done");
     }
     done = true;
 
+    final CompletableFuture<AnsibleRunResult> future = new CompletableFuture<AnsibleRunResult>() {
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+          stopProcess();
+        }
+        return cancelled;
+      }
+    };
+    try {
+      start(future);
+    } catch (Exception e) {
+      finish(future, -1, e);
+    }
+    return future;
+  }
+
+  private void start(final CompletableFuture<AnsibleRunResult> future) throws Exception {
+    // default the listener to the log System.out writes to on this thread, the output is read on other threads
+    if (listener == null) {
+        listener = ListenerFactory.getThreadListener();
+    }
+    log = listener;
+
     if (baseDirectory == null) {
       // Use a temporary directory and mark it for possible removal later
       this.usingTempDirectory = true;
-      baseDirectory = Files.createTempDirectory("ansible-rundeck");
+      if (workspaceSlots > 0) {
+        workspace = AnsibleWorkspacePool.acquire(workspaceSlots, workspaceQuota);
+        baseDirectory = workspace.getPath();
+      } else {
+        baseDirectory = Files.createTempDirectory("ansible-rundeck");
+      }
     }
 
-    File tempPlaybook = null;
-    File tempFile = null;
-    File tempVaultFile = null;
-    File tempPkFile = null;
-    File tempVarsFile = null;
-
     List<String> procArgs = new ArrayList<>();
     procArgs.add(type.command);
 
@@ -388,9 +584,13 @@ public class AnsibleRunner {
       procArgs.add(playbook);
     } else if (type == AnsibleCommand.PlaybookInline) {
 
-	  tempPlaybook = File.createTempFile("ansible-runner", "playbook");
-	  Files.write(tempPlaybook.toPath(), playbook.toString().getBytes());
+	  tempPlaybook = createTempFile("playbook");
+	  Files.write(tempPlaybook.toPath(), playbook.toString().getBytes(Logging.UTF_8));
 	  procArgs.add(tempPlaybook.getAbsolutePath());
+    } else if (type == AnsibleCommand.InventoryList) {
+      procArgs.add("--list");
+      procArgs.add("--output");
+      procArgs.add(outputFile);
     }
 
     if (inventory != null && inventory.length() > 0) {
@@ -402,12 +602,12 @@ public class AnsibleRunner {
       procArgs.add(limits.get(0));
 
     } else if (limits != null && limits.size() > 1) {
-      tempFile = File.createTempFile("ansible-runner", "targets");
+      tempFile = createTempFile("targets");
       StringBuilder sb = new StringBuilder();
       for (String limit : limits) {
         sb.append(limit).append("\n");
       }
-      Files.write(tempFile.toPath(), sb.toString().getBytes());
+      Files.write(tempFile.toPath(), sb.toString().getBytes(Logging.UTF_8));
 
       procArgs.add("-l");
       procArgs.add("@" + tempFile.getAbsolutePath());
@@ -418,30 +618,43 @@ public class AnsibleRunner {
     }
 
     if (extraVars != null && extraVars.length() > 0) {
-    	tempVarsFile = File.createTempFile("ansible-runner", "extra-vars");
-    	Files.write(tempVarsFile.toPath(), extraVars.getBytes());
+    	tempVarsFile = createTempFile("extra-vars");
+    	Files.write(tempVarsFile.toPath(), extraVars.getBytes(Logging.UTF_8));
         procArgs.add("--extra-vars" + "=" + "@" + tempVarsFile.getAbsolutePath());
     }
 
     if (vaultPass != null && vaultPass.length() > 0) {
-      tempVaultFile = File.createTempFile("ansible-runner", "vault");
-      Files.write(tempVaultFile.toPath(), vaultPass.getBytes());
-      procArgs.add("--vault-password-file" + "=" + tempVaultFile.getAbsolutePath());
+      if (secretPipes) {
+        vaultPipe = AnsibleSecretPipe.open("vault", vaultPass);
+      }
+      if (vaultPipe != null) {
+        procArgs.add("--vault-password-file" + "=" + AnsibleSecretPipe.getVaultClient());
+      } else {
+        tempVaultFile = createTempFile("vault");
+        Files.write(tempVaultFile.toPath(), vaultPass.getBytes(Logging.UTF_8));
+        procArgs.add("--vault-password-file" + "=" + tempVaultFile.getAbsolutePath());
+      }
     }
 
     if (sshPrivateKey != null && sshPrivateKey.length() > 0) {
-       tempPkFile = File.createTempFile("ansible-runner", "id_rsa");
-       // Only the owner can read and write
-       Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
-       perms.add(PosixFilePermission.OWNER_READ);
-       perms.add(PosixFilePermission.OWNER_WRITE);
-       Files.setPosixFilePermissions(tempPkFile.toPath(), perms);
-
-       Files.write(tempPkFile.toPath(), sshPrivateKey.getBytes());
-       procArgs.add("--private-key" + "=" + tempPkFile.toPath());
-
-       if(sshUseAgent){
-         registerKeySshAgent(tempPkFile.getAbsolutePath());
+       if (sshUseAgent && sshAgentPoolTtl > 0) {
+         // the pooled agent holds the key, ssh gets it through SSH_AUTH_SOCK, the key is only written
+         // to a temporary file while it's added to a new agent
+         sshAgentLease = AnsibleSshAgentPool.acquire(sshPrivateKey, sshPassphrase, sshAgentPoolTtl, debug);
+       } else {
+         tempPkFile = createTempFile("id_rsa");
+         // Only the owner can read and write
+         Set<PosixFilePermission> perms = new HashSet<PosixFilePermission>();
+         perms.add(PosixFilePermission.OWNER_READ);
+         perms.add(PosixFilePermission.OWNER_WRITE);
+         Files.setPosixFilePermissions(tempPkFile.toPath(), perms);
+
+         Files.write(tempPkFile.toPath(), sshPrivateKey.getBytes(Logging.UTF_8));
+         procArgs.add("--private-key" + "=" + tempPkFile.toPath());
+
+         if(sshUseAgent){
+           registerKeySshAgent(tempPkFile.getAbsolutePath());
+         }
        }
     }
 
@@ -472,9 +685,18 @@ public class AnsibleRunner {
        procArgs.add("--become-user" + "=" + becomeUser);
     }
 
-    // default the listener to stdout logger
-    if (listener == null) {
-        listener = ListenerFactory.getListener(System.out);
+    // lines are only needed if something parses them
+    rawPassthrough = rawOutput && !structuredResults && listener instanceof RawListener
+        && ListenerFactory.isUtf8Platform();
+
+    if (outputBufferLines > 0 && !rawPassthrough) {
+        outputBuffer = new AnsibleOutputBuffer(listener, outputBufferLines, outputOverflow);
+        listener = outputBuffer;
+    }
+
+    if (structuredResults) {
+        resultListener = new AnsibleResultListener(listener, hostDataListener, hostOutputListener);
+        listener = resultListener;
     }
 
     if (extraParams != null && extraParams.length() > 0) {
@@ -489,7 +711,6 @@ public class AnsibleRunner {
     ProcessBuilder processBuilder = new ProcessBuilder()
       .command(procArgs)
       .directory(baseDirectory.toFile()); // set cwd
-    Process proc = null;
 
     Map<String, String> processEnvironment = processBuilder.environment();
 
@@ -501,84 +722,94 @@ public class AnsibleRunner {
       processEnvironment.put("ANSIBLE_CONFIG", configFile);
     }
 
-    for (String optionName : this.options.keySet()) {
-        processEnvironment.put(optionName, this.options.get(optionName));
-    }
+    Map<String, String> taskEnvironment = new HashMap<>(this.options);
 
-    if(sshUseAgent && sshAgent!=null){
-      processEnvironment.put("SSH_AUTH_SOCK", this.sshAgent.getSocketPath());
+    // the output is read as UTF-8, whatever the locale of the server
+    if (!taskEnvironment.containsKey("PYTHONIOENCODING") && !processEnvironment.containsKey("PYTHONIOENCODING")) {
+      taskEnvironment.put("PYTHONIOENCODING", "utf-8");
     }
 
-    try {
-      proc = processBuilder.start();
-      OutputStream stdin = proc.getOutputStream();
-      OutputStreamWriter stdinw = new OutputStreamWriter(stdin);
+    if(sshUseAgent && sshAgentLease!=null){
+      taskEnvironment.put("SSH_AUTH_SOCK", sshAgentLease.getSocketPath());
+    } else if(sshUseAgent && sshAgent!=null){
+      taskEnvironment.put("SSH_AUTH_SOCK", this.sshAgent.getSocketPath());
+    }
 
-      if (sshUsePassword) {
-         if (sshPass != null && sshPass.length() > 0) {
-        	 stdinw.write(sshPass+"\n");
-        	 stdinw.flush();
-         } else {
-            throw new AnsibleException("Missing ssh password.",AnsibleException.AnsibleFailureReason.AnsibleNonZero);
-         }
-      }
+    if (vaultPipe != null) {
+      taskEnvironment.put(AnsibleSecretPipe.VAULT_PIPE_ENV, vaultPipe.getPath().toString());
+    }
 
-      if (become) {
-         if (becomePassword != null && becomePassword.length() > 0) {
-        	 stdinw.write(becomePassword+"\n");
-        	 stdinw.flush();
-         }
-      }
+    if (structuredResults) {
+      taskEnvironment.put("ANSIBLE_STDOUT_CALLBACK", AnsibleResultListener.CALLBACK_NAME);
+      taskEnvironment.put("ANSIBLE_LOAD_CALLBACK_PLUGINS", "1");
+      taskEnvironment.put("ANSIBLE_CALLBACK_PLUGINS", AnsibleResultListener.getCallbackPluginDir().toString());
+    }
 
-      stdinw.close();
-      Thread errthread = Logging.copyStreamThread(proc.getErrorStream(), listener);
-      Thread outthread = Logging.copyStreamThread(proc.getInputStream(), listener);
-      errthread.start();
-      outthread.start();
-      result = proc.waitFor();
-      outthread.join();
-      errthread.join();
-      System.err.flush();
-      System.out.flush();
+    processEnvironment.putAll(taskEnvironment);
 
+    if (useWorkerPool(taskEnvironment)) {
+      if (debug) {
+        System.out.println(" dispatching to ansible worker pool");
+      }
+      final List<String> workerArgs = procArgs;
+      final Map<String, String> workerEnvironment = taskEnvironment;
+      final Listener workerListener = listener;
+      final AnsibleWorkerPool.Task task = new AnsibleWorkerPool.Task();
+      workerTask = task;
+      if (future.isCancelled()) {
+        // cancelled while starting, before the task could be cancelled, it fails right away on the pool
+        stopProcess();
+      }
+      AnsibleProcessReactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          int exitCode = -1;
+          Exception error = null;
+          try {
+            exitCode = workerPool.execute(workerArgs, workerEnvironment, baseDirectory.toFile(), workerListener, task);
+          } catch (Exception e) {
+            error = e;
+          }
+          finish(future, exitCode, error);
+        }
+      });
+    } else {
+      startProcess(processBuilder, future);
+    }
+  }
 
+  /**
+   * Clean up after the run and complete its future.
+   */
+  private void finish(CompletableFuture<AnsibleRunResult> future, int exitCode, Exception error) {
+    result = exitCode;
+    try {
+      if (outputBuffer != null) {
+        try {
+          outputBuffer.flush();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
       if(sshUseAgent){
         if(sshAgent!=null){
           sshAgent.stopAgent();
         }
+        if(sshAgentLease!=null){
+          sshAgentLease.release();
+        }
       }
 
-      if (result != 0) {
+      if (error == null && exitCode != 0) {
     	  if (ignoreErrors == false) {
-              throw new AnsibleException("ERROR: Ansible execution returned with non zero code.",
+              error = new AnsibleException("ERROR: Ansible execution returned with non zero code.",
         		                      AnsibleException.AnsibleFailureReason.AnsibleNonZero);
     	  }
       }
-    } catch (InterruptedException e) {
-        if(proc!=null) {
-          proc.destroy();
-        }
-        Thread.currentThread().interrupt();
-        throw new AnsibleException("ERROR: Ansible Execution Interrupted.", e, AnsibleException.AnsibleFailureReason.Interrupted);
-    } catch (IOException e) {
-        throw new AnsibleException("ERROR: Ansible IO failure: "+e.getMessage(), e, AnsibleException.AnsibleFailureReason.IOFailure);
-    } catch (AnsibleException e) {
-        throw e;
-    } catch (Exception e) {
-        if(proc!=null) {
-          proc.destroy();
-        }
-        throw new AnsibleException("ERROR: Ansible execution returned with non zero code.", e, AnsibleException.AnsibleFailureReason.Unknown);
     } finally {
         // Make sure to always cleanup on failure and success
-        if(proc!=null) {
-          proc.getErrorStream().close();
-          proc.getInputStream().close();
-          proc.getOutputStream().close();
-          proc.destroy();
-        }
-
-        if (tempFile != null && !tempFile.delete()) {
+        // secrets are removed right away, the rest of a workspace is left to the janitor
+        if (tempFile != null && workspace == null && !tempFile.delete()) {
           tempFile.deleteOnExit();
         }
         if (tempPkFile != null && !tempPkFile.delete()) {
@@ -590,22 +821,131 @@ public class AnsibleRunner {
         if (tempVaultFile != null && !tempVaultFile.delete()) {
           tempVaultFile.deleteOnExit();
         }
-        if (tempPlaybook != null && !tempPlaybook.delete()) {
+        if (vaultPipe != null) {
+          vaultPipe.close();
+        }
+        if (tempPlaybook != null && workspace == null && !tempPlaybook.delete()) {
           tempPlaybook.deleteOnExit();
         }
 
-        if (usingTempDirectory && !retainTempDirectory) {
-          deleteTempDirectory(baseDirectory);
+        if (workspace != null) {
+          if (retainTempDirectory) {
+            workspace.retain();
+          } else {
+            workspace.release(log);
+          }
+        } else if (usingTempDirectory && !retainTempDirectory) {
+          try {
+            deleteTempDirectory(baseDirectory);
+          } catch (IOException e) {
+            log.output("[warn] Error deleting temporary directory " + baseDirectory + ": " + e.getMessage());
+          }
         }
     }
 
-    return result;
+    if (error instanceof AnsibleException) {
+      future.completeExceptionally(error);
+    } else if (error instanceof InterruptedException) {
+      future.completeExceptionally(new AnsibleException("ERROR: Ansible Execution Interrupted.", error, AnsibleException.AnsibleFailureReason.Interrupted));
+    } else if (error instanceof IOException) {
+      future.completeExceptionally(new AnsibleException("ERROR: Ansible IO failure: "+error.getMessage(), error, AnsibleException.AnsibleFailureReason.IOFailure));
+    } else if (error != null) {
+      future.completeExceptionally(new AnsibleException("ERROR: Ansible execution returned with non zero code.", error, AnsibleException.AnsibleFailureReason.Unknown));
+    } else {
+      future.complete(new AnsibleRunResult(exitCode, getHostResults()));
+    }
+  }
+
+  private boolean useWorkerPool(Map<String, String> taskEnvironment) {
+    // workers read their requests from stdin, so they can't answer password prompts
+    if (workerPool == null
+      || type != AnsibleCommand.AdHoc
+      || sshUsePassword
+      || (become && becomePassword != null && becomePassword.length() > 0)) {
+      return false;
+    }
+    // a warm worker read its configuration on startup, only the callback settings are applied per task
+    for (String name : taskEnvironment.keySet()) {
+      if (name.startsWith("ANSIBLE_") && !WORKER_TASK_SETTINGS.contains(name)) {
+        if (debug) {
+          System.out.println(" " + name + " is set for this run, not using the ansible worker pool");
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void startProcess(ProcessBuilder processBuilder, final CompletableFuture<AnsibleRunResult> future) throws Exception {
+    final Process proc = processBuilder.start();
+    process = proc;
+    try {
+      OutputStream stdin = proc.getOutputStream();
+      OutputStreamWriter stdinw = new OutputStreamWriter(stdin, Logging.UTF_8);
+
+      if (sshUsePassword) {
+         if (sshPass != null && sshPass.length() > 0) {
+        	 stdinw.write(sshPass+"\n");
+        	 stdinw.flush();
+         } else {
+            throw new AnsibleException("Missing ssh password.",AnsibleException.AnsibleFailureReason.AnsibleNonZero);
+         }
+      }
+
+      if (become) {
+         if (becomePassword != null && becomePassword.length() > 0) {
+        	 stdinw.write(becomePassword+"\n");
+        	 stdinw.flush();
+         }
+      }
+
+      stdinw.close();
+    } catch (Exception e) {
+      proc.destroy();
+      throw e;
+    }
+
+    if (future.isCancelled()) {
+      // cancelled while starting
+      stopProcess();
+    }
+
+    AnsibleProcessReactor.start(proc, listener, rawPassthrough, new AnsibleProcessReactor.ExitCallback() {
+      @Override
+      public void exited(int exitCode, IOException error) {
+        proc.destroy();
+        finish(future, exitCode, error);
+      }
+    });
+  }
+
+  private void stopProcess() {
+    Process proc = process;
+    if (proc != null) {
+      AnsibleProcessReactor.killTree(proc, log);
+    }
+    // on the worker pool, the worker running the task is killed and replaced
+    AnsibleWorkerPool.Task task = workerTask;
+    if (task != null) {
+      task.cancel(log);
+    }
   }
 
   public int getResult() {
     return result;
   }
 
+  /**
+   * Per host results of the run, only available with {@link #structuredResults(boolean)}.
+   * @return results by host name, empty if structured results weren't used
+   */
+  public Map<String, AnsibleHostResult> getHostResults() {
+    if (resultListener == null) {
+      return Collections.emptyMap();
+    }
+    return resultListener.getResults();
+  }
+
   public boolean registerKeySshAgent(String keyPath) throws AnsibleException, Exception {
 
     if(sshAgent==null){
@@ -634,7 +974,7 @@ public class AnsibleRunner {
       proc = processBuilder.start();
 
       OutputStream stdin = proc.getOutputStream();
-      OutputStreamWriter stdinw = new OutputStreamWriter(stdin);
+      OutputStreamWriter stdinw = new OutputStreamWriter(stdin, Logging.UTF_8);
 
       try{
         if (sshPassphrase != null && sshPassphrase.length() > 0) {
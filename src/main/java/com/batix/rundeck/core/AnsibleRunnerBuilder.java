@@ -9,27 +9,32 @@ import com.dtolabs.rundeck.core.common.INodeEntry;
 import com.dtolabs.rundeck.core.common.INodeSet;
 import com.batix.rundeck.core.AnsibleDescribable.AuthenticationType;
 import com.batix.rundeck.core.AnsibleDescribable.BecomeMethodType;
+import com.batix.rundeck.core.AnsibleDescribable.OutputOverflow;
+import com.batix.rundeck.utils.Listener;
+import com.batix.rundeck.utils.ListenerFactory;
+import com.batix.rundeck.utils.Logging;
 import com.dtolabs.rundeck.core.common.Framework;
 import com.dtolabs.rundeck.core.dispatcher.DataContextUtils;
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
 import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
-import com.dtolabs.rundeck.core.storage.ResourceMeta;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
-import org.rundeck.storage.api.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.rundeck.storage.api.PathUtil;
 import org.rundeck.storage.api.StorageException;
 
 public class AnsibleRunnerBuilder {
@@ -39,7 +44,22 @@ public class AnsibleRunnerBuilder {
     private String frameworkProject;
     private Map<String, Object> jobConf;
     private Collection<INodeEntry> nodes;
+    private INodeEntry node;
+    private INodeEntry inventoryNode;
     private Collection<File> tempFiles;
+    private Collection<File> inventories = new LinkedList<>();
+    private Collection<String> inventoryUrls = new LinkedList<>();
+    private String inventoryUrl;
+    private PropertySnapshot properties;
+
+    // attributes holding key storage paths
+    private static final String[] STORAGE_PATH_ATTRIBUTES = {
+        AnsibleDescribable.ANSIBLE_SSH_KEYPATH_STORAGE_PATH,
+        AnsibleDescribable.ANSIBLE_SSH_PASSWORD_STORAGE_PATH,
+        AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_STORAGE_PATH,
+        AnsibleDescribable.ANSIBLE_VAULTSTORE_PATH,
+        AnsibleDescribable.ANSIBLE_SSH_PASSPHRASE
+    };
 
     AnsibleRunnerBuilder(final ExecutionContext context, final Framework framework) {
         this.context = context;
@@ -72,21 +92,48 @@ public class AnsibleRunnerBuilder {
         if (null == passwordStoragePath) {
             return null;
         }
-        ResourceMeta contents = context.getStorageTree().getResource(passwordStoragePath).getContents();
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        contents.writeContent(byteArrayOutputStream);
-        return byteArrayOutputStream.toByteArray();
+        return AnsibleCredentialCache.get(context, passwordStoragePath);
+    }
+
+    /**
+     * The runner takes its secrets as Strings, so the one returned here can't be wiped like the bytes
+     * it's made of, it stays on the heap until it's collected after the run.
+     */
+    private String readSecret(final String storagePath) throws IOException {
+        byte[] secret = AnsibleCredentialCache.get(context, storagePath);
+        try {
+            return new String(secret, Logging.UTF_8);
+        } finally {
+            Arrays.fill(secret, (byte) 0);
+        }
+    }
+
+    /**
+     * Start reading the key storage secrets of all the nodes, so node executions find them in the cache.
+     * Done once per execution, secrets set through node attributes are read in one go.
+     */
+    public void prefetchCredentials(Collection<INodeEntry> prefetchNodes) {
+        if (!AnsibleCredentialCache.startPrefetch(context)) {
+            return;
+        }
+        Set<String> storagePaths = new LinkedHashSet<>();
+        for (INodeEntry prefetchNode : prefetchNodes) {
+            PropertySnapshot nodeProperties = new PropertySnapshot(getFrameworkProject(), getFramework(), prefetchNode, getjobConf());
+            for (String attribute : STORAGE_PATH_ATTRIBUTES) {
+                String storagePath = nodeProperties.resolveProperty(attribute, null);
+                if (storagePath != null && storagePath.contains("${")) {
+                    storagePath = DataContextUtils.replaceDataReferences(storagePath, context.getDataContext());
+                }
+                if (storagePath != null && !storagePath.isEmpty()) {
+                    storagePaths.add(storagePath);
+                }
+            }
+        }
+        AnsibleCredentialCache.prefetch(context, storagePaths);
     }
 
     public String getPrivateKeyfilePath() {
-        String path = PropertyResolver.resolveProperty(
-                AnsibleDescribable.ANSIBLE_SSH_KEYPATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+        String path = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_KEYPATH, null);
 
         //expand properties in path
         if (path != null && path.contains("${")) {
@@ -96,14 +143,7 @@ public class AnsibleRunnerBuilder {
     }
 
     public String getPrivateKeyStoragePath() {
-        String path = PropertyResolver.resolveProperty(
-        		AnsibleDescribable.ANSIBLE_SSH_KEYPATH_STORAGE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+        String path = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_KEYPATH_STORAGE_PATH, null);
         //expand properties in path
         if (path != null && path.contains("${")) {
             path = DataContextUtils.replaceDataReferences(path, context.getDataContext());
@@ -126,14 +166,7 @@ public class AnsibleRunnerBuilder {
 
     public String getPasswordStoragePath() {
 
-        String path = PropertyResolver.resolveProperty(
-        		AnsibleDescribable.ANSIBLE_SSH_PASSWORD_STORAGE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+        String path = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_PASSWORD_STORAGE_PATH, null);
 
         //expand properties in path
         if (path != null && path.contains("${")) {
@@ -144,14 +177,7 @@ public class AnsibleRunnerBuilder {
 
     public String getSshPrivateKey()  throws ConfigurationException{
         //look for storage option
-        String storagePath = PropertyResolver.resolveProperty(
-        	AnsibleDescribable.ANSIBLE_SSH_KEYPATH_STORAGE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+        String storagePath = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_KEYPATH_STORAGE_PATH, null);
 
         if(null!=storagePath){
             //look up storage value
@@ -161,13 +187,8 @@ public class AnsibleRunnerBuilder {
                         context.getDataContext()
                 );
             }
-            Path path = PathUtil.asPath(storagePath);
             try {
-                ResourceMeta contents = context.getStorageTree().getResource(path)
-                        .getContents();
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                contents.writeContent(byteArrayOutputStream);
-                return new String(byteArrayOutputStream.toByteArray());
+                return readSecret(storagePath);
             } catch (StorageException e) {
                 throw new ConfigurationException("Failed to read the ssh private key for " +
                         "storage path: " + storagePath + ": " + e.getMessage());
@@ -180,7 +201,7 @@ public class AnsibleRunnerBuilder {
             final String path = getPrivateKeyfilePath();
             if (path != null) {
                 try {
-                    return new String(Files.readAllBytes(Paths.get(path)));
+                    return new String(Files.readAllBytes(Paths.get(path)), Logging.UTF_8);
                 } catch (IOException e) {
                     throw new ConfigurationException("Failed to read the ssh private key from path " +
                                                   path + ": " + e.getMessage());
@@ -195,14 +216,7 @@ public class AnsibleRunnerBuilder {
 
         //look for option values first
         //typically jobs use secure options to dynamically setup the ssh password
-        final String passwordOption = PropertyResolver.resolveProperty(
-                    AnsibleDescribable.ANSIBLE_SSH_PASSWORD_OPTION,
-                    AnsibleDescribable.DEFAULT_ANSIBLE_SSH_PASSWORD_OPTION,
-                    getFrameworkProject(),
-                    getFramework(),
-                    getNode(),
-                    getjobConf()
-                    );
+        final String passwordOption = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_PASSWORD_OPTION, AnsibleDescribable.DEFAULT_ANSIBLE_SSH_PASSWORD_OPTION);
         String sshPassword = PropertyResolver.evaluateSecureOption(passwordOption, getContext());
 
         if(null!=sshPassword){
@@ -210,14 +224,7 @@ public class AnsibleRunnerBuilder {
             return sshPassword;
         } else {
             //look for storage option
-            String storagePath = PropertyResolver.resolveProperty(
-                AnsibleDescribable.ANSIBLE_SSH_PASSWORD_STORAGE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+            String storagePath = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_PASSWORD_STORAGE_PATH, null);
 
             if(null!=storagePath){
                 //look up storage value
@@ -227,13 +234,8 @@ public class AnsibleRunnerBuilder {
                             context.getDataContext()
                     );
                 }
-                Path path = PathUtil.asPath(storagePath);
                 try {
-                    ResourceMeta contents = context.getStorageTree().getResource(path)
-                            .getContents();
-                    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                    contents.writeContent(byteArrayOutputStream);
-                    return new String(byteArrayOutputStream.toByteArray());
+                    return readSecret(storagePath);
                 } catch (StorageException e) {
                     throw new ConfigurationException("Failed to read the ssh password for " +
                             "storage path: " + storagePath + ": " + e.getMessage());
@@ -250,14 +252,7 @@ public class AnsibleRunnerBuilder {
 
     public Integer getSSHTimeout() throws ConfigurationException {
     	Integer timeout = null;
-        final String stimeout = PropertyResolver.resolveProperty(
-        		    AnsibleDescribable.ANSIBLE_SSH_TIMEOUT,
-                    null,
-                    getFrameworkProject(),
-                    getFramework(),
-                    getNode(),
-                    getjobConf()
-                    );
+        final String stimeout = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_TIMEOUT, null);
         if (null != stimeout) {
             try {
             	timeout = Integer.parseInt(stimeout);
@@ -271,14 +266,7 @@ public class AnsibleRunnerBuilder {
 
     public String getSshUser() {
         final String user;
-        user = PropertyResolver.resolveProperty(
-                  AnsibleDescribable.ANSIBLE_SSH_USER,
-                  null,
-                  getFrameworkProject(),
-                  getFramework(),
-                  getNode(),
-                  getjobConf()
-                  );
+        user = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_USER, null);
 
         if (null != user && user.contains("${")) {
             return DataContextUtils.replaceDataReferences(user, getContext().getDataContext());
@@ -288,14 +276,7 @@ public class AnsibleRunnerBuilder {
 
 
     public AuthenticationType getSshAuthenticationType() {
-        String authType = PropertyResolver.resolveProperty(
-                  AnsibleDescribable.ANSIBLE_SSH_AUTH_TYPE,
-                  null,
-                  getFrameworkProject(),
-                  getFramework(),
-                  getNode(),
-                  getjobConf()
-                  );
+        String authType = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_AUTH_TYPE, null);
 
         if (null != authType) {
              return AuthenticationType.valueOf(authType);
@@ -305,13 +286,7 @@ public class AnsibleRunnerBuilder {
 
     public String getBecomeUser() {
         final String user;
-        user = PropertyResolver.resolveProperty(
-                   AnsibleDescribable.ANSIBLE_BECOME_USER,
-                   null,
-                   getFrameworkProject(),
-                   getFramework(),getNode(),
-                   getjobConf()
-                   );
+        user = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_BECOME_USER, null);
 
         if (null != user && user.contains("${")) {
             return DataContextUtils.replaceDataReferences(user, getContext().getDataContext());
@@ -321,14 +296,7 @@ public class AnsibleRunnerBuilder {
 
     public Boolean getBecome() {
         Boolean become = null;
-        String sbecome = PropertyResolver.resolveProperty(
-                   AnsibleDescribable.ANSIBLE_BECOME,
-                   null,
-                   getFrameworkProject(),
-                   getFramework(),
-                   getNode(),
-                   getjobConf()
-                   );
+        String sbecome = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_BECOME, null);
 
         if (null != sbecome) {
         	become = Boolean.parseBoolean(sbecome);
@@ -338,14 +306,7 @@ public class AnsibleRunnerBuilder {
 
     public String getExtraParams() {
     	final String extraParams;
-    	extraParams = PropertyResolver.resolveProperty(
-    	            AnsibleDescribable.ANSIBLE_EXTRA_PARAM,
-    	            null,
-    	            getFrameworkProject(),
-    	            getFramework(),
-    	            getNode(),
-    	            getjobConf()
-    	            );
+    	extraParams = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_EXTRA_PARAM, null);
 
     	if (null != extraParams && extraParams.contains("${")) {
     	     return DataContextUtils.replaceDataReferences(extraParams, getContext().getDataContext());
@@ -354,14 +315,7 @@ public class AnsibleRunnerBuilder {
     }
 
     public BecomeMethodType getBecomeMethod() {
-        String becomeMethod = PropertyResolver.resolveProperty(
-                   AnsibleDescribable.ANSIBLE_BECOME_METHOD,
-                   null,
-                   getFrameworkProject(),
-                   getFramework(),
-                   getNode(),
-                   getjobConf()
-                   );
+        String becomeMethod = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_BECOME_METHOD, null);
 
         if (null != becomeMethod) {
              return BecomeMethodType.valueOf(becomeMethod);
@@ -376,14 +330,7 @@ public class AnsibleRunnerBuilder {
 
 
     public String getBecomePasswordStoragePath() {
-        String path = PropertyResolver.resolveProperty(
-        		AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_STORAGE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+        String path = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_STORAGE_PATH, null);
         //expand properties in path
         if (path != null && path.contains("${")) {
             path = DataContextUtils.replaceDataReferences(path, context.getDataContext());
@@ -397,14 +344,7 @@ public class AnsibleRunnerBuilder {
 
 
     public String getBecomePassword(String prefix) {
-        final String passwordOption = PropertyResolver.resolveProperty(
-                    AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_OPTION,
-                    AnsibleDescribable.DEFAULT_ANSIBLE_BECOME_PASSWORD_OPTION,
-                    getFrameworkProject(),
-                    getFramework(),
-                    getNode(),
-                    getjobConf()
-                    );
+        final String passwordOption = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_OPTION, AnsibleDescribable.DEFAULT_ANSIBLE_BECOME_PASSWORD_OPTION);
 
         return PropertyResolver.evaluateSecureOption(passwordOption, getContext());
     }
@@ -413,14 +353,7 @@ public class AnsibleRunnerBuilder {
 
         //look for option values first
         //typically jobs use secure options to dynamically setup the become password
-        String passwordOption = PropertyResolver.resolveProperty(
-                    AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_OPTION,
-                    AnsibleDescribable.DEFAULT_ANSIBLE_BECOME_PASSWORD_OPTION,
-                    getFrameworkProject(),
-                    getFramework(),
-                    getNode(),
-                    getjobConf()
-                    );
+        String passwordOption = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_OPTION, AnsibleDescribable.DEFAULT_ANSIBLE_BECOME_PASSWORD_OPTION);
         String becomePassword = PropertyResolver.evaluateSecureOption(passwordOption, getContext());
 
         if(null!=becomePassword){
@@ -428,14 +361,7 @@ public class AnsibleRunnerBuilder {
             return becomePassword;
         } else {
             //look for storage option
-            String storagePath = PropertyResolver.resolveProperty(
-                AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_STORAGE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+            String storagePath = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_BECOME_PASSWORD_STORAGE_PATH, null);
 
             if(null!=storagePath){
                 //look up storage value
@@ -445,13 +371,8 @@ public class AnsibleRunnerBuilder {
                             context.getDataContext()
                     );
                 }
-                Path path = PathUtil.asPath(storagePath);
                 try {
-                    ResourceMeta contents = context.getStorageTree().getResource(path)
-                            .getContents();
-                    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                    contents.writeContent(byteArrayOutputStream);
-                    return new String(byteArrayOutputStream.toByteArray());
+                    return readSecret(storagePath);
                 } catch (StorageException e) {
                     throw new ConfigurationException("Failed to read the become password for " +
                             "storage path: " + storagePath + ": " + e.getMessage());
@@ -468,14 +389,7 @@ public class AnsibleRunnerBuilder {
 
     public String getVaultKey()  throws ConfigurationException{
         //look for storage option
-        String storagePath = PropertyResolver.resolveProperty(
-        		AnsibleDescribable.ANSIBLE_VAULTSTORE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+        String storagePath = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_VAULTSTORE_PATH, null);
 
         if(null!=storagePath){
             //look up storage value
@@ -485,13 +399,8 @@ public class AnsibleRunnerBuilder {
                         context.getDataContext()
                 );
             }
-            Path path = PathUtil.asPath(storagePath);
             try {
-                ResourceMeta contents = context.getStorageTree().getResource(path)
-                        .getContents();
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                contents.writeContent(byteArrayOutputStream);
-                return new String(byteArrayOutputStream.toByteArray());
+                return readSecret(storagePath);
             } catch (StorageException e) {
                 throw new ConfigurationException("Failed to read the vault key for " +
                         "storage path: " + storagePath + ": " + e.getMessage());
@@ -501,14 +410,7 @@ public class AnsibleRunnerBuilder {
             }
         } else {
 
-            String path = PropertyResolver.resolveProperty(
-            	AnsibleDescribable.ANSIBLE_VAULT_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-                );
+            String path = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_VAULT_PATH, null);
 
             //expand properties in path
             if (path != null && path.contains("${")) {
@@ -517,7 +419,7 @@ public class AnsibleRunnerBuilder {
 
             if (path != null) {
               try {
-				return new String(Files.readAllBytes(Paths.get(path)));
+				return new String(Files.readAllBytes(Paths.get(path)), Logging.UTF_8);
 			} catch (IOException e) {
                 throw new ConfigurationException("Failed to read the ssh private key from path " +
                 		path + ": " + e.getMessage());
@@ -578,14 +480,7 @@ public class AnsibleRunnerBuilder {
 
     public String getExecutable() {
         final String executable;
-        executable = PropertyResolver.resolveProperty(
-                  AnsibleDescribable.ANSIBLE_EXECUTABLE,
-                  null,
-                  getFrameworkProject(),
-                  getFramework(),
-                  getNode(),
-                  getjobConf()
-                  );
+        executable = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_EXECUTABLE, null);
 
         if (null != executable && executable.contains("${")) {
             return DataContextUtils.replaceDataReferences(executable, getContext().getDataContext());
@@ -595,14 +490,7 @@ public class AnsibleRunnerBuilder {
 
     public Boolean getDebug() {
         Boolean debug = Boolean.FALSE;
-        String sdebug = PropertyResolver.resolveProperty(
-                  AnsibleDescribable.ANSIBLE_DEBUG,
-                  null,
-                  getFrameworkProject(),
-                  getFramework(),
-                  getNode(),
-                  getjobConf()
-                  );
+        String sdebug = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_DEBUG, null);
 
         if (null != sdebug) {
             debug = Boolean.parseBoolean(sdebug);
@@ -612,14 +500,7 @@ public class AnsibleRunnerBuilder {
 
     public Boolean gatherFacts() {
         Boolean gatherFacts = null;
-        String sgatherFacts = PropertyResolver.resolveProperty(
-                  AnsibleDescribable.ANSIBLE_GATHER_FACTS,
-                  null,
-                  getFrameworkProject(),
-                  getFramework(),
-                  getNode(),
-                  getjobConf()
-                  );
+        String sgatherFacts = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_GATHER_FACTS, null);
 
         if (null != sgatherFacts) {
         	gatherFacts = Boolean.parseBoolean(sgatherFacts);
@@ -629,14 +510,7 @@ public class AnsibleRunnerBuilder {
 
     public Boolean ignoreErrors() {
         Boolean ignoreErrors = null;
-        String signoreErrors = PropertyResolver.resolveProperty(
-                   AnsibleDescribable.ANSIBLE_IGNORE_ERRORS,
-                   null,
-                   getFrameworkProject(),
-                   getFramework(),
-                   getNode(),
-                   getjobConf()
-                   );
+        String signoreErrors = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_IGNORE_ERRORS, null);
 
         if (null != signoreErrors) {
         	ignoreErrors = Boolean.parseBoolean(signoreErrors);
@@ -646,14 +520,7 @@ public class AnsibleRunnerBuilder {
 
     public String getIgnoreTagsPrefix() {
         final String ignoreTagsPrefix;
-        ignoreTagsPrefix = PropertyResolver.resolveProperty(
-                   AnsibleDescribable.ANSIBLE_IGNORE_TAGS,
-                   null,
-                   getFrameworkProject(),
-                   getFramework(),
-                   getNode(),
-                   getjobConf()
-                   );
+        ignoreTagsPrefix = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_IGNORE_TAGS, null);
 
         if (null != ignoreTagsPrefix && ignoreTagsPrefix.contains("${")) {
             return DataContextUtils.replaceDataReferences(ignoreTagsPrefix, getContext().getDataContext());
@@ -663,14 +530,7 @@ public class AnsibleRunnerBuilder {
 
     public String getExtraVars() {
         final String extraVars;
-        extraVars = PropertyResolver.resolveProperty(
-                    AnsibleDescribable.ANSIBLE_EXTRA_VARS,
-                    null,
-                    getFrameworkProject(),
-                    getFramework(),
-                    getNode(),
-                    getjobConf()
-                    );
+        extraVars = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_EXTRA_VARS, null);
 
         if (null != extraVars && extraVars.contains("${")) {
             return DataContextUtils.replaceDataReferences(extraVars, getContext().getDataContext());
@@ -680,14 +540,7 @@ public class AnsibleRunnerBuilder {
 
     public Boolean generateInventory() {
         Boolean generateInventory = null;
-        String sgenerateInventory = PropertyResolver.resolveProperty(
-                  AnsibleDescribable.ANSIBLE_GENERATE_INVENTORY,
-                  null,
-                  getFrameworkProject(),
-                  getFramework(),
-                  getNode(),
-                  getjobConf()
-                  );
+        String sgenerateInventory = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_GENERATE_INVENTORY, null);
 
         if (null != sgenerateInventory) {
         	generateInventory = Boolean.parseBoolean(sgenerateInventory);
@@ -700,19 +553,35 @@ public class AnsibleRunnerBuilder {
         Boolean isGenerated =  generateInventory();
 
         if (isGenerated !=null && isGenerated) {
-            File tempInventory = new AnsibleInventoryBuilder(this.nodes).buildInventory();
-            tempFiles.add(tempInventory);
+            Collection<INodeEntry> inventoryNodes = this.nodes;
+            if (inventoryNode != null && getInventoryPerNode()) {
+                // the run is limited to this node anyway, no need to make Ansible parse all the others
+                inventoryNodes = Collections.singleton(inventoryNode);
+            }
+            if (getInventoryScript()) {
+                String url = null;
+                try {
+                    url = AnsibleInventoryServer.acquire(inventoryNodes, getInventoryGroupBy());
+                    inventoryUrls.add(url);
+                    String script = AnsibleInventoryServer.getScript().toString();
+                    inventoryUrl = url;
+                    return script;
+                } catch (IOException e) {
+                    System.out.println("[warn] Could not serve the inventory, writing it to a file instead: " + e.getMessage());
+                    if (url != null) {
+                        // not used, give it back right away
+                        inventoryUrls.remove(url);
+                        AnsibleInventoryServer.release(url);
+                    }
+                    inventoryUrl = null;
+                }
+            }
+            File tempInventory = new AnsibleInventoryBuilder(inventoryNodes, getInventoryGroupBy()).buildInventory();
+            inventories.add(tempInventory);
             inventory = tempInventory.getAbsolutePath();
             return inventory;
         }
-        inventory = PropertyResolver.resolveProperty(
-                     AnsibleDescribable.ANSIBLE_INVENTORY,
-                     null,
-                     getFrameworkProject(),
-                     getFramework(),
-                     getNode(),
-                     getjobConf()
-                     );
+        inventory = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_INVENTORY, null);
 
         if (null != inventory && inventory.contains("${")) {
             return DataContextUtils.replaceDataReferences(inventory, getContext().getDataContext());
@@ -725,26 +594,13 @@ public class AnsibleRunnerBuilder {
         final String limit;
 
         // Return Null if Disabled
-        if(PropertyResolver.resolveBooleanProperty(
-        				AnsibleDescribable.ANSIBLE_DISABLE_LIMIT,
-        				Boolean.valueOf(AnsibleDescribable.DISABLE_LIMIT_PROP.getDefaultValue()),
-    				    getFrameworkProject(),
-                        getFramework(),
-                        getNode(),
-                        getjobConf())){
+        if(getProperties().resolveBooleanProperty(AnsibleDescribable.ANSIBLE_DISABLE_LIMIT, Boolean.valueOf(AnsibleDescribable.DISABLE_LIMIT_PROP.getDefaultValue()))){
 
         	return null;
         }
 
         // Get Limit from Rundeck
-        limit = PropertyResolver.resolveProperty(
-                     AnsibleDescribable.ANSIBLE_LIMIT,
-                     null,
-                     getFrameworkProject(),
-                     getFramework(),
-                     getNode(),
-                     getjobConf()
-                     );
+        limit = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_LIMIT, null);
 
         if (null != limit && limit.contains("${")) {
             return DataContextUtils.replaceDataReferences(limit, getContext().getDataContext());
@@ -755,14 +611,7 @@ public class AnsibleRunnerBuilder {
     public String getConfigFile() {
 
         final String configFile;
-        configFile = PropertyResolver.resolveProperty(
-                AnsibleDescribable.ANSIBLE_CONFIG_FILE_PATH,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-        );
+        configFile = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_CONFIG_FILE_PATH, null);
 
         if (null != configFile && configFile.contains("${")) {
             return DataContextUtils.replaceDataReferences(configFile, getContext().getDataContext());
@@ -782,7 +631,157 @@ public class AnsibleRunnerBuilder {
         return baseDir;
     }
 
-    public AnsibleRunner buildAnsibleRunner() throws ConfigurationException{
+    public AnsibleWorkerPool getWorkerPool() throws ConfigurationException {
+        Boolean useWorkerPool = getProperties().resolveBooleanProperty(AnsibleDescribable.ANSIBLE_WORKER_POOL, Boolean.FALSE);
+
+        if (!useWorkerPool) {
+            return null;
+        }
+
+        Integer size = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_WORKER_POOL_SIZE, Integer.valueOf(AnsibleDescribable.DEFAULT_ANSIBLE_WORKER_POOL_SIZE));
+
+        Integer maxTasks = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_WORKER_MAX_TASKS, Integer.valueOf(AnsibleDescribable.DEFAULT_ANSIBLE_WORKER_MAX_TASKS));
+
+        if (size < 1 || maxTasks < 1) {
+            throw new ConfigurationException("Worker pool size and max tasks must be positive, got " +
+                    size + " and " + maxTasks);
+        }
+
+        String python = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_WORKER_PYTHON, AnsibleDescribable.DEFAULT_ANSIBLE_WORKER_PYTHON);
+
+        return AnsibleWorkerPool.forProject(getFrameworkProject(), python, getConfigFile(), size, maxTasks);
+    }
+
+    public long getBatchWindow() throws ConfigurationException {
+        Integer window = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_BATCH_WINDOW, 0);
+
+        if (window < 0) {
+            throw new ConfigurationException("Batch window must not be negative, got " + window);
+        }
+        return window;
+    }
+
+    public Boolean getStructuredResults() throws ConfigurationException {
+        return getProperties().resolveBooleanProperty(AnsibleDescribable.ANSIBLE_STRUCTURED_RESULTS, Boolean.FALSE);
+    }
+
+    public Boolean getInventoryPerNode() throws ConfigurationException {
+        return getProperties().resolveBooleanProperty(AnsibleDescribable.ANSIBLE_INVENTORY_PER_NODE, Boolean.FALSE);
+    }
+
+    public Boolean getInventoryScript() throws ConfigurationException {
+        return getProperties().resolveBooleanProperty(AnsibleDescribable.ANSIBLE_INVENTORY_SCRIPT, Boolean.FALSE);
+    }
+
+    public Integer getOutputBuffer() throws ConfigurationException {
+        Integer lines = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_OUTPUT_BUFFER, Integer.valueOf(AnsibleOutputBuffer.DEFAULT_CAPACITY));
+        if (lines < 0) {
+            throw new ConfigurationException("Output buffer can't be negative, got " + lines);
+        }
+        return lines;
+    }
+
+    public Boolean getRawOutput() throws ConfigurationException {
+        return getProperties().resolveBooleanProperty(AnsibleDescribable.ANSIBLE_RAW_OUTPUT, Boolean.FALSE);
+    }
+
+    public Integer getSshControlPersist() throws ConfigurationException {
+        Integer persist = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_SSH_CONTROL_PERSIST, Integer.valueOf(0));
+        if (persist < 0) {
+            throw new ConfigurationException("SSH control persist can't be negative, got " + persist);
+        }
+        return persist;
+    }
+
+    public Integer getSshControlMax() throws ConfigurationException {
+        Integer max = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_SSH_CONTROL_MAX,
+                Integer.valueOf(AnsibleDescribable.DEFAULT_ANSIBLE_SSH_CONTROL_MAX));
+        if (max < 1) {
+            throw new ConfigurationException("SSH shared connections must be positive, got " + max);
+        }
+        return max;
+    }
+
+    public Integer getSshAgentTtl() throws ConfigurationException {
+        Integer ttl = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_SSH_AGENT_TTL,
+                Integer.valueOf(AnsibleDescribable.DEFAULT_ANSIBLE_SSH_AGENT_TTL));
+        if (ttl < 0) {
+            throw new ConfigurationException("ssh-agent idle time can't be negative, got " + ttl);
+        }
+        return ttl;
+    }
+
+    public Boolean getSecretPipes() throws ConfigurationException {
+        return getProperties().resolveBooleanProperty(AnsibleDescribable.ANSIBLE_SECRET_PIPES, Boolean.FALSE);
+    }
+
+    public Integer getWorkspaceSlots() throws ConfigurationException {
+        Integer slots = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_WORKSPACE_SLOTS,
+                Integer.valueOf(AnsibleWorkspacePool.DEFAULT_SLOTS));
+        if (slots < 0) {
+            throw new ConfigurationException("Workspaces can't be negative, got " + slots);
+        }
+        return slots;
+    }
+
+    public Integer getWorkspaceQuota() throws ConfigurationException {
+        Integer quota = getProperties().resolveIntProperty(AnsibleDescribable.ANSIBLE_WORKSPACE_QUOTA,
+                Integer.valueOf(AnsibleWorkspacePool.DEFAULT_QUOTA));
+        if (quota < 0) {
+            throw new ConfigurationException("Workspace cleanup quota can't be negative, got " + quota);
+        }
+        return quota;
+    }
+
+    public OutputOverflow getOutputOverflow() throws ConfigurationException {
+        String overflow = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_OUTPUT_OVERFLOW, null);
+        if (overflow == null || overflow.trim().isEmpty()) {
+            return OutputOverflow.block;
+        }
+        try {
+            return OutputOverflow.fromValue(overflow.trim());
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException(e.getMessage());
+        }
+    }
+
+    public List<String> getInventoryGroupBy() throws ConfigurationException {
+        String groupBy = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_INVENTORY_GROUP_BY, null);
+        if (groupBy == null || groupBy.trim().isEmpty()) {
+            return AnsibleInventoryBuilder.DEFAULT_GROUP_BY;
+        }
+        List<String> attributes = new ArrayList<>();
+        for (String attribute : groupBy.split(",")) {
+            if (!attribute.trim().isEmpty()) {
+                attributes.add(attribute.trim());
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Set the node a node step runs on, a generated inventory only holds this node if ansible-inventory-per-node is set.
+     */
+    public AnsibleRunnerBuilder inventoryNode(INodeEntry node) {
+        this.inventoryNode = node;
+        return this;
+    }
+
+    public AnsibleRunner buildAnsibleRunner() throws ConfigurationException {
+        boolean built = false;
+        try {
+            AnsibleRunner runner = configureAnsibleRunner();
+            built = true;
+            return runner;
+        } finally {
+            if (!built) {
+                // a getter failed after the inventory was acquired, nobody would release it
+                cleanupTempFiles();
+            }
+        }
+    }
+
+    private AnsibleRunner configureAnsibleRunner() throws ConfigurationException {
 
         AnsibleRunner runner = null;
 
@@ -795,19 +794,32 @@ public class AnsibleRunnerBuilder {
         		runner = AnsibleRunner.playbookInline(playbook);
         } else if ((module  = getModule()) != null) {
             runner = AnsibleRunner.adHoc(module, getModuleArgs());
+            runner.workerPool(getWorkerPool());
         } else {
             throw new ConfigurationException("Missing module or playbook job arguments");
         }
 
+        // the output is written from other threads, bind it to the log of the execution now
+        Listener log = ListenerFactory.getListener(context.getExecutionListener());
+        runner.listener(log);
+        runner.structuredResults(getStructuredResults());
+        runner.outputBuffer(getOutputBuffer(), getOutputOverflow());
+        runner.rawOutput(getRawOutput());
+        runner.workspacePool(getWorkspaceSlots(), getWorkspaceQuota());
+
+        // identifies the credentials of the run, ssh masters are only shared by runs using the same
+        String sshCredential = "";
         final AuthenticationType authType = getSshAuthenticationType();
         if (AuthenticationType.privateKey == authType) {
              final String privateKey = getSshPrivateKey();
              if (privateKey != null) {
                 runner = runner.sshPrivateKey(privateKey);
+                sshCredential = "key:" + privateKey;
              }
 
              if(getUseSshAgent()){
                  runner.sshUseAgent(true);
+                 runner.sshAgentPoolTtl(getSshAgentTtl());
 
                  String passphraseOption = getPassphrase();
                  runner.sshPassphrase(passphraseOption);
@@ -819,6 +831,17 @@ public class AnsibleRunnerBuilder {
             final String password = getSshPassword();
             if (password != null) {
                 runner = runner.sshUsePassword(Boolean.TRUE).sshPass(password);
+                sshCredential = "password:" + password;
+            }
+        }
+
+        // share ssh connections between runs
+        Integer controlPersist = getSshControlPersist();
+        if (controlPersist > 0) {
+            try {
+                runner = runner.options(AnsibleSshConnections.getEnvironment(getFrameworkProject(), sshCredential, controlPersist, getSshControlMax(), log));
+            } catch (IOException e) {
+                System.out.println("[warn] Could not set up SSH connection sharing: " + e.getMessage());
             }
         }
 
@@ -832,6 +855,9 @@ public class AnsibleRunnerBuilder {
         if (inventory != null) {
             runner = runner.setInventory(inventory);
         }
+        if (inventoryUrl != null) {
+            runner = runner.options(Collections.singletonMap(AnsibleInventoryServer.URL_ENV, inventoryUrl));
+        }
 
         String limit = getLimit();
         if (limit != null) {
@@ -865,6 +891,7 @@ public class AnsibleRunnerBuilder {
         String vault = getVaultKey();
         if (vault != null) {
             runner = runner.vaultPass(vault);
+            runner.secretPipes(getSecretPipes());
         }
 
         Integer timeout = getSSHTimeout();
@@ -919,9 +946,24 @@ public class AnsibleRunnerBuilder {
     }
 
     public INodeEntry getNode() {
+        if (node != null) {
+            return node;
+        }
         return nodes.size() == 1 ? nodes.iterator().next() : null;
     }
 
+    /**
+     * Builder running the same command for several nodes at once,
+     * node attributes are still resolved from the node of this builder.
+     */
+    AnsibleRunnerBuilder forNodes(Collection<INodeEntry> batchNodes, Map<String, Object> configuration) {
+        AnsibleRunnerBuilder builder = new AnsibleRunnerBuilder(context, framework);
+        builder.jobConf = configuration;
+        builder.nodes = batchNodes;
+        builder.node = getNode();
+        return builder;
+    }
+
     public String getFrameworkProject() {
         return frameworkProject;
     }
@@ -930,25 +972,38 @@ public class AnsibleRunnerBuilder {
         return jobConf;
     }
 
+    /**
+     * Properties of the project, node and job configuration of this builder, each one is resolved once.
+     */
+    public PropertySnapshot getProperties() {
+        if (properties == null) {
+            properties = new PropertySnapshot(getFrameworkProject(), getFramework(), getNode(), getjobConf());
+        }
+        return properties;
+    }
+
     public void cleanupTempFiles() {
-        for (File temp : tempFiles) {
-            if (!getDebug()) {
+        // temp files are kept for debugging
+        if (!getDebug()) {
+            for (File temp : tempFiles) {
                 temp.delete();
             }
         }
         tempFiles.clear();
+        // generated inventories are shared with other runs on the same nodes
+        for (File inventory : inventories) {
+            AnsibleInventoryBuilder.releaseInventory(inventory);
+        }
+        inventories.clear();
+        for (String url : inventoryUrls) {
+            AnsibleInventoryServer.release(url);
+        }
+        inventoryUrls.clear();
     }
 
     public Boolean getUseSshAgent() {
         Boolean useAgent = false;
-        String sAgent = PropertyResolver.resolveProperty(
-                AnsibleDescribable.ANSIBLE_SSH_USE_AGENT,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-        );
+        String sAgent = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_USE_AGENT, null);
 
         if (null != sAgent) {
             useAgent = Boolean.parseBoolean(sAgent);
@@ -959,14 +1014,7 @@ public class AnsibleRunnerBuilder {
     String getPassphrase() throws ConfigurationException {
         //look for option values first
         //typically jobs use secure options to dynamically setup the ssh password
-        final String passphraseOption = PropertyResolver.resolveProperty(
-                AnsibleDescribable.ANSIBLE_SSH_PASSPHRASE_OPTION,
-                AnsibleDescribable.DEFAULT_ANSIBLE_SSH_PASSPHRASE_OPTION,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-        );
+        final String passphraseOption = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_PASSPHRASE_OPTION, AnsibleDescribable.DEFAULT_ANSIBLE_SSH_PASSPHRASE_OPTION);
         String sshPassword = PropertyResolver.evaluateSecureOption(passphraseOption, getContext());
 
         if(null!=sshPassword){
@@ -984,14 +1032,7 @@ public class AnsibleRunnerBuilder {
 
     public String getPassphraseStoragePath() throws ConfigurationException {
 
-        String storagePath = PropertyResolver.resolveProperty(
-                AnsibleDescribable.ANSIBLE_SSH_PASSPHRASE,
-                null,
-                getFrameworkProject(),
-                getFramework(),
-                getNode(),
-                getjobConf()
-        );
+        String storagePath = getProperties().resolveProperty(AnsibleDescribable.ANSIBLE_SSH_PASSPHRASE, null);
 
         if(null!=storagePath) {
             //expand properties in path
@@ -999,13 +1040,8 @@ public class AnsibleRunnerBuilder {
                 storagePath = DataContextUtils.replaceDataReferences(storagePath, context.getDataContext());
             }
 
-            Path path = PathUtil.asPath(storagePath);
             try {
-                ResourceMeta contents = context.getStorageTree().getResource(path)
-                        .getContents();
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                contents.writeContent(byteArrayOutputStream);
-                return new String(byteArrayOutputStream.toByteArray());
+                return readSecret(storagePath);
             } catch (StorageException e) {
                 throw new ConfigurationException("Failed to read the ssh Passphrase for " +
                         "storage path: " + storagePath + ": " + e.getMessage());
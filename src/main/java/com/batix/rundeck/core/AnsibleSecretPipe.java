@@ -0,0 +1,209 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands a secret to Ansible through a named pipe, so it is never written to disk.
+ *
+ * The pipe is served by a reactor thread: the first reader opening it gets the whole secret once, then
+ * the pipe is removed. Ansible reads the vault password once per run, and only from regular files or
+ * scripts, {@link #getVaultClient()} is a script printing the secret of the pipe named by
+ * {@link #VAULT_PIPE_ENV}.
+ */
+class AnsibleSecretPipe {
+
+  static final String VAULT_PIPE_ENV = "RUNDECK_ANSIBLE_VAULT_PIPE";
+
+  // seconds to wait for mkfifo
+  private static final int MKFIFO_TIMEOUT = 10;
+
+  private static final AtomicInteger count = new AtomicInteger();
+  private static Path directory;
+  private static Path vaultClient;
+  private static boolean unsupported = false;
+
+  private final Path fifo;
+  private final byte[] secret;
+  private final CountDownLatch served = new CountDownLatch(1);
+  private volatile boolean closed = false;
+
+  private AnsibleSecretPipe(Path fifo, byte[] secret) {
+    this.fifo = fifo;
+    this.secret = secret;
+  }
+
+  /**
+   * Create a pipe serving the secret until it's closed.
+   * @return the pipe, null if named pipes can't be used here
+   */
+  static AnsibleSecretPipe open(String name, String secret) {
+    Path fifo;
+    try {
+      fifo = mkfifo(name);
+    } catch (IOException e) {
+      System.out.println("[warn] Could not create a pipe for the " + name + ", using a temporary file: " + e.getMessage());
+      return null;
+    }
+    if (fifo == null) {
+      return null;
+    }
+
+    final AnsibleSecretPipe pipe = new AnsibleSecretPipe(fifo, secret.getBytes(Logging.UTF_8));
+    AnsibleProcessReactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        pipe.serve();
+      }
+    });
+    return pipe;
+  }
+
+  Path getPath() {
+    return fifo;
+  }
+
+  private void serve() {
+    try {
+      OutputStream out;
+      try {
+        // blocks until the reader opens the pipe, fails once it's removed
+        out = Files.newOutputStream(fifo, StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        return;
+      }
+      try {
+        if (!closed) {
+          out.write(secret);
+        }
+      } catch (IOException e) {
+        // the reader went away, Ansible reports the missing password itself
+      } finally {
+        try {
+          // the reader sees the end of the secret
+          out.close();
+        } catch (IOException e) {
+          // nothing was read
+        }
+      }
+      // opening the pipe again would write the secret again, or block a later reader for good
+      try {
+        Files.deleteIfExists(fifo);
+      } catch (IOException e) {
+        // removed by close()
+      }
+    } finally {
+      served.countDown();
+    }
+  }
+
+  /**
+   * Stop serving the secret and remove the pipe.
+   */
+  void close() {
+    closed = true;
+    try {
+      while (served.getCount() > 0 && Files.exists(fifo)) {
+        // opening for reading and writing doesn't block, and lets a waiting writer through
+        RandomAccessFile unblock = new RandomAccessFile(fifo.toFile(), "rw");
+        unblock.close();
+        served.await(100, TimeUnit.MILLISECONDS);
+      }
+    } catch (IOException e) {
+      // gone already
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      Files.deleteIfExists(fifo);
+    } catch (IOException e) {
+      fifo.toFile().deleteOnExit();
+    }
+    Arrays.fill(secret, (byte) 0);
+  }
+
+  private static Path mkfifo(String name) throws IOException {
+    Path dir = getDirectory();
+    if (dir == null) {
+      return null;
+    }
+    Path fifo = dir.resolve(name + "-" + count.incrementAndGet());
+    Process process;
+    try {
+      process = new ProcessBuilder("mkfifo", "-m", "600", fifo.toString())
+          .redirectErrorStream(true)
+          .start();
+    } catch (IOException e) {
+      // no mkfifo, don't try again
+      synchronized (AnsibleSecretPipe.class) {
+        unsupported = true;
+      }
+      throw e;
+    }
+    try {
+      process.getOutputStream().close();
+      if (!process.waitFor(MKFIFO_TIMEOUT, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+        throw new IOException("mkfifo timed out");
+      }
+      process.getInputStream().close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("mkfifo interrupted", e);
+    }
+    if (process.exitValue() != 0) {
+      throw new IOException("mkfifo returned " + process.exitValue());
+    }
+    return fifo;
+  }
+
+  /**
+   * @return the directory of the pipes, only accessible by the rundeck user, null if pipes can't be used
+   */
+  private static synchronized Path getDirectory() {
+    if (unsupported) {
+      return null;
+    }
+    if (directory == null || !Files.isDirectory(directory)) {
+      try {
+        directory = Files.createTempDirectory("ansible-secrets");
+        vaultClient = null;
+      } catch (IOException | UnsupportedOperationException e) {
+        System.out.println("[warn] Secret pipes are not supported here, using temporary files: " + e.getMessage());
+        unsupported = true;
+        return null;
+      }
+    }
+    return directory;
+  }
+
+  /**
+   * @return a vault password script printing the secret of the pipe named by {@link #VAULT_PIPE_ENV}
+   */
+  static synchronized Path getVaultClient() throws IOException {
+    Path dir = getDirectory();
+    if (dir == null) {
+      throw new IOException("secret pipes are not supported");
+    }
+    if (vaultClient == null || !Files.exists(vaultClient)) {
+      Path script = dir.resolve("vault-pass.sh");
+      Files.write(script, ("#!/bin/sh\nexec cat \"$" + VAULT_PIPE_ENV + "\"\n").getBytes(Logging.UTF_8));
+      Files.setPosixFilePermissions(script, EnumSet.of(
+          PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE));
+      vaultClient = script;
+    }
+    return vaultClient;
+  }
+}
@@ -0,0 +1,252 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Logging;
+import com.dtolabs.rundeck.core.utils.SSHAgentProcess;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived ssh-agents, one per private key and passphrase, shared by all runs using both.
+ *
+ * The key is added to its agent once, so its passphrase is only unlocked by the first run. The passphrase
+ * is part of the pool key: a run given a wrong passphrase, or none, gets an agent of its own and ssh-add
+ * fails for it as it would without the pool. Agents are reference counted, an agent nobody uses is
+ * stopped after its idle time to live.
+ */
+public class AnsibleSshAgentPool {
+
+  private static class PooledAgent {
+    final String fingerprint;
+    SSHAgentProcess agent;
+    boolean loaded = false;
+    int references = 0;
+    // bumped on every release, so an older idle check leaves the agent alone
+    long generation = 0;
+
+    PooledAgent(String fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+  }
+
+  /**
+   * An agent holding the key, give it back with {@link #release()}.
+   */
+  public static class Lease {
+    private final PooledAgent pooled;
+    private final String socketPath;
+    private final int ttl;
+    private boolean released = false;
+
+    private Lease(PooledAgent pooled, String socketPath, int ttl) {
+      this.pooled = pooled;
+      this.socketPath = socketPath;
+      this.ttl = ttl;
+    }
+
+    /**
+     * @return the socket of the agent, to be used as SSH_AUTH_SOCK
+     */
+    public String getSocketPath() {
+      return socketPath;
+    }
+
+    public synchronized void release() {
+      if (!released) {
+        released = true;
+        AnsibleSshAgentPool.release(pooled, ttl);
+      }
+    }
+  }
+
+  // fingerprint of key and passphrase -> agent
+  private static final Map<String, PooledAgent> agents = new HashMap<>();
+  private static boolean hookAdded = false;
+
+  /**
+   * Get an agent holding the private key, starting it and adding the key if there is none yet.
+   * @param ttl  seconds to keep the agent after its last use
+   */
+  public static Lease acquire(String privateKey, String passphrase, int ttl, boolean debug) throws AnsibleException {
+    String fingerprint = fingerprint(privateKey, passphrase);
+
+    PooledAgent pooled;
+    synchronized (agents) {
+      pooled = agents.get(fingerprint);
+      if (pooled == null) {
+        pooled = new PooledAgent(fingerprint);
+        agents.put(fingerprint, pooled);
+      }
+      pooled.references++;
+      addShutdownHook();
+    }
+
+    // concurrent runs with the same key wait for the key to be added once
+    try {
+      synchronized (pooled) {
+        if (pooled.agent != null && !new File(pooled.agent.getSocketPath()).exists()) {
+          // the agent is gone, start over
+          pooled.agent.stopAgent();
+          pooled.agent = null;
+          pooled.loaded = false;
+        }
+        if (pooled.agent == null) {
+          pooled.agent = new SSHAgentProcess(0);
+        }
+        if (!pooled.loaded) {
+          addKey(pooled.agent, privateKey, passphrase, debug);
+          pooled.loaded = true;
+        }
+        return new Lease(pooled, pooled.agent.getSocketPath(), ttl);
+      }
+    } catch (AnsibleException | RuntimeException e) {
+      release(pooled, 0);
+      throw e;
+    }
+  }
+
+  private static void release(final PooledAgent pooled, int ttl) {
+    final long generation;
+    synchronized (agents) {
+      pooled.references--;
+      pooled.generation++;
+      if (pooled.references > 0) {
+        return;
+      }
+      generation = pooled.generation;
+    }
+
+    Runnable stop = new Runnable() {
+      @Override
+      public void run() {
+        synchronized (agents) {
+          if (pooled.references > 0 || pooled.generation != generation) {
+            return;
+          }
+          agents.remove(pooled.fingerprint);
+        }
+        synchronized (pooled) {
+          if (pooled.agent != null) {
+            pooled.agent.stopAgent();
+            pooled.agent = null;
+            pooled.loaded = false;
+          }
+        }
+      }
+    };
+    if (ttl > 0) {
+      AnsibleProcessReactor.schedule(stop, ttl, TimeUnit.SECONDS);
+    } else {
+      stop.run();
+    }
+  }
+
+  private static void addKey(SSHAgentProcess agent, String privateKey, String passphrase, boolean debug)
+      throws AnsibleException {
+    List<String> procArgs = new ArrayList<>();
+    procArgs.add("/usr/bin/ssh-add");
+    Path keyFile = null;
+    Process proc = null;
+    try {
+      // the key file is only needed while it's added, ssh-add reads the passphrase from stdin
+      keyFile = Files.createTempFile("ansible-runner", "id_rsa");
+      Files.setPosixFilePermissions(keyFile, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+      Files.write(keyFile, privateKey.getBytes(Logging.UTF_8));
+      procArgs.add(keyFile.toString());
+
+      if (debug) {
+        System.out.println(" registerKeySshAgent: " + procArgs.toString());
+      }
+
+      ProcessBuilder processBuilder = new ProcessBuilder().command(procArgs).redirectErrorStream(true);
+      processBuilder.environment().put("SSH_AUTH_SOCK", agent.getSocketPath());
+      proc = processBuilder.start();
+
+      try (OutputStreamWriter stdinw = new OutputStreamWriter(proc.getOutputStream(), Logging.UTF_8)) {
+        if (passphrase != null && passphrase.length() > 0) {
+          stdinw.write(passphrase + "\n");
+        }
+      } catch (IOException e) {
+        if (debug) {
+          System.out.println("not prompt enable");
+        }
+      }
+
+      int exitCode = proc.waitFor();
+      if (exitCode != 0) {
+        throw new AnsibleException("ERROR: ssh-add returns with non zero code:" + procArgs.toString(),
+            AnsibleException.AnsibleFailureReason.AnsibleNonZero);
+      }
+    } catch (IOException e) {
+      throw new AnsibleException("ERROR: error adding private key to ssh-agent." + procArgs.toString(), e, AnsibleException.AnsibleFailureReason.Unknown);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AnsibleException("ERROR: error adding private key to ssh-agen Interrupted.", e, AnsibleException.AnsibleFailureReason.Interrupted);
+    } finally {
+      if (proc != null) {
+        proc.destroy();
+      }
+      if (keyFile != null) {
+        try {
+          Files.deleteIfExists(keyFile);
+        } catch (IOException e) {
+          keyFile.toFile().deleteOnExit();
+        }
+      }
+    }
+  }
+
+  private static String fingerprint(String privateKey, String passphrase) throws AnsibleException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(privateKey.trim().getBytes(Logging.UTF_8));
+      // the key never contains a NUL, so key and passphrase can't be shifted against each other
+      digest.update((byte) 0);
+      if (passphrase != null) {
+        digest.update(passphrase.getBytes(Logging.UTF_8));
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AnsibleException("ERROR: can't fingerprint the private key: " + e.getMessage(), e, AnsibleException.AnsibleFailureReason.Unknown);
+    }
+  }
+
+  // guarded by agents
+  private static void addShutdownHook() {
+    if (hookAdded) {
+      return;
+    }
+    hookAdded = true;
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        List<PooledAgent> pooled;
+        synchronized (agents) {
+          pooled = new ArrayList<>(agents.values());
+          agents.clear();
+        }
+        for (PooledAgent agent : pooled) {
+          if (agent.agent != null) {
+            agent.agent.stopAgent();
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,199 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares SSH connections between Ansible runs, so only the first run on a host pays for the handshake.
+ *
+ * Each project gets a directory owned by the plugin, with a ControlPath directory per credential in it,
+ * and runs are told to keep their ssh master connections there for a while after they're last used
+ * (ControlPersist). Masters are found by later runs on the same host and user with the same credential,
+ * also of other executions. A run never uses a master authenticated with a key or password it wasn't
+ * given itself. The directories are swept now and then: sockets left behind by masters that are gone
+ * are removed, and the oldest masters of a project are closed if there are more than allowed.
+ */
+public class AnsibleSshConnections {
+
+  // seconds a sweep of a project's masters may wait for ssh
+  private static final int SSH_TIMEOUT = 10;
+  // sweep at most this often, in milliseconds
+  private static final long MAX_SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+  private static class ProjectConnections {
+    final Path directory;
+    long lastSweep = 0;
+    boolean sweeping = false;
+
+    ProjectConnections(Path directory) {
+      this.directory = directory;
+    }
+  }
+
+  private static final Map<String, ProjectConnections> projects = new HashMap<>();
+  private static Path root;
+
+  /**
+   * Environment making Ansible share its SSH connections for the project.
+   * @param credential  the private key or password of the run, empty if ssh uses its own defaults
+   * @param persist  seconds a master connection stays open after it was last used
+   * @param maxMasters  most masters kept open for the project
+   * @param log  receives the warnings of a sweep, which runs on a shared thread
+   */
+  public static Map<String, String> getEnvironment(String project, String credential, int persist, int maxMasters,
+      final Listener log) throws IOException {
+    final ProjectConnections connections = getConnections(project);
+    // only a fingerprint of the credential ends up in the path
+    Path directory = Files.createDirectories(connections.directory.resolve(shortHash(credential, 8)));
+
+    boolean sweep = false;
+    long now = System.currentTimeMillis();
+    synchronized (connections) {
+      long interval = Math.min(MAX_SWEEP_INTERVAL, TimeUnit.SECONDS.toMillis(persist));
+      if (!connections.sweeping && now - connections.lastSweep >= interval) {
+        connections.sweeping = true;
+        connections.lastSweep = now;
+        sweep = true;
+      }
+    }
+    if (sweep) {
+      final int max = maxMasters;
+      AnsibleProcessReactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sweep(connections.directory, max, log);
+          } finally {
+            synchronized (connections) {
+              connections.sweeping = false;
+            }
+          }
+        }
+      });
+    }
+
+    Map<String, String> environment = new HashMap<>();
+    // the same options Ansible uses by default, with the plugin's persist time
+    environment.put("ANSIBLE_SSH_ARGS", "-C -o ControlMaster=auto -o ControlPersist=" + persist + "s");
+    environment.put("ANSIBLE_SSH_CONTROL_PATH_DIR", directory.toString());
+    return environment;
+  }
+
+  private static synchronized ProjectConnections getConnections(String project) throws IOException {
+    if (root == null || !Files.isDirectory(root)) {
+      // only readable by the rundeck user, and short, sockets paths are limited to about 100 characters
+      root = Files.createTempDirectory("ansible-cp");
+      projects.clear();
+    }
+    ProjectConnections connections = projects.get(project);
+    if (connections == null || !Files.isDirectory(connections.directory)) {
+      connections = new ProjectConnections(Files.createDirectories(root.resolve(shortHash(project, 4))));
+      projects.put(project, connections);
+    }
+    return connections;
+  }
+
+  /**
+   * @param bytes  bytes of the SHA-256 hash to use, socket paths are limited to about 100 characters
+   */
+  private static String shortHash(String value, int bytes) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(String.valueOf(value).getBytes(Charset.forName("UTF-8")));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < bytes; i++) {
+        hex.append(String.format("%02x", hash[i]));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has SHA-256, a plain hash code would give credentials away
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Remove stale sockets, and close the oldest masters of a project while there are more than allowed.
+   * @param directory  the project's directory, holding a ControlPath directory per credential
+   */
+  static void sweep(Path directory, int maxMasters, Listener log) {
+    File[] credentials = directory.toFile().listFiles();
+    if (credentials == null) {
+      return;
+    }
+    List<File> sockets = new ArrayList<>();
+    for (File credential : credentials) {
+      File[] files = credential.listFiles();
+      if (files != null) {
+        Collections.addAll(sockets, files);
+      }
+    }
+
+    List<File> alive = new ArrayList<>();
+    long recent = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(SSH_TIMEOUT);
+    for (File socket : sockets) {
+      if (control(socket, "check")) {
+        alive.add(socket);
+      } else if (socket.lastModified() > recent) {
+        // a master may just be setting up its socket
+        continue;
+      } else if (!socket.delete()) {
+        log.output("[warn] Could not remove stale ssh control socket " + socket);
+      }
+    }
+
+    if (alive.size() > maxMasters) {
+      // sockets are created with their master, the oldest ones go first
+      Collections.sort(alive, new Comparator<File>() {
+        @Override
+        public int compare(File a, File b) {
+          return Long.compare(a.lastModified(), b.lastModified());
+        }
+      });
+      for (File socket : alive.subList(0, alive.size() - maxMasters)) {
+        control(socket, "exit");
+      }
+    }
+  }
+
+  /**
+   * Send a control command to the master listening on a socket.
+   * @return true if the master handled it, false if there is none
+   */
+  private static boolean control(File socket, String command) {
+    try {
+      // the host name isn't used with an explicit control path
+      Process ssh = new ProcessBuilder("ssh", "-o", "ControlPath=" + socket.getAbsolutePath(), "-O", command, "rundeck")
+          .redirectErrorStream(true)
+          .start();
+      // ssh prints a line at most, it fits into the pipe
+      ssh.getOutputStream().close();
+      if (!ssh.waitFor(SSH_TIMEOUT, TimeUnit.SECONDS)) {
+        ssh.destroyForcibly();
+        // can't tell, keep it
+        return true;
+      }
+      ssh.getInputStream().close();
+      return ssh.exitValue() == 0;
+    } catch (IOException e) {
+      // no ssh client, nothing to check with
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return true;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+import com.batix.rundeck.utils.Logging;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A warm Python process running Ansible's ad-hoc CLI in-process, see ansible-worker.py for the protocol.
+ * A worker runs one task at a time, {@link AnsibleWorkerPool} takes care of handing them out.
+ */
+class AnsibleWorker {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Process proc;
+  private final BufferedReader frames;
+  private final Writer requests;
+  private final Thread errthread;
+  private final JsonParser parser = new JsonParser();
+
+  // receives the worker's stderr while a task is running
+  private volatile Listener listener;
+
+  private long nextId = 1;
+  private int tasks = 0;
+
+  AnsibleWorker(List<String> command, Map<String, String> environment) throws IOException {
+    ProcessBuilder processBuilder = new ProcessBuilder().command(command);
+    processBuilder.environment().putAll(environment);
+    proc = processBuilder.start();
+
+    frames = new BufferedReader(new InputStreamReader(proc.getInputStream(), UTF8));
+    requests = new OutputStreamWriter(proc.getOutputStream(), UTF8);
+
+    errthread = Logging.copyStreamThread(proc.getErrorStream(), new Listener() {
+      @Override
+      public void output(String line) {
+        Listener current = listener;
+        if (current != null) {
+          current.output(line);
+        } else {
+          System.err.println(line);
+        }
+      }
+    });
+    errthread.setDaemon(true);
+    errthread.start();
+
+    JsonObject ready = readFrame();
+    if (ready == null || !ready.has("ready")) {
+      String error = ready != null && ready.has("error") ? ready.get("error").getAsString() : "no handshake";
+      stop();
+      throw new IOException("Ansible worker failed to start: " + error);
+    }
+  }
+
+  /**
+   * Run an ad-hoc command on this worker.
+   * @param args  the ansible command line, starting with the "ansible" executable
+   * @param environment  additional environment for the task, e.g. Rundeck options
+   * @param directory  working directory of the task
+   * @param listener  receives the output lines of the task
+   * @return the exit code Ansible would have returned
+   */
+  int execute(List<String> args, Map<String, String> environment, File directory, Listener listener)
+      throws IOException {
+    long id = nextId++;
+    tasks++;
+
+    JsonObject request = new JsonObject();
+    request.addProperty("id", id);
+    JsonArray argv = new JsonArray();
+    for (String arg : args) {
+      argv.add(arg);
+    }
+    request.add("argv", argv);
+    JsonObject env = new JsonObject();
+    for (Map.Entry<String, String> entry : environment.entrySet()) {
+      env.addProperty(entry.getKey(), entry.getValue());
+    }
+    request.add("env", env);
+    request.addProperty("cwd", directory.getAbsolutePath());
+
+    this.listener = listener;
+    try {
+      requests.write(request.toString());
+      requests.write("\n");
+      requests.flush();
+
+      JsonObject frame;
+      while ((frame = readFrame()) != null) {
+        if (frame.has("line")) {
+          listener.output(frame.get("line").getAsString());
+        } else if (frame.has("rc")) {
+          return frame.get("rc").getAsInt();
+        }
+      }
+      throw new IOException("Ansible worker exited while running a task.");
+    } finally {
+      this.listener = null;
+    }
+  }
+
+  private JsonObject readFrame() throws IOException {
+    String line = frames.readLine();
+    if (line == null) {
+      return null;
+    }
+    try {
+      JsonElement frame = parser.parse(line);
+      if (!frame.isJsonObject()) {
+        throw new IOException("Unexpected output from Ansible worker: " + line);
+      }
+      return frame.getAsJsonObject();
+    } catch (JsonParseException e) {
+      throw new IOException("Unexpected output from Ansible worker: " + line, e);
+    }
+  }
+
+  int getTasks() {
+    return tasks;
+  }
+
+  boolean isAlive() {
+    try {
+      proc.exitValue();
+      return false;
+    } catch (IllegalThreadStateException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Stop the worker and whatever its task started right away, a running {@link #execute} fails.
+   */
+  void kill(Listener log) {
+    AnsibleProcessReactor.killTree(proc, log);
+  }
+
+  void stop() {
+    try {
+      // closing stdin lets the worker finish its loop and exit on its own
+      requests.close();
+    } catch (IOException e) {
+      // the worker is gone already
+    }
+    proc.destroy();
+  }
+}
@@ -0,0 +1,219 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Pool of warm {@link AnsibleWorker} processes, one pool per project.
+ *
+ * Ad-hoc commands dispatched through the pool skip the Python startup, the imports
+ * and the plugin loading a fresh ansible process pays on every run.
+ * Workers are recycled after a configurable number of tasks.
+ */
+public class AnsibleWorkerPool {
+
+  private static final ConcurrentMap<String, AnsibleWorkerPool> pools = new ConcurrentHashMap<>();
+
+  /**
+   * Handle to cancel a command run by {@link #execute}, from any thread.
+   */
+  public static class Task {
+    private boolean cancelled = false;
+    // waiting for a free worker
+    private Thread waiting;
+    private AnsibleWorker worker;
+
+    /**
+     * Stop waiting for a worker, or kill the worker running the command, it's not reused.
+     * @param log  receives the warnings about stopping the worker
+     */
+    public synchronized void cancel(Listener log) {
+      cancelled = true;
+      if (waiting != null) {
+        waiting.interrupt();
+      } else if (worker != null) {
+        worker.kill(log);
+      }
+    }
+
+    private void acquire(Semaphore permits) throws InterruptedException {
+      synchronized (this) {
+        if (cancelled) {
+          throw new InterruptedException("cancelled");
+        }
+        waiting = Thread.currentThread();
+      }
+      boolean acquired = false;
+      try {
+        permits.acquire();
+        acquired = true;
+      } finally {
+        synchronized (this) {
+          waiting = null;
+          if (cancelled && acquired) {
+            // cancelled as a worker got free, the interrupt was meant for the wait
+            Thread.interrupted();
+            permits.release();
+            acquired = false;
+          }
+        }
+      }
+      if (!acquired) {
+        throw new InterruptedException("cancelled");
+      }
+    }
+
+    private synchronized void start(AnsibleWorker worker) throws InterruptedException {
+      if (cancelled) {
+        throw new InterruptedException("cancelled");
+      }
+      this.worker = worker;
+    }
+
+    private synchronized boolean done() {
+      worker = null;
+      return !cancelled;
+    }
+  }
+
+  private static Path workerScript;
+
+  /**
+   * Get the pool of a project, replacing it if its settings changed.
+   * @param project  the Rundeck project
+   * @param python  Python interpreter which has Ansible installed
+   * @param configFile  ANSIBLE_CONFIG for the workers, may be null
+   * @param size  maximum number of concurrent workers
+   * @param maxTasks  number of tasks after which a worker is replaced
+   */
+  public static AnsibleWorkerPool forProject(String project, String python, String configFile, int size, int maxTasks) {
+    while (true) {
+      AnsibleWorkerPool pool = pools.get(project);
+      if (pool != null && pool.matches(python, configFile, size, maxTasks)) {
+        return pool;
+      }
+      AnsibleWorkerPool created = new AnsibleWorkerPool(python, configFile, size, maxTasks);
+      boolean replaced = pool == null ? pools.putIfAbsent(project, created) == null : pools.replace(project, pool, created);
+      if (replaced) {
+        if (pool != null) {
+          pool.shutdown();
+        }
+        return created;
+      }
+    }
+  }
+
+  private static synchronized Path getWorkerScript() throws IOException {
+    if (workerScript == null || !Files.exists(workerScript)) {
+      Path script = Files.createTempFile("ansible-worker", ".py");
+      script.toFile().deleteOnExit();
+      try (InputStream in = AnsibleWorkerPool.class.getClassLoader().getResourceAsStream("ansible-worker.py")) {
+        Files.copy(in, script, StandardCopyOption.REPLACE_EXISTING);
+      }
+      workerScript = script;
+    }
+    return workerScript;
+  }
+
+  private final String python;
+  private final String configFile;
+  private final int size;
+  private final int maxTasks;
+
+  private final Semaphore permits;
+  private final LinkedBlockingDeque<AnsibleWorker> idle = new LinkedBlockingDeque<>();
+  private volatile boolean closed = false;
+
+  private AnsibleWorkerPool(String python, String configFile, int size, int maxTasks) {
+    this.python = python;
+    this.configFile = configFile;
+    this.size = size;
+    this.maxTasks = maxTasks;
+    this.permits = new Semaphore(size, true);
+  }
+
+  private boolean matches(String python, String configFile, int size, int maxTasks) {
+    return this.python.equals(python)
+      && (this.configFile == null ? configFile == null : this.configFile.equals(configFile))
+      && this.size == size
+      && this.maxTasks == maxTasks;
+  }
+
+  /**
+   * Run an ad-hoc command on a worker of this pool, waiting for a free one if needed.
+   * @param task  cancels the command, a cancelled one fails with an InterruptedException or IOException
+   * @return the exit code of the command
+   */
+  public int execute(List<String> args, Map<String, String> environment, File directory, Listener listener, Task task)
+      throws IOException, InterruptedException {
+    task.acquire(permits);
+    AnsibleWorker worker = null;
+    try {
+      worker = idle.pollFirst();
+      while (worker != null && !worker.isAlive()) {
+        worker.stop();
+        worker = idle.pollFirst();
+      }
+      if (worker == null) {
+        worker = startWorker();
+      }
+
+      task.start(worker);
+      int result = worker.execute(args, environment, directory, listener);
+
+      // a killed worker may still have answered
+      if (task.done() && !closed && worker.getTasks() < maxTasks) {
+        idle.offerFirst(worker);
+        if (closed && idle.remove(worker)) {
+          // shut down while handing the worker back
+          worker.stop();
+        }
+        worker = null;
+      }
+      return result;
+    } finally {
+      // a worker which failed, is used up or belongs to a replaced pool is not reused
+      if (worker != null) {
+        worker.stop();
+      }
+      permits.release();
+    }
+  }
+
+  private AnsibleWorker startWorker() throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(python);
+    command.add(getWorkerScript().toFile().getAbsolutePath());
+
+    Map<String, String> environment = new HashMap<>();
+    if (configFile != null && configFile.length() > 0) {
+      environment.put("ANSIBLE_CONFIG", configFile);
+    }
+    return new AnsibleWorker(command, environment);
+  }
+
+  /**
+   * Stop idle workers, busy ones are stopped as soon as their task is done.
+   */
+  public void shutdown() {
+    closed = true;
+    AnsibleWorker worker;
+    while ((worker = idle.pollFirst()) != null) {
+      worker.stop();
+    }
+  }
+}
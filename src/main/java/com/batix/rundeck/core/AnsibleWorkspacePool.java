@@ -0,0 +1,196 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Working directories for Ansible runs, reused instead of creating and deleting one per run.
+ *
+ * A released workspace is emptied by a background janitor and then handed to the next run, up to
+ * the number of idle slots, beyond that it's removed. While the workspaces waiting for the janitor
+ * would take more than the disk quota, estimated from the ones cleaned so far, runs clean their
+ * workspace themselves again.
+ */
+public class AnsibleWorkspacePool {
+
+  public static final int DEFAULT_SLOTS = 16;
+  // megabytes
+  public static final int DEFAULT_QUOTA = 1024;
+
+  /**
+   * A workspace of a run, give it back with {@link #release(Listener)}.
+   */
+  public static class Workspace {
+    private final Path path;
+    private final int slots;
+    private final long quota;
+    private boolean released = false;
+    // for warnings, the janitor runs on shared threads whose System.out may be bound to another execution
+    private Listener log;
+
+    private Workspace(Path path, int slots, long quota) {
+      this.path = path;
+      this.slots = slots;
+      this.quota = quota;
+    }
+
+    public Path getPath() {
+      return path;
+    }
+
+    /**
+     * Hand the workspace back, its contents are removed in the background.
+     * @param log  receives the warnings about removing its contents
+     */
+    public synchronized void release(Listener log) {
+      if (!released) {
+        released = true;
+        this.log = log;
+        AnsibleWorkspacePool.release(this);
+      }
+    }
+
+    /**
+     * Keep the workspace and its contents, it's not used again.
+     */
+    public synchronized void retain() {
+      released = true;
+    }
+  }
+
+  private static final Deque<Path> idle = new ArrayDeque<>();
+  private static final Deque<Workspace> dirty = new ArrayDeque<>();
+  private static Path root;
+  private static int count = 0;
+  private static boolean cleaning = false;
+  // bytes of a cleaned workspace, on average
+  private static long averageSize = 0;
+
+  private static final Runnable janitor = new Runnable() {
+    @Override
+    public void run() {
+      clean();
+    }
+  };
+
+  /**
+   * Get an empty workspace.
+   * @param slots  most idle workspaces kept for later runs
+   * @param quota  megabytes the workspaces waiting to be cleaned may take
+   */
+  public static Workspace acquire(int slots, int quota) throws IOException {
+    long quotaBytes = quota * 1024L * 1024L;
+    synchronized (idle) {
+      while (!idle.isEmpty()) {
+        Path path = idle.pop();
+        // temp directory cleaners may have removed it
+        if (Files.isDirectory(path)) {
+          return new Workspace(path, slots, quotaBytes);
+        }
+      }
+      if (root == null || !Files.isDirectory(root)) {
+        root = Files.createTempDirectory("ansible-workspaces");
+      }
+      Path path = Files.createDirectory(root.resolve("slot-" + (++count)));
+      return new Workspace(path, slots, quotaBytes);
+    }
+  }
+
+  private static void release(Workspace workspace) {
+    if (isEmpty(workspace.path)) {
+      recycle(workspace);
+      return;
+    }
+
+    synchronized (idle) {
+      if ((dirty.size() + 1) * averageSize <= workspace.quota) {
+        dirty.add(workspace);
+        if (!cleaning) {
+          cleaning = true;
+          AnsibleProcessReactor.execute(janitor);
+        }
+        return;
+      }
+    }
+    // over the quota, the run has to wait for it
+    empty(workspace);
+    recycle(workspace);
+  }
+
+  private static void clean() {
+    while (true) {
+      Workspace workspace;
+      synchronized (idle) {
+        workspace = dirty.poll();
+        if (workspace == null) {
+          cleaning = false;
+          return;
+        }
+      }
+      empty(workspace);
+      recycle(workspace);
+    }
+  }
+
+  private static void recycle(Workspace workspace) {
+    synchronized (idle) {
+      if (idle.size() < workspace.slots && isEmpty(workspace.path)) {
+        idle.push(workspace.path);
+        return;
+      }
+    }
+    try {
+      Files.deleteIfExists(workspace.path);
+    } catch (IOException e) {
+      workspace.log.output("[warn] Error deleting workspace " + workspace.path + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Remove the contents of a workspace, keeping the directory.
+   */
+  private static void empty(Workspace workspace) {
+    final Path path = workspace.path;
+    final long[] size = {0};
+    try {
+      Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          size[0] += attrs.size();
+          Files.delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+          if (!dir.equals(path)) {
+            Files.delete(dir);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      workspace.log.output("[warn] Error cleaning workspace " + path + ": " + e.getMessage());
+    }
+    synchronized (idle) {
+      averageSize = averageSize == 0 ? size[0] : (averageSize * 7 + size[0]) / 8;
+    }
+  }
+
+  private static boolean isEmpty(Path path) {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+      return !entries.iterator().hasNext();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
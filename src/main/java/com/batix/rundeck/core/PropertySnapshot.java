@@ -0,0 +1,187 @@
+package com.batix.rundeck.core;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.dtolabs.rundeck.core.common.Framework;
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.IRundeckProject;
+import com.dtolabs.rundeck.core.common.ProjectManager;
+import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
+
+/**
+ * Resolves properties like {@link PropertyResolver}, for one project, node and job configuration,
+ * remembering every result so each property is looked up only once.
+ *
+ * The project properties are read in one go and shared by all snapshots of the project,
+ * until the project configuration is modified.
+ */
+public class PropertySnapshot {
+
+    private static class Resolved {
+        final String value;
+        // false if the default value applies
+        final boolean found;
+
+        Resolved(String value, boolean found) {
+            this.value = value;
+            this.found = found;
+        }
+    }
+
+    private static class ProjectProperties {
+        final Date modified;
+        final Map<String, String> properties;
+
+        ProjectProperties(Date modified, Map<String, String> properties) {
+            this.modified = modified;
+            this.properties = properties;
+        }
+    }
+
+    private static final Resolved NOT_FOUND = new Resolved(null, false);
+
+    // project name -> properties, as of the last modification time of its configuration
+    private static final Map<String, ProjectProperties> projects = new ConcurrentHashMap<>();
+
+    private final String frameworkProject;
+    private final Framework framework;
+    private final INodeEntry node;
+    private final Map<String, Object> jobConf;
+    private Map<String, String> projectProperties;
+    private boolean projectLoaded = false;
+    private final Map<String, Resolved> resolved = new HashMap<>();
+
+    public PropertySnapshot(
+            final String frameworkProject,
+            final Framework framework,
+            final INodeEntry node,
+            final Map<String, Object> jobConf
+    )
+    {
+        this.frameworkProject = frameworkProject;
+        this.framework = framework;
+        this.node = node;
+        this.jobConf = jobConf;
+    }
+
+    /**
+     * @see PropertyResolver#resolveProperty(String, String, String, Framework, INodeEntry, Map)
+     */
+    public synchronized String resolveProperty(final String attribute, final String defaultValue) {
+        Resolved value = resolved.get(attribute);
+        if (value == null) {
+            value = lookup(attribute);
+            resolved.put(attribute, value);
+        }
+        return value.found ? value.value : defaultValue;
+    }
+
+    public Integer resolveIntProperty(final String attribute, final Integer defaultValue) throws ConfigurationException {
+        Integer value = defaultValue;
+        final String string = resolveProperty(attribute, null);
+        if (null != string) {
+            try {
+                value = Integer.parseInt(string);
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException("Can't parse attribute :" + attribute + ", value: " +
+                        string + " Expected Integer. : " + e.getMessage());
+            }
+        }
+        return value;
+    }
+
+    public Long resolveLongProperty(final String attribute, final Long defaultValue) throws ConfigurationException {
+        Long value = defaultValue;
+        final String string = resolveProperty(attribute, null);
+        if (null != string) {
+            try {
+                value = Long.parseLong(string);
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException("Can't parse attribute :" + attribute + ", value: " +
+                        string + " Expected Long. : " + e.getMessage());
+            }
+        }
+        return value;
+    }
+
+    public Boolean resolveBooleanProperty(final String attribute, final Boolean defaultValue) throws ConfigurationException {
+        final String string = resolveProperty(attribute, null);
+        if (null != string) {
+            return Boolean.parseBoolean(string);
+        }
+        return defaultValue;
+    }
+
+    // same order as PropertyResolver.resolveProperty
+    private Resolved lookup(final String attribute) {
+        if (jobConf != null && jobConf.containsKey(attribute)) {
+            return new Resolved((String) jobConf.get(attribute), true);
+        }
+        if (node != null && null != node.getAttributes().get(attribute)) {
+            return new Resolved(node.getAttributes().get(attribute), true);
+        }
+
+        final String projectKey = AnsibleDescribable.PROJ_PROP_PREFIX + attribute;
+        Map<String, String> project = getProjectProperties();
+        if (project != null) {
+            String value = project.get(projectKey);
+            if (value != null && !"".equals(value)) {
+                return new Resolved(value, true);
+            }
+        } else if (framework.hasProjectProperty(projectKey, frameworkProject)
+                && !"".equals(framework.getProjectProperty(frameworkProject, projectKey))) {
+            return new Resolved(framework.getProjectProperty(frameworkProject, projectKey), true);
+        }
+
+        if (framework.hasProperty(AnsibleDescribable.FWK_PROP_PREFIX + attribute)) {
+            return new Resolved(framework.getProperty(AnsibleDescribable.FWK_PROP_PREFIX + attribute), true);
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return the project properties, null if they can't be read at once and have to be looked up one by one
+     */
+    private Map<String, String> getProjectProperties() {
+        if (!projectLoaded) {
+            projectLoaded = true;
+            projectProperties = loadProjectProperties(framework, frameworkProject);
+        }
+        return projectProperties;
+    }
+
+    private static Map<String, String> loadProjectProperties(final Framework framework, final String frameworkProject) {
+        if (framework == null || frameworkProject == null) {
+            return null;
+        }
+        try {
+            ProjectManager manager = framework.getFrameworkProjectMgr();
+            IRundeckProject project = manager != null ? manager.getFrameworkProject(frameworkProject) : null;
+            if (project == null) {
+                return null;
+            }
+            Date modified = project.getConfigLastModifiedTime();
+            ProjectProperties cached = projects.get(frameworkProject);
+            if (cached != null && modified != null && modified.equals(cached.modified)) {
+                return cached.properties;
+            }
+
+            Map<String, String> properties = project.getProperties();
+            if (properties == null) {
+                return null;
+            }
+            properties = Collections.unmodifiableMap(new HashMap<>(properties));
+            if (modified != null) {
+                projects.put(frameworkProject, new ProjectProperties(modified, properties));
+            }
+            return properties;
+        } catch (RuntimeException e) {
+            // not every project implementation can list its properties, look them up one by one
+            return null;
+        }
+    }
+}
@@ -49,6 +49,10 @@ public class AnsibleFileCopier implements FileCopier, AnsibleDescribable {
         builder.property(BECOME_PASSWORD_STORAGE_PROP);
         builder.property(VAULT_KEY_FILE_PROP);
         builder.property(VAULT_KEY_STORAGE_PROP);
+        builder.property(WORKER_POOL_PROP);
+        builder.property(WORKER_POOL_SIZE_PROP);
+        builder.property(WORKER_MAX_TASKS_PROP);
+        builder.property(WORKER_PYTHON_PROP);
         builder.mapping(ANSIBLE_CONFIG_FILE_PATH,PROJ_PROP_PREFIX + ANSIBLE_CONFIG_FILE_PATH);
         builder.frameworkMapping(ANSIBLE_CONFIG_FILE_PATH,FWK_PROP_PREFIX + ANSIBLE_CONFIG_FILE_PATH);
         builder.mapping(ANSIBLE_VAULT_PATH,PROJ_PROP_PREFIX + ANSIBLE_VAULT_PATH);
@@ -61,6 +65,14 @@ public class AnsibleFileCopier implements FileCopier, AnsibleDescribable {
         builder.frameworkMapping(ANSIBLE_SSH_PASSPHRASE_OPTION,FWK_PROP_PREFIX + ANSIBLE_SSH_PASSPHRASE_OPTION);
         builder.mapping(ANSIBLE_SSH_USE_AGENT,PROJ_PROP_PREFIX + ANSIBLE_SSH_USE_AGENT);
         builder.frameworkMapping(ANSIBLE_SSH_USE_AGENT,FWK_PROP_PREFIX + ANSIBLE_SSH_USE_AGENT);
+        builder.mapping(ANSIBLE_WORKER_POOL,PROJ_PROP_PREFIX + ANSIBLE_WORKER_POOL);
+        builder.frameworkMapping(ANSIBLE_WORKER_POOL,FWK_PROP_PREFIX + ANSIBLE_WORKER_POOL);
+        builder.mapping(ANSIBLE_WORKER_POOL_SIZE,PROJ_PROP_PREFIX + ANSIBLE_WORKER_POOL_SIZE);
+        builder.frameworkMapping(ANSIBLE_WORKER_POOL_SIZE,FWK_PROP_PREFIX + ANSIBLE_WORKER_POOL_SIZE);
+        builder.mapping(ANSIBLE_WORKER_MAX_TASKS,PROJ_PROP_PREFIX + ANSIBLE_WORKER_MAX_TASKS);
+        builder.frameworkMapping(ANSIBLE_WORKER_MAX_TASKS,FWK_PROP_PREFIX + ANSIBLE_WORKER_MAX_TASKS);
+        builder.mapping(ANSIBLE_WORKER_PYTHON,PROJ_PROP_PREFIX + ANSIBLE_WORKER_PYTHON);
+        builder.frameworkMapping(ANSIBLE_WORKER_PYTHON,FWK_PROP_PREFIX + ANSIBLE_WORKER_PYTHON);
         DESC=builder.build();
   }
 
@@ -141,19 +153,22 @@ public class AnsibleFileCopier implements FileCopier, AnsibleDescribable {
 
 
     try {
-        runner = builder.buildAnsibleRunner();
-    } catch (ConfigurationException e) {
-          throw new FileCopierException("Error configuring Ansible.",AnsibleFailureReason.ParseArgumentsError, e);
+        try {
+            runner = builder.buildAnsibleRunner();
+        } catch (ConfigurationException e) {
+              throw new FileCopierException("Error configuring Ansible.",AnsibleFailureReason.ParseArgumentsError, e);
+        }
+
+        try {
+              runner.run();
+        } catch (Exception e) {
+              throw new FileCopierException("Error running Ansible.", AnsibleFailureReason.AnsibleError, e);
+        }
+    } finally {
+        // releases the shared inventories also if the run failed
+        builder.cleanupTempFiles();
     }
 
-    try {
-          runner.run();
-    } catch (Exception e) {
-          throw new FileCopierException("Error running Ansible.", AnsibleFailureReason.AnsibleError, e);
-    }
-
-    builder.cleanupTempFiles();
-
     return destinationPath;
   }
 
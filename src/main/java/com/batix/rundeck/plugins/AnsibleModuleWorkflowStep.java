@@ -74,21 +74,24 @@ public class AnsibleModuleWorkflowStep implements StepPlugin, AnsibleDescribable
     AnsibleRunnerBuilder builder = new AnsibleRunnerBuilder(context.getExecutionContext(),context.getFramework(),context.getNodes(),configuration);
 
     try {
-        runner = builder.buildAnsibleRunner();
-    } catch (ConfigurationException e) {
-          throw new StepException("Error configuring Ansible runner: "+e.getMessage(), e, AnsibleException.AnsibleFailureReason.ParseArgumentsError);
+        try {
+            runner = builder.buildAnsibleRunner();
+        } catch (ConfigurationException e) {
+              throw new StepException("Error configuring Ansible runner: "+e.getMessage(), e, AnsibleException.AnsibleFailureReason.ParseArgumentsError);
+        }
+
+        // ansible runner will take care of handling exceptions, here handle only jobs specific stuff
+        try {
+            runner.run();
+        } catch (AnsibleException e) {
+            throw new StepException(e.getMessage(), e, e.getFailureReason());
+        } catch (Exception e) {
+            throw new StepException(e.getMessage(),e,AnsibleException.AnsibleFailureReason.AnsibleError);
+        }
+    } finally {
+        // releases the shared inventories also if the run failed
+        builder.cleanupTempFiles();
     }
-
-    // ansible runner will take care of handling exceptions, here handle only jobs specific stuff
-    try {
-        runner.run();
-    } catch (AnsibleException e) {
-        throw new StepException(e.getMessage(), e, e.getFailureReason());
-    } catch (Exception e) {
-        throw new StepException(e.getMessage(),e,AnsibleException.AnsibleFailureReason.AnsibleError);
-    }
-
-    builder.cleanupTempFiles();
   }
 
   @Override
@@ -4,6 +4,7 @@ import com.dtolabs.rundeck.core.execution.ExecutionLogger;
 import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 import com.batix.rundeck.core.AnsibleDescribable;
 import com.batix.rundeck.core.AnsibleException;
+import com.batix.rundeck.core.AnsibleNodeBatcher;
 import com.batix.rundeck.core.AnsibleRunner;
 import com.batix.rundeck.core.AnsibleRunnerBuilder;
 import com.batix.rundeck.core.PropertyResolver;
@@ -36,6 +37,17 @@ public class AnsibleNodeExecutor implements NodeExecutor, AnsibleDescribable {
         builder.property(WINDOWS_EXECUTABLE_PROP);
         builder.property(CONFIG_FILE_PATH);
         builder.property(GENERATE_INVENTORY_PROP);
+        builder.property(INVENTORY_SCRIPT_PROP);
+        builder.property(INVENTORY_GROUP_BY_PROP);
+        builder.property(OUTPUT_BUFFER_PROP);
+        builder.property(OUTPUT_OVERFLOW_PROP);
+        builder.property(RAW_OUTPUT_PROP);
+        builder.property(SSH_CONTROL_PERSIST_PROP);
+        builder.property(SSH_CONTROL_MAX_PROP);
+        builder.property(SSH_AGENT_TTL_PROP);
+        builder.property(SECRET_PIPES_PROP);
+        builder.property(WORKSPACE_SLOTS_PROP);
+        builder.property(WORKSPACE_QUOTA_PROP);
         builder.property(SSH_AUTH_TYPE_PROP);
         builder.property(SSH_USER_PROP);
         builder.property(SSH_PASSWORD_STORAGE_PROP);
@@ -51,6 +63,12 @@ public class AnsibleNodeExecutor implements NodeExecutor, AnsibleDescribable {
         builder.property(BECOME_PASSWORD_STORAGE_PROP);
         builder.property(VAULT_KEY_FILE_PROP);
         builder.property(VAULT_KEY_STORAGE_PROP);
+        builder.property(WORKER_POOL_PROP);
+        builder.property(WORKER_POOL_SIZE_PROP);
+        builder.property(WORKER_MAX_TASKS_PROP);
+        builder.property(WORKER_PYTHON_PROP);
+        builder.property(BATCH_WINDOW_PROP);
+        builder.property(STRUCTURED_RESULTS_PROP);
         builder.mapping(ANSIBLE_EXECUTABLE,PROJ_PROP_PREFIX + ANSIBLE_EXECUTABLE);
         builder.frameworkMapping(ANSIBLE_EXECUTABLE,FWK_PROP_PREFIX + ANSIBLE_EXECUTABLE);
         builder.mapping(ANSIBLE_WINDOWS_EXECUTABLE,PROJ_PROP_PREFIX + ANSIBLE_WINDOWS_EXECUTABLE);
@@ -59,6 +77,28 @@ public class AnsibleNodeExecutor implements NodeExecutor, AnsibleDescribable {
         builder.frameworkMapping(ANSIBLE_CONFIG_FILE_PATH,FWK_PROP_PREFIX + ANSIBLE_CONFIG_FILE_PATH);
         builder.mapping(ANSIBLE_GENERATE_INVENTORY,PROJ_PROP_PREFIX + ANSIBLE_GENERATE_INVENTORY);
         builder.frameworkMapping(ANSIBLE_GENERATE_INVENTORY,FWK_PROP_PREFIX + ANSIBLE_GENERATE_INVENTORY);
+        builder.mapping(ANSIBLE_INVENTORY_SCRIPT,PROJ_PROP_PREFIX + ANSIBLE_INVENTORY_SCRIPT);
+        builder.frameworkMapping(ANSIBLE_INVENTORY_SCRIPT,FWK_PROP_PREFIX + ANSIBLE_INVENTORY_SCRIPT);
+        builder.mapping(ANSIBLE_INVENTORY_GROUP_BY,PROJ_PROP_PREFIX + ANSIBLE_INVENTORY_GROUP_BY);
+        builder.frameworkMapping(ANSIBLE_INVENTORY_GROUP_BY,FWK_PROP_PREFIX + ANSIBLE_INVENTORY_GROUP_BY);
+        builder.mapping(ANSIBLE_OUTPUT_BUFFER,PROJ_PROP_PREFIX + ANSIBLE_OUTPUT_BUFFER);
+        builder.frameworkMapping(ANSIBLE_OUTPUT_BUFFER,FWK_PROP_PREFIX + ANSIBLE_OUTPUT_BUFFER);
+        builder.mapping(ANSIBLE_OUTPUT_OVERFLOW,PROJ_PROP_PREFIX + ANSIBLE_OUTPUT_OVERFLOW);
+        builder.frameworkMapping(ANSIBLE_OUTPUT_OVERFLOW,FWK_PROP_PREFIX + ANSIBLE_OUTPUT_OVERFLOW);
+        builder.mapping(ANSIBLE_RAW_OUTPUT,PROJ_PROP_PREFIX + ANSIBLE_RAW_OUTPUT);
+        builder.frameworkMapping(ANSIBLE_RAW_OUTPUT,FWK_PROP_PREFIX + ANSIBLE_RAW_OUTPUT);
+        builder.mapping(ANSIBLE_SSH_CONTROL_PERSIST,PROJ_PROP_PREFIX + ANSIBLE_SSH_CONTROL_PERSIST);
+        builder.frameworkMapping(ANSIBLE_SSH_CONTROL_PERSIST,FWK_PROP_PREFIX + ANSIBLE_SSH_CONTROL_PERSIST);
+        builder.mapping(ANSIBLE_SSH_CONTROL_MAX,PROJ_PROP_PREFIX + ANSIBLE_SSH_CONTROL_MAX);
+        builder.frameworkMapping(ANSIBLE_SSH_CONTROL_MAX,FWK_PROP_PREFIX + ANSIBLE_SSH_CONTROL_MAX);
+        builder.mapping(ANSIBLE_SSH_AGENT_TTL,PROJ_PROP_PREFIX + ANSIBLE_SSH_AGENT_TTL);
+        builder.frameworkMapping(ANSIBLE_SSH_AGENT_TTL,FWK_PROP_PREFIX + ANSIBLE_SSH_AGENT_TTL);
+        builder.mapping(ANSIBLE_SECRET_PIPES,PROJ_PROP_PREFIX + ANSIBLE_SECRET_PIPES);
+        builder.frameworkMapping(ANSIBLE_SECRET_PIPES,FWK_PROP_PREFIX + ANSIBLE_SECRET_PIPES);
+        builder.mapping(ANSIBLE_WORKSPACE_SLOTS,PROJ_PROP_PREFIX + ANSIBLE_WORKSPACE_SLOTS);
+        builder.frameworkMapping(ANSIBLE_WORKSPACE_SLOTS,FWK_PROP_PREFIX + ANSIBLE_WORKSPACE_SLOTS);
+        builder.mapping(ANSIBLE_WORKSPACE_QUOTA,PROJ_PROP_PREFIX + ANSIBLE_WORKSPACE_QUOTA);
+        builder.frameworkMapping(ANSIBLE_WORKSPACE_QUOTA,FWK_PROP_PREFIX + ANSIBLE_WORKSPACE_QUOTA);
         builder.mapping(ANSIBLE_SSH_AUTH_TYPE,PROJ_PROP_PREFIX + ANSIBLE_SSH_AUTH_TYPE);
         builder.frameworkMapping(ANSIBLE_SSH_AUTH_TYPE,FWK_PROP_PREFIX + ANSIBLE_SSH_AUTH_TYPE);
         builder.mapping(ANSIBLE_SSH_USER,PROJ_PROP_PREFIX + ANSIBLE_SSH_USER);
@@ -89,6 +129,18 @@ public class AnsibleNodeExecutor implements NodeExecutor, AnsibleDescribable {
         builder.frameworkMapping(ANSIBLE_VAULT_PATH,FWK_PROP_PREFIX + ANSIBLE_VAULT_PATH);
         builder.mapping(ANSIBLE_VAULTSTORE_PATH,PROJ_PROP_PREFIX + ANSIBLE_VAULTSTORE_PATH);
         builder.frameworkMapping(ANSIBLE_VAULTSTORE_PATH,FWK_PROP_PREFIX + ANSIBLE_VAULTSTORE_PATH);
+        builder.mapping(ANSIBLE_WORKER_POOL,PROJ_PROP_PREFIX + ANSIBLE_WORKER_POOL);
+        builder.frameworkMapping(ANSIBLE_WORKER_POOL,FWK_PROP_PREFIX + ANSIBLE_WORKER_POOL);
+        builder.mapping(ANSIBLE_WORKER_POOL_SIZE,PROJ_PROP_PREFIX + ANSIBLE_WORKER_POOL_SIZE);
+        builder.frameworkMapping(ANSIBLE_WORKER_POOL_SIZE,FWK_PROP_PREFIX + ANSIBLE_WORKER_POOL_SIZE);
+        builder.mapping(ANSIBLE_WORKER_MAX_TASKS,PROJ_PROP_PREFIX + ANSIBLE_WORKER_MAX_TASKS);
+        builder.frameworkMapping(ANSIBLE_WORKER_MAX_TASKS,FWK_PROP_PREFIX + ANSIBLE_WORKER_MAX_TASKS);
+        builder.mapping(ANSIBLE_WORKER_PYTHON,PROJ_PROP_PREFIX + ANSIBLE_WORKER_PYTHON);
+        builder.frameworkMapping(ANSIBLE_WORKER_PYTHON,FWK_PROP_PREFIX + ANSIBLE_WORKER_PYTHON);
+        builder.mapping(ANSIBLE_BATCH_WINDOW,PROJ_PROP_PREFIX + ANSIBLE_BATCH_WINDOW);
+        builder.frameworkMapping(ANSIBLE_BATCH_WINDOW,FWK_PROP_PREFIX + ANSIBLE_BATCH_WINDOW);
+        builder.mapping(ANSIBLE_STRUCTURED_RESULTS,PROJ_PROP_PREFIX + ANSIBLE_STRUCTURED_RESULTS);
+        builder.frameworkMapping(ANSIBLE_STRUCTURED_RESULTS,FWK_PROP_PREFIX + ANSIBLE_STRUCTURED_RESULTS);
 
         DESC=builder.build();
   }
@@ -163,20 +215,34 @@ public class AnsibleNodeExecutor implements NodeExecutor, AnsibleDescribable {
 
 
     AnsibleRunnerBuilder builder = new AnsibleRunnerBuilder(node, context, context.getFramework(), jobConf);
-
-    try {
-        runner = builder.buildAnsibleRunner();
-    } catch (ConfigurationException e) {
-          return NodeExecutorResultImpl.createFailure(AnsibleException.AnsibleFailureReason.ParseArgumentsError, e.getMessage(), node);
+    if (context.getNodes() != null) {
+        // the other nodes of the execution will need their secrets too
+        builder.prefetchCredentials(context.getNodes().getNodes());
     }
 
     try {
-        runner.run();
-    } catch (Exception e) {
-        return NodeExecutorResultImpl.createFailure(AnsibleException.AnsibleFailureReason.AnsibleError, e.getMessage(), node);
-    }
+        try {
+            long batchWindow = builder.getBatchWindow();
+            if (batchWindow > 0 && AnsibleNodeBatcher.canBatch(context)) {
+                NodeExecutorResult result = AnsibleNodeBatcher.execute(builder, batchWindow);
+                if (result != null) {
+                    return result;
+                }
+            }
+            runner = builder.buildAnsibleRunner();
+        } catch (ConfigurationException e) {
+              return NodeExecutorResultImpl.createFailure(AnsibleException.AnsibleFailureReason.ParseArgumentsError, e.getMessage(), node);
+        }
 
-    builder.cleanupTempFiles();
+        try {
+            runner.run();
+        } catch (Exception e) {
+            return NodeExecutorResultImpl.createFailure(AnsibleException.AnsibleFailureReason.AnsibleError, e.getMessage(), node);
+        }
+    } finally {
+        // releases the shared inventories also if the run failed
+        builder.cleanupTempFiles();
+    }
 
     return NodeExecutorResultImpl.createSuccess(node);
   }
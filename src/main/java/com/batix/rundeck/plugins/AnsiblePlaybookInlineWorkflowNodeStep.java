@@ -35,6 +35,7 @@ public class AnsiblePlaybookInlineWorkflowNodeStep implements NodeStepPlugin, An
         builder.property(VAULT_KEY_FILE_PROP);
         builder.property(VAULT_KEY_STORAGE_PROP);
         builder.property(EXTRA_ATTRS_PROP);
+        builder.property(INVENTORY_PER_NODE_PROP);
         builder.property(SSH_AUTH_TYPE_PROP);
         builder.property(SSH_USER_PROP);
         builder.property(SSH_PASSWORD_STORAGE_PROP);
@@ -76,23 +77,27 @@ public class AnsiblePlaybookInlineWorkflowNodeStep implements NodeStepPlugin, An
 
        AnsibleRunnerBuilder
                 builder = new AnsibleRunnerBuilder(context.getExecutionContext(), context.getFramework(), context.getNodes(), configuration);
+        builder.inventoryNode(entry);
 
         try {
-            runner = builder.buildAnsibleRunner();
-        } catch (ConfigurationException e) {
-            throw new NodeStepException("Error configuring Ansible runner: "+e.getMessage(), AnsibleException.AnsibleFailureReason.ParseArgumentsError,e.getMessage());
+            try {
+                runner = builder.buildAnsibleRunner();
+            } catch (ConfigurationException e) {
+                throw new NodeStepException("Error configuring Ansible runner: "+e.getMessage(), AnsibleException.AnsibleFailureReason.ParseArgumentsError,e.getMessage());
+            }
+
+            // ansible runner will take care of handling exceptions, here handle only jobs specific stuff
+            try {
+                runner.run();
+            } catch (AnsibleException e) {
+                throw new NodeStepException(e.getMessage(), e.getFailureReason(),e.getMessage());
+            } catch (Exception e) {
+                throw new NodeStepException(e.getMessage(),AnsibleException.AnsibleFailureReason.AnsibleError,e.getMessage());
+            }
+        } finally {
+            // releases the shared inventories also if the run failed
+            builder.cleanupTempFiles();
         }
 
-        // ansible runner will take care of handling exceptions, here handle only jobs specific stuff
-        try {
-            runner.run();
-        } catch (AnsibleException e) {
-            throw new NodeStepException(e.getMessage(), e.getFailureReason(),e.getMessage());
-        } catch (Exception e) {
-            throw new NodeStepException(e.getMessage(),AnsibleException.AnsibleFailureReason.AnsibleError,e.getMessage());
-        }
-
-        builder.cleanupTempFiles();
-
     }
 }
@@ -3,10 +3,17 @@ package com.batix.rundeck.plugins;
 import com.batix.rundeck.core.AnsibleDescribable;
 import com.batix.rundeck.core.AnsibleDescribable.AuthenticationType;
 import com.batix.rundeck.core.AnsibleException;
+import com.batix.rundeck.core.AnsibleFactCache;
+import com.batix.rundeck.core.AnsibleHostDataListener;
+import com.batix.rundeck.core.AnsibleNodeCache;
+import com.batix.rundeck.core.AnsibleNodeMapper;
+import com.batix.rundeck.core.AnsibleNodeMapper.HostFacts;
 import com.batix.rundeck.core.AnsibleRunner;
+import com.batix.rundeck.core.AnsibleWorkspacePool;
+import com.batix.rundeck.utils.ListenerFactory;
+import com.batix.rundeck.utils.Logging;
 import com.dtolabs.rundeck.core.common.Framework;
 import com.dtolabs.rundeck.core.common.INodeSet;
-import com.dtolabs.rundeck.core.common.NodeEntryImpl;
 import com.dtolabs.rundeck.core.common.NodeSetImpl;
 import com.dtolabs.rundeck.core.dispatcher.DataContextUtils;
 import com.dtolabs.rundeck.core.resources.ResourceModelSource;
@@ -17,14 +24,17 @@ import com.dtolabs.rundeck.core.plugins.configuration.ConfigurationException;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 public class AnsibleResourceModelSource implements ResourceModelSource {
 
@@ -42,6 +52,13 @@ public class AnsibleResourceModelSource implements ResourceModelSource {
   private String limit;
   private String ignoreTagPrefix;
   private String extraTag;
+  private int nodeCacheTtl;
+  private int factsMaxAge;
+  private String factCachePath;
+  private int parseThreads;
+  private String nodeCacheKey;
+  private String factStoreKey;
+  private AnsibleNodeMapper nodeMapper;
 
   protected String vaultPass;
   protected Boolean debug = false;
@@ -138,9 +155,91 @@ public class AnsibleResourceModelSource implements ResourceModelSource {
 
     extraParameters = (String)  resolveProperty(AnsibleDescribable.ANSIBLE_EXTRA_PARAM,null,configuration,executionDataContext);
 
+    nodeCacheTtl = 0;
+    String str_nodeCacheTtl = resolveProperty(AnsibleDescribable.ANSIBLE_NODE_CACHE_TTL,null,configuration,executionDataContext);
+    if ( str_nodeCacheTtl != null && str_nodeCacheTtl.length() > 0 ) {
+       try {
+          nodeCacheTtl =  Integer.parseInt(str_nodeCacheTtl);
+       } catch (NumberFormatException e) {
+          throw new ConfigurationException("Can't parse node cache TTL value : " + e.getMessage());
+       }
+    }
+    factsMaxAge = 0;
+    String str_factsMaxAge = resolveProperty(AnsibleDescribable.ANSIBLE_FACTS_MAX_AGE,null,configuration,executionDataContext);
+    if ( str_factsMaxAge != null && str_factsMaxAge.length() > 0 ) {
+       try {
+          factsMaxAge =  Integer.parseInt(str_factsMaxAge);
+       } catch (NumberFormatException e) {
+          throw new ConfigurationException("Can't parse facts max age value : " + e.getMessage());
+       }
+    }
+
+    factCachePath = (String) resolveProperty(AnsibleDescribable.ANSIBLE_FACT_CACHE_PATH,null,configuration,executionDataContext);
+
+    parseThreads = 0;
+    String str_parseThreads = resolveProperty(AnsibleDescribable.ANSIBLE_PARSE_THREADS,null,configuration,executionDataContext);
+    if ( str_parseThreads != null && str_parseThreads.length() > 0 ) {
+       try {
+          parseThreads =  Integer.parseInt(str_parseThreads);
+       } catch (NumberFormatException e) {
+          throw new ConfigurationException("Can't parse fact parser threads value : " + e.getMessage());
+       }
+    }
+
+    String attributeMapping = resolveProperty(AnsibleDescribable.ANSIBLE_ATTRIBUTE_MAPPING,null,configuration,executionDataContext);
+    try {
+      nodeMapper = AnsibleNodeMapper.forMapping(attributeMapping);
+    } catch (IllegalArgumentException e) {
+      throw new ConfigurationException("Can't parse attribute mapping : " + e.getMessage());
+    }
+
+    nodeCacheKey = project + ":" + configurationHash(configuration);
+    factStoreKey = factStoreHash();
+  }
+
+  /**
+   * Sources of the same project only share cached nodes if they are configured the same way.
+   */
+  private static String configurationHash(Properties configuration) throws ConfigurationException {
+    StringBuilder sb = new StringBuilder();
+    for (String name : new TreeSet<>(configuration.stringPropertyNames())) {
+      sb.append(name).append('=').append(configuration.getProperty(name)).append('\n');
+    }
+    return sha256(sb.toString());
+  }
+
+  /**
+   * Sources of the same project only share stored facts if they list the same hosts and gather their facts
+   * the same way, otherwise each would remove the other's hosts from the store as gone from the inventory.
+   */
+  private String factStoreHash() throws ConfigurationException {
+    StringBuilder sb = new StringBuilder();
+    for (Object setting : Arrays.asList(inventory, limit, configFile, baseDirectoryPath, extraParameters,
+        sshUser, become, becomeMethod, becomeUser)) {
+      sb.append(setting).append('\n');
+    }
+    // short, it's a directory name
+    return sha256(sb.toString()).substring(0, 16);
+  }
+
+  private static String sha256(String value) throws ConfigurationException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hash = new StringBuilder();
+      for (byte b : digest.digest(value.getBytes(Charset.forName("utf-8")))) {
+        hash.append(String.format("%02x", b));
+      }
+      return hash.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new ConfigurationException("Can't hash the configuration : " + e.getMessage());
+    }
   }
 
   public AnsibleRunner buildAnsibleRunner() throws ResourceModelSourceException{
+	  return buildAnsibleRunner(buildLimitList());
+  }
+
+  private AnsibleRunner buildAnsibleRunner(Collection<String> limitList) throws ResourceModelSourceException{
 
 	  AnsibleRunner runner = AnsibleRunner.playbookPath("gather-hosts.yml");
 
@@ -148,9 +247,7 @@ public class AnsibleResourceModelSource implements ResourceModelSource {
 		  runner.debug();
 	  }
 
-	  if (limit != null && limit.length() > 0) {
-		  List<String> limitList = new ArrayList<>();
-		  limitList.add(limit);
+	  if (!limitList.isEmpty()) {
 		  runner.limit(limitList);
 	  }
 	  
@@ -158,7 +255,7 @@ public class AnsibleResourceModelSource implements ResourceModelSource {
 			  if (sshPrivateKeyFile != null) {
 				  String sshPrivateKey;
 				  try {
-					  sshPrivateKey = new String(Files.readAllBytes(Paths.get(sshPrivateKeyFile)));
+					  sshPrivateKey = new String(Files.readAllBytes(Paths.get(sshPrivateKeyFile)), Logging.UTF_8);
 				  } catch (IOException e) {
 					  throw new ResourceModelSourceException("Could not read privatekey file " + sshPrivateKeyFile,e);
 				  }
@@ -213,7 +310,7 @@ public class AnsibleResourceModelSource implements ResourceModelSource {
       if (vaultFile != null) {
         String vaultPassword;
         try {
-          vaultPassword = new String(Files.readAllBytes(Paths.get(vaultFile)));
+          vaultPassword = new String(Files.readAllBytes(Paths.get(vaultFile)), Logging.UTF_8);
         } catch (IOException e) {
           throw new ResourceModelSourceException("Could not read vault file " + vaultFile,e);
         }
@@ -233,35 +330,99 @@ public class AnsibleResourceModelSource implements ResourceModelSource {
 
   @Override
   public INodeSet getNodes() throws ResourceModelSourceException {
-    NodeSetImpl nodes = new NodeSetImpl();
+    if (nodeCacheTtl <= 0) {
+      return loadNodes();
+    }
+
+    try {
+      return AnsibleNodeCache.getNodes(nodeCacheKey, nodeCacheTtl * 1000L, new Callable<INodeSet>() {
+        @Override
+        public INodeSet call() throws Exception {
+          return loadNodes();
+        }
+      });
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ResourceModelSourceException) {
+        throw (ResourceModelSourceException) e.getCause();
+      }
+      throw new ResourceModelSourceException(e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ResourceModelSourceException("Interrupted while loading the nodes.", e);
+    }
+  }
+
+  private INodeSet loadNodes() throws ResourceModelSourceException {
+    if (factCachePath != null && factCachePath.length() > 0) {
+      return loadNodesFromFactCache();
+    }
 
-    Path tempDirectory;
+    AnsibleWorkspacePool.Workspace workspace;
     try {
-      tempDirectory = Files.createTempDirectory("ansible-hosts");
+      workspace = AnsibleWorkspacePool.acquire(AnsibleWorkspacePool.DEFAULT_SLOTS, AnsibleWorkspacePool.DEFAULT_QUOTA);
     } catch (IOException e) {
         throw new ResourceModelSourceException("Error creating temporary directory.", e);
     }
+    Path tempDirectory = workspace.getPath();
 
     try {
-      Files.copy(this.getClass().getClassLoader().getResourceAsStream("host-tpl.j2"), tempDirectory.resolve("host-tpl.j2"));
-      Files.copy(this.getClass().getClassLoader().getResourceAsStream("gather-hosts.yml"), tempDirectory.resolve("gather-hosts.yml"));
-    } catch (IOException e) {
-        throw new ResourceModelSourceException("Error copying files.");
+      try {
+        Files.copy(this.getClass().getClassLoader().getResourceAsStream("gather-hosts.yml"), tempDirectory.resolve("gather-hosts.yml"));
+      } catch (IOException e) {
+          throw new ResourceModelSourceException("Error copying files.");
+      }
+
+      Map<String, HostFacts> hosts;
+      if (gatherFacts && factsMaxAge > 0) {
+        hosts = gatherFactsIncrementally(tempDirectory);
+      } else {
+        hosts = gatherHosts(tempDirectory, gatherFacts, buildLimitList());
+      }
+
+      NodeSetImpl nodes = new NodeSetImpl();
+      for (Map.Entry<String, HostFacts> host : hosts.entrySet()) {
+        nodes.putNode(nodeMapper.createNode(host.getKey(), host.getValue(), ignoreTagPrefix, extraTag));
+      }
+      return nodes;
+    } finally {
+      workspace.release(ListenerFactory.getThreadListener());
     }
+  }
 
-    AnsibleRunner runner = buildAnsibleRunner();
+  private List<String> buildLimitList() {
+    List<String> limitList = new ArrayList<>();
+    if (limit != null && limit.length() > 0) {
+      limitList.add(limit);
+    }
+    return limitList;
+  }
+
+  /**
+   * Run gather-hosts.yml, which prints the hostvars of every host through the structured results.
+   * Only the values needed for the nodes are read, as soon as the result of a host arrives.
+   * @return the values by inventory_hostname
+   */
+  private Map<String, HostFacts> gatherHosts(Path tempDirectory, boolean facts, Collection<String> limitList)
+      throws ResourceModelSourceException {
+    final Map<String, HostFacts> hosts = new LinkedHashMap<>();
+    gatherHosts(tempDirectory, facts, limitList, new AnsibleHostDataListener() {
+      @Override
+      public void hostData(String host, JsonReader data) throws IOException {
+        hosts.put(host, nodeMapper.read(data));
+      }
+    });
+    return hosts;
+  }
+
+  private void gatherHosts(Path tempDirectory, boolean facts, Collection<String> limitList,
+                           AnsibleHostDataListener listener) throws ResourceModelSourceException {
+    AnsibleRunner runner = buildAnsibleRunner(limitList);
 
     runner.tempDirectory(tempDirectory).retainTempDirectory();
 
-    StringBuilder args = new StringBuilder();
-    args.append("facts: ")
-        .append(gatherFacts ? "True" : "False")
-        .append("\n")
-        .append("tmpdir: '")
-        .append(tempDirectory.toFile().getAbsolutePath())
-        .append("'");
-    
-    runner.extraVars(args.toString());
+    runner.extraVars("facts: " + (facts ? "True" : "False"));
+
+    runner.hostDataListener(listener);
 
     try {
         runner.run();
@@ -270,193 +431,233 @@ public class AnsibleResourceModelSource implements ResourceModelSource {
     } catch (Exception e) {
         throw new ResourceModelSourceException(e.getMessage(),e);
     }
+  }
 
-    try {
-      if (new File(tempDirectory.toFile(), "data").exists()) {
-        DirectoryStream<Path> directoryStream = Files.newDirectoryStream(tempDirectory.resolve("data"));
-        for (Path factFile : directoryStream) {
-          NodeEntryImpl node = new NodeEntryImpl();
-
-          BufferedReader bufferedReader = Files.newBufferedReader(factFile, Charset.forName("utf-8"));
-          JsonElement json = new JsonParser().parse(bufferedReader);
-          bufferedReader.close();
-          JsonObject root = json.getAsJsonObject();
-
-          String hostname = root.get("inventory_hostname").getAsString();
-          try {
-            if (root.has("ansible_host")) {
-              hostname = root.get("ansible_host").getAsString();
-            } else if (root.has("ansible_ssh_host")) { // deprecated variable
-              hostname = root.get("ansible_ssh_host").getAsString();
-            }
-          }catch(Exception ex){
-            System.out.println("[warn] Problem getting the ansible_host attribute from node " + hostname);
-          }
-
-          String nodename = root.get("inventory_hostname").getAsString();
-
-          node.setHostname(hostname);
-          node.setNodename(nodename);
-
-          String username = System.getProperty("user.name"); // TODO better default?
-          if (root.has("ansible_user")) {
-            username = root.get("ansible_user").getAsString();
-          } else if (root.has("ansible_ssh_user")) { // deprecated variable
-            username = root.get("ansible_ssh_user").getAsString();
-          } else if (root.has("ansible_user_id")) { // fact
-            username = root.get("ansible_user_id").getAsString();
-          }
-          node.setUsername(username);
-
-          HashSet<String> tags = new HashSet<>();
-          for (JsonElement ele : root.getAsJsonArray("group_names")) {
-            if (ignoreTagPrefix != null && ignoreTagPrefix.length() > 0 && ele.getAsString().startsWith(ignoreTagPrefix)) continue;
-            tags.add(ele.getAsString());
-          }
-          if (extraTag != null && extraTag.length() > 0) {
-        	tags.add(extraTag);
-          }
-          node.setTags(tags);
-
-          if (root.has("ansible_lsb") && root.getAsJsonObject("ansible_lsb").has("description")) {
-            node.setDescription(root.getAsJsonObject("ansible_lsb").get("description").getAsString());
-          } else {
-            StringBuilder sb = new StringBuilder();
+  private static JsonObject readJson(Path file) throws IOException {
+    try (BufferedReader bufferedReader = Files.newBufferedReader(file, Charset.forName("utf-8"))) {
+      return new JsonParser().parse(bufferedReader).getAsJsonObject();
+    }
+  }
 
-            if (root.has("ansible_distribution")) {
-              sb.append(root.get("ansible_distribution").getAsString()).append(" ");
-            }
-            if (root.has("ansible_distribution_version")) {
-              sb.append(root.get("ansible_distribution_version").getAsString()).append(" ");
-            }
+  /**
+   * Gather facts only for hosts whose stored facts are missing or older than the max age.
+   *
+   * A first run without facts lists the hosts and their current inventory variables,
+   * a second one gathers facts for the stale hosts only and updates the fact store.
+   * Stored facts are merged below the inventory variables, hosts that fail to gather
+   * facts keep their previous ones.
+   */
+  private Map<String, HostFacts> gatherFactsIncrementally(Path tempDirectory) throws ResourceModelSourceException {
+    Map<String, HostFacts> hosts = gatherHosts(tempDirectory, false, buildLimitList());
+
+    final Path factStore = getFactStore();
+    try {
+      long now = System.currentTimeMillis();
+      List<String> stale = new ArrayList<>();
+      for (String host : hosts.keySet()) {
+        Path facts = factStore.resolve(factFileName(host));
+        if (!Files.exists(facts) || now - Files.getLastModifiedTime(facts).toMillis() > factsMaxAge * 1000L) {
+          stale.add(host);
+        }
+      }
 
-            if (sb.length() > 0) {
-              node.setDescription(sb.toString().trim());
+      if (!stale.isEmpty()) {
+        // the store keeps all facts, so these few hosts are parsed completely
+        gatherHosts(tempDirectory, true, stale, new AnsibleHostDataListener() {
+          @Override
+          public void hostData(String host, JsonReader data) throws IOException {
+            JsonElement hostvars = new JsonParser().parse(data);
+            if (!hostvars.isJsonObject()) {
+              return;
             }
+            Path part = Files.createTempFile(factStore, ".facts", ".tmp");
+            Files.write(part, hostvars.toString().getBytes(Charset.forName("utf-8")));
+            Files.move(part, factStore.resolve(factFileName(host)),
+              StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
           }
+        });
+      }
 
-          // ansible_system     = Linux   = osFamily in Rundeck
-          // ansible_os_family  = Debian  = osName in Rundeck
-
-          if (root.has("ansible_os_family")) {
-            node.setOsFamily(root.get("ansible_os_family").getAsString());
-          }
-
-          if (root.has("ansible_os_name")) {
-            node.setOsName(root.get("ansible_os_name").getAsString());
-          }
+      List<String> storedHosts = new ArrayList<>();
+      List<Path> storedFiles = new ArrayList<>();
+      for (String host : hosts.keySet()) {
+        Path facts = factStore.resolve(factFileName(host));
+        if (Files.exists(facts)) {
+          storedHosts.add(host);
+          storedFiles.add(facts);
+        }
+      }
+      List<HostFacts> stored = nodeMapper.readFiles(storedFiles, parseThreads);
 
-          if (root.has("ansible_architecture") && !root.get("ansible_architecture").isJsonNull()) {
-            node.setOsArch(root.get("ansible_architecture").getAsString());
-          }
+      Map<String, HostFacts> merged = new LinkedHashMap<>(hosts);
+      for (int i = 0; i < stored.size(); i++) {
+        if (stored.get(i) != null) {
+          String host = storedHosts.get(i);
+          merged.put(host, HostFacts.merge(stored.get(i), hosts.get(host)));
+        }
+      }
 
-          if (root.has("ansible_kernel")) {
-            node.setOsVersion(root.get("ansible_kernel").getAsString());
+      if (limit == null || limit.length() == 0) {
+        // hosts gone from the inventory
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(factStore, "*.json")) {
+          for (Path facts : directoryStream) {
+            String name = facts.getFileName().toString();
+            if (!hosts.containsKey(name.substring(0, name.length() - ".json".length()))) {
+              Files.deleteIfExists(facts);
+            }
           }
+        }
+      }
+      return merged;
+    } catch (IOException e) {
+      throw new ResourceModelSourceException("Error updating the fact store " + factStore, e);
+    }
+  }
 
-          // JSON-Path -> Attribute-Name
-          Map<String, String> interestingItems = new HashMap<>();
-
-          interestingItems.put("ansible_form_factor", "form_factor");
-
-          interestingItems.put("ansible_system_vendor", "system_vendor");
-
-          interestingItems.put("ansible_product_name", "product_name");
-          interestingItems.put("ansible_product_version", "product_version");
-          interestingItems.put("ansible_product_serial", "product_serial");
-
-          interestingItems.put("ansible_bios_version", "bios_version");
-          interestingItems.put("ansible_bios_date", "bios_date");
-
-          interestingItems.put("ansible_machine_id", "machine_id");
-
-          interestingItems.put("ansible_virtualization_type", "virtualization_type");
-          interestingItems.put("ansible_virtualization_role", "virtualization_role");
-
-          interestingItems.put("ansible_selinux", "selinux");
-          interestingItems.put("ansible_fips", "fips");
-
-          interestingItems.put("ansible_service_mgr", "service_mgr");
-          interestingItems.put("ansible_pkg_mgr", "pkg_mgr");
-
-          interestingItems.put("ansible_distribution", "distribution");
-          interestingItems.put("ansible_distribution_version", "distribution_version");
-          interestingItems.put("ansible_distribution_major_version", "distribution_major_version");
-          interestingItems.put("ansible_distribution_release", "distribution_release");
-          interestingItems.put("ansible_lsb.codename", "lsb_codename");
-
-          interestingItems.put("ansible_domain", "domain");
-
-          interestingItems.put("ansible_date_time.tz", "tz");
-          interestingItems.put("ansible_date_time.tz_offset", "tz_offset");
+  private Path getFactStore() throws ResourceModelSourceException {
+    Path factStore = framework.getBaseDir().toPath().resolve("var").resolve("ansible-facts").resolve(project)
+      .resolve(factStoreKey);
+    try {
+      return Files.createDirectories(factStore);
+    } catch (IOException e) {
+      throw new ResourceModelSourceException("Error creating the fact store " + factStore, e);
+    }
+  }
 
-          interestingItems.put("ansible_processor_count", "processor_count");
-          interestingItems.put("ansible_processor_cores", "processor_cores");
-          interestingItems.put("ansible_processor_vcpus", "processor_vcpus");
-          interestingItems.put("ansible_processor_threads_per_core", "processor_threads_per_core");
+  private static String factFileName(String host) {
+    return host.replace('/', '_') + ".json";
+  }
 
-          interestingItems.put("ansible_userspace_architecture", "userspace_architecture");
-          interestingItems.put("ansible_userspace_bits", "userspace_bits");
+  /**
+   * Build the nodes from ansible-inventory and the jsonfile fact cache, without connecting to any host.
+   */
+  private INodeSet loadNodesFromFactCache() throws ResourceModelSourceException {
+    Path inventoryFile;
+    try {
+      inventoryFile = Files.createTempFile("ansible-inventory", ".json");
+    } catch (IOException e) {
+      throw new ResourceModelSourceException("Error creating temporary file.", e);
+    }
 
-          interestingItems.put("ansible_memtotal_mb", "memtotal_mb");
-          interestingItems.put("ansible_swaptotal_mb", "swaptotal_mb");
-          interestingItems.put("ansible_processor.0", "processor0");
-          interestingItems.put("ansible_processor.1", "processor1");
+    try {
+      AnsibleRunner runner = AnsibleRunner.inventoryList(inventoryFile.toFile().getAbsolutePath());
+      if ("true".equals(System.getProperty("ansible.debug"))) {
+        runner.debug();
+      }
+      runner.limit(buildLimitList());
+      if (inventory != null) {
+        runner.setInventory(inventory);
+      }
+      if (configFile != null) {
+        runner.configFile(configFile);
+      }
+      if (vaultPassword != null) {
+        runner.vaultPass(vaultPassword);
+      }
+      if (vaultFile != null) {
+        try {
+          runner.vaultPass(new String(Files.readAllBytes(Paths.get(vaultFile)), Logging.UTF_8));
+        } catch (IOException e) {
+          throw new ResourceModelSourceException("Could not read vault file " + vaultFile, e);
+        }
+      }
 
-          for (Map.Entry<String, String> item : interestingItems.entrySet()) {
-            String[] itemParts = item.getKey().split("\\.");
+      try {
+        runner.run();
+      } catch (Exception e) {
+        throw new ResourceModelSourceException(e.getMessage(), e);
+      }
 
-            if (itemParts.length > 1) {
-              JsonElement ele = root;
-              for (String itemPart : itemParts) {
-                if (ele.isJsonArray() && itemPart.matches("^\\d+$") && ele.getAsJsonArray().size() > Integer.parseInt(itemPart)) {
-                  ele = ele.getAsJsonArray().get(Integer.parseInt(itemPart));
-                } else if (ele.isJsonObject() && ele.getAsJsonObject().has(itemPart)) {
-                  ele = ele.getAsJsonObject().get(itemPart);
-                } else {
-                  ele = null;
-                  break;
-                }
-              }
+      JsonObject inventoryJson = readJson(inventoryFile);
+      Map<String, JsonObject> hostvars = new LinkedHashMap<>();
+      Map<String, Set<String>> groupNames = new LinkedHashMap<>();
+      readInventory(inventoryJson, hostvars, groupNames);
 
-              if (ele != null && ele.isJsonPrimitive() && ele.getAsString().length() > 0) {
-                node.setAttribute(item.getValue(), ele.getAsString());
-              }
-            } else {
-              if (root.has(item.getKey())
-                && root.get(item.getKey()).isJsonPrimitive()
-                && root.get(item.getKey()).getAsString().length() > 0) {
-                node.setAttribute(item.getValue(), root.get(item.getKey()).getAsString());
-              }
-            }
-          }
+      Map<String, HostFacts> facts = AnsibleFactCache.forDirectory(Paths.get(factCachePath))
+        .getFacts(hostvars.keySet(), nodeMapper, parseThreads);
 
-          nodes.putNode(node);
+      NodeSetImpl nodes = new NodeSetImpl();
+      for (Map.Entry<String, JsonObject> host : hostvars.entrySet()) {
+        HostFacts root = nodeMapper.read(host.getValue());
+        HostFacts hostFacts = facts.get(host.getKey());
+        if (hostFacts != null) {
+          root = HostFacts.merge(hostFacts, root);
         }
-        directoryStream.close();
+        root.setGroups(groupNames.get(host.getKey()));
+
+        nodes.putNode(nodeMapper.createNode(host.getKey(), root, ignoreTagPrefix, extraTag));
       }
+      return nodes;
     } catch (IOException e) {
-      throw new ResourceModelSourceException("Error reading facts.", e);
+      throw new ResourceModelSourceException("Error reading the inventory or fact cache.", e);
+    } finally {
+      try {
+        Files.deleteIfExists(inventoryFile);
+      } catch (IOException e) {
+        System.out.println("[warn] Error deleting temporary file " + inventoryFile + ": " + e.getMessage());
+      }
     }
+  }
 
-    try {
-      Files.walkFileTree(tempDirectory, new SimpleFileVisitor<Path>() {
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-          Files.delete(file);
-          return FileVisitResult.CONTINUE;
+  /**
+   * Collect the hosts of an ansible-inventory --list dump with their variables and groups.
+   * Like Ansible's group_names, the groups of a host include the parents of its groups,
+   * but not "all" and "ungrouped".
+   */
+  private static void readInventory(JsonObject inventoryJson, Map<String, JsonObject> hostvars,
+                                    Map<String, Set<String>> groupNames) {
+    Map<String, List<String>> parents = new HashMap<>();
+    Map<String, List<String>> groupHosts = new LinkedHashMap<>();
+    for (Map.Entry<String, JsonElement> group : inventoryJson.entrySet()) {
+      if ("_meta".equals(group.getKey()) || !group.getValue().isJsonObject()) {
+        continue;
+      }
+      JsonObject groupJson = group.getValue().getAsJsonObject();
+      if (groupJson.has("children")) {
+        for (JsonElement child : groupJson.getAsJsonArray("children")) {
+          List<String> childParents = parents.get(child.getAsString());
+          if (childParents == null) {
+            childParents = new ArrayList<>();
+            parents.put(child.getAsString(), childParents);
+          }
+          childParents.add(group.getKey());
+        }
+      }
+      List<String> hosts = new ArrayList<>();
+      if (groupJson.has("hosts")) {
+        for (JsonElement host : groupJson.getAsJsonArray("hosts")) {
+          hosts.add(host.getAsString());
         }
+      }
+      groupHosts.put(group.getKey(), hosts);
+    }
 
-        @Override
-        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-          Files.delete(dir);
-          return FileVisitResult.CONTINUE;
+    JsonObject meta = inventoryJson.has("_meta") ? inventoryJson.getAsJsonObject("_meta") : new JsonObject();
+    JsonObject metaHostvars = meta.has("hostvars") ? meta.getAsJsonObject("hostvars") : new JsonObject();
+
+    for (Map.Entry<String, List<String>> group : groupHosts.entrySet()) {
+      for (String host : group.getValue()) {
+        Set<String> groups = groupNames.get(host);
+        if (groups == null) {
+          groups = new TreeSet<>();
+          groupNames.put(host, groups);
+          // hosts without variables are left out of _meta
+          hostvars.put(host, metaHostvars.has(host) ? metaHostvars.getAsJsonObject(host) : new JsonObject());
         }
-      });
-    } catch (IOException e) {
-      throw new ResourceModelSourceException("Error deleting temporary directory.", e);
+        addGroupWithParents(group.getKey(), parents, groups);
+      }
     }
+  }
 
-    return nodes;
+  private static void addGroupWithParents(String group, Map<String, List<String>> parents, Set<String> groups) {
+    if ("all".equals(group) || "ungrouped".equals(group) || !groups.add(group)) {
+      return;
+    }
+    List<String> groupParents = parents.get(group);
+    if (groupParents != null) {
+      for (String parent : groupParents) {
+        addGroupWithParents(parent, parents, groups);
+      }
+    }
   }
 }
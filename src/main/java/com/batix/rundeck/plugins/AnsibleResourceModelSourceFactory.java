@@ -33,6 +33,11 @@ public class AnsibleResourceModelSourceFactory implements ResourceModelSourceFac
         builder.property(INVENTORY_PROP);
         builder.property(CONFIG_FILE_PATH);
         builder.property(GATHER_FACTS_PROP);
+        builder.property(NODE_CACHE_TTL_PROP);
+        builder.property(FACTS_MAX_AGE_PROP);
+        builder.property(FACT_CACHE_PATH_PROP);
+        builder.property(ATTRIBUTE_MAPPING_PROP);
+        builder.property(PARSE_THREADS_PROP);
         builder.property(IGNORE_ERRORS_PROP);
         builder.property(LIMIT_PROP);
         builder.property(DISABLE_LIMIT_PROP);
@@ -0,0 +1,15 @@
+package com.batix.rundeck.utils;
+
+import java.util.List;
+
+/**
+ * A listener which can take a chunk of lines at once, so they can be written in one go.
+ */
+public interface BatchListener extends Listener {
+
+      /**
+       * @param lines  lines in the order they were output, without line terminators
+       */
+      void output(List<String> lines);
+
+}
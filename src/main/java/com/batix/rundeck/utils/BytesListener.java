@@ -0,0 +1,13 @@
+package com.batix.rundeck.utils;
+
+/**
+ * A listener which can take lines as raw bytes, so they don't have to be decoded into a String first.
+ */
+public interface BytesListener extends Listener {
+
+      /**
+       * @param buffer  holds the line, without its line terminator, only valid during the call
+       */
+      void output(byte[] buffer, int offset, int length);
+
+}
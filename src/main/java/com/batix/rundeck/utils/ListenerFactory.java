@@ -1,15 +1,144 @@
 package com.batix.rundeck.utils;
 
+import com.dtolabs.rundeck.core.execution.ExecutionListener;
+
 import java.io.*;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class ListenerFactory {
 
+      // Rundeck binds System.out to the log of the execution running on a thread
+      private static final String THREAD_BOUND_OUTPUT = "com.dtolabs.rundeck.core.utils.ThreadBoundOutputStream";
+
+      // normal log level of Rundeck
+      private static final int LOG_LEVEL = 2;
+
+      private static final AtomicBoolean lookupFailed = new AtomicBoolean();
+
       public static Listener getListener(final PrintStream stream) {            
-        return new Listener() {
-                @Override
-                public void output(String line) {
-                    stream.println(line);
+        return new PrintStreamListener(stream);
+      }
+
+      /**
+       * Listener for the log System.out writes to on the calling thread, which can be used from any thread.
+       *
+       * System.out is bound to the log of the execution running on a thread, output written to it from
+       * other threads, like the shared threads reading the Ansible output, would end up in another log.
+       */
+      public static Listener getThreadListener() {
+          return getListener((ExecutionListener) null);
+      }
+
+      /**
+       * Listener for the log of an execution, which can be used from any thread.
+       * Writes to the stream System.out is bound to on the calling thread, or to the execution listener
+       * if that stream can't be looked up.
+       */
+      public static Listener getListener(final ExecutionListener executionListener) {
+          PrintStream stream = getThreadStream();
+          if (stream == null && executionListener != null) {
+              return new ExecutionLogListener(executionListener);
+          }
+          return new PrintStreamListener(stream != null ? stream : System.out);
+      }
+
+      /**
+       * @return the stream System.out writes to on the calling thread, null if it's bound per thread but can't be looked up
+       */
+      private static PrintStream getThreadStream() {
+          PrintStream out = System.out;
+          if (!out.getClass().getName().startsWith("com.dtolabs.rundeck.")) {
+              // the same stream for every thread
+              return out;
+          }
+          try {
+              Class<?> bound = Class.forName(THREAD_BOUND_OUTPUT, true, out.getClass().getClassLoader());
+              // System.out is bound already, this returns the stream it's bound with
+              Object threadBound = bound.getMethod("bindSystemOut").invoke(null);
+              OutputStream stream = (OutputStream) bound.getMethod("getThreadStream").invoke(threadBound);
+              if (stream == null) {
+                  return null;
+              }
+              return stream instanceof PrintStream ? (PrintStream) stream : new PrintStream(stream, true);
+          } catch (Exception | LinkageError e) {
+              // once, the log of the execution is still used if there is one
+              if (lookupFailed.compareAndSet(false, true)) {
+                  out.println("[warn] Could not look up the log of the execution, output written from other threads may end up in the wrong log: " + e);
+              }
+              return null;
+          }
+      }
+
+      /**
+       * Whether bytes of the UTF-8 output can be written to a print stream as they are.
+       */
+      public static boolean isUtf8Platform() {
+          return Charset.defaultCharset().equals(Logging.UTF_8);
+      }
+
+      private static class ExecutionLogListener implements BatchListener {
+            private final ExecutionListener executionListener;
+
+            ExecutionLogListener(ExecutionListener executionListener) {
+                this.executionListener = executionListener;
+            }
+
+            @Override
+            public void output(String line) {
+                executionListener.log(LOG_LEVEL, line);
+            }
+
+            @Override
+            public void output(List<String> lines) {
+                for (String line : lines) {
+                    executionListener.log(LOG_LEVEL, line);
+                }
+            }
+      }
+
+      private static class PrintStreamListener implements BytesListener, BatchListener, RawListener {
+            private final PrintStream stream;
+            private final boolean utf8 = isUtf8Platform();
+
+            PrintStreamListener(PrintStream stream) {
+                this.stream = stream;
+            }
+
+            @Override
+            public void output(String line) {
+                stream.println(line);
+            }
+
+            @Override
+            public void output(byte[] buffer, int offset, int length) {
+                if (!utf8) {
+                    stream.println(new String(buffer, offset, length, Logging.UTF_8));
+                    return;
+                }
+                synchronized (stream) {
+                    stream.write(buffer, offset, length);
+                    stream.println();
+                }
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                stream.write(buffer, offset, length);
+                stream.flush();
+            }
+
+            @Override
+            public void output(List<String> lines) {
+                // a single write for the whole chunk
+                StringBuilder chunk = new StringBuilder();
+                String separator = System.lineSeparator();
+                for (String line : lines) {
+                    chunk.append(line).append(separator);
                 }
-              };
+                stream.print(chunk);
+                stream.flush();
+            }
       }
 }
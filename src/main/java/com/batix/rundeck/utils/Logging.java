@@ -6,9 +6,15 @@
 package com.batix.rundeck.utils;
 
 import java.io.*;
+import java.nio.charset.Charset;
 
 public class Logging {
 
+    /**
+     * Charset of the Ansible output, and of everything handed to Ansible.
+     */
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
    /**
     * A simple Thread subclass that perform realtime ansible logging.
     */ 
@@ -45,7 +51,7 @@ public class Logging {
     * @throws java.io.IOException if thrown by underlying io operations 
     */
     public static void ansibleStreamLogger(final InputStream in, final Listener out) throws IOException { 
-       InputStreamReader isr = new InputStreamReader(in);
+       InputStreamReader isr = new InputStreamReader(in, UTF_8);
        LineNumberReader lines = new LineNumberReader(isr);
        String line;
        while ((line = lines.readLine()) != null) {
@@ -0,0 +1,13 @@
+package com.batix.rundeck.utils;
+
+/**
+ * A listener which takes the output as it's read, in chunks of UTF-8 bytes that aren't split into lines.
+ */
+public interface RawListener extends Listener {
+
+      /**
+       * @param buffer  holds the chunk, which may end within a line or even a character, only valid during the call
+       */
+      void write(byte[] buffer, int offset, int length);
+
+}
@@ -0,0 +1,170 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+"""
+Long-lived Ansible worker used by the Rundeck Ansible plugin.
+
+Runs ad-hoc commands in-process, so the Python interpreter, Ansible's imports
+and its plugin loaders stay warm between tasks. The plugin talks to the worker
+with one JSON document per line:
+
+  request:  {"id": 1, "argv": ["ansible", "all", "-m", "ping"], "env": {}, "cwd": "/tmp"}
+  response: {"id": 1, "line": "..."} for every output line, then {"id": 1, "rc": 0}
+
+A single {"ready": true} (or {"error": "..."}) frame is written on startup.
+
+Ansible reads its configuration when it is first imported, so ANSIBLE_CONFIG
+and other ANSIBLE_* settings must be set in the environment of the worker
+itself; the per-request environment only reaches modules and connections.
+The stdout callback settings are the exception, they are applied per request
+so structured results can be used on a shared worker. The plugin doesn't send
+tasks with any other ANSIBLE_* setting here, they are run in their own process.
+"""
+import json
+import os
+import sys
+
+# environment variable -> ansible.constants attribute, applied per request,
+# keep in sync with AnsibleRunner.WORKER_TASK_SETTINGS
+CALLBACK_SETTINGS = {
+    'ANSIBLE_STDOUT_CALLBACK': 'DEFAULT_STDOUT_CALLBACK',
+    'ANSIBLE_LOAD_CALLBACK_PLUGINS': 'DEFAULT_LOAD_CALLBACK_PLUGINS',
+}
+
+
+class FrameWriter(object):
+    """File-like object turning writes into output frames for the current task."""
+
+    encoding = 'utf-8'
+
+    def __init__(self, emit):
+        self.emit = emit
+        self.task_id = None
+        self.pending = u''
+
+    def write(self, data):
+        if isinstance(data, bytes):
+            data = data.decode('utf-8', 'replace')
+        self.pending += data
+        while u'\n' in self.pending:
+            line, self.pending = self.pending.split(u'\n', 1)
+            self.emit({'id': self.task_id, 'line': line})
+
+    def flush(self):
+        pass
+
+    def finish(self):
+        if self.pending:
+            self.emit({'id': self.task_id, 'line': self.pending})
+            self.pending = u''
+
+    def isatty(self):
+        return False
+
+
+def apply_callback_settings(ansible, env):
+    """Point the callback settings of this request at ansible.constants, returns the previous values."""
+    constants = ansible['constants']
+    saved = {}
+    for var, attr in CALLBACK_SETTINGS.items():
+        if var in env and hasattr(constants, attr):
+            saved[attr] = getattr(constants, attr)
+            value = env[var]
+            if isinstance(saved[attr], bool):
+                value = value.lower() in ('1', 'true', 'yes', 'on')
+            setattr(constants, attr, value)
+    if env.get('ANSIBLE_CALLBACK_PLUGINS') and ansible['callback_loader'] is not None:
+        for path in env['ANSIBLE_CALLBACK_PLUGINS'].split(os.pathsep):
+            ansible['callback_loader'].add_directory(path)
+    return saved
+
+
+def run(ansible, request, out):
+    saved_env = dict(os.environ)
+    saved_cwd = os.getcwd()
+    saved_stdout = sys.stdout
+    env = request.get('env') or {}
+    os.environ.update(env)
+    saved_constants = apply_callback_settings(ansible, env)
+    sys.stdout = out
+    try:
+        os.chdir(request.get('cwd') or saved_cwd)
+        cli = ansible['AdHocCLI'](request['argv'])
+        if ansible['legacy']:
+            cli.parse()
+        return cli.run()
+    except SystemExit as e:
+        return e.code if isinstance(e.code, int) else 1
+    except ansible['AnsibleOptionsError'] as e:
+        out.write(u'ERROR! %s\n' % e)
+        return 5
+    except ansible['AnsibleParserError'] as e:
+        out.write(u'ERROR! %s\n' % e)
+        return 4
+    except ansible['AnsibleError'] as e:
+        out.write(u'ERROR! %s\n' % e)
+        return 1
+    except Exception as e:
+        out.write(u'ERROR! Unexpected Exception: %s\n' % e)
+        return 250
+    finally:
+        sys.stdout = saved_stdout
+        for attr, value in saved_constants.items():
+            setattr(ansible['constants'], attr, value)
+        os.chdir(saved_cwd)
+        os.environ.clear()
+        os.environ.update(saved_env)
+
+
+def main():
+    # Keep the real stdout for protocol frames and point fd 1 at stderr, so
+    # anything written directly by forked Ansible processes can't corrupt it.
+    proto = os.fdopen(os.dup(1), 'w')
+    os.dup2(2, 1)
+
+    def emit(frame):
+        proto.write(json.dumps(frame) + '\n')
+        proto.flush()
+
+    try:
+        from ansible import constants
+        from ansible.cli.adhoc import AdHocCLI
+        from ansible.errors import AnsibleError, AnsibleOptionsError, AnsibleParserError
+        from ansible.release import __version__
+    except Exception as e:
+        emit({'error': 'Could not import ansible: %s' % e})
+        return 1
+
+    try:
+        from ansible.plugins.loader import callback_loader
+    except ImportError:
+        try:
+            # before 2.4
+            from ansible.plugins import callback_loader
+        except ImportError:
+            callback_loader = None
+
+    ansible = {
+        'AdHocCLI': AdHocCLI,
+        'AnsibleError': AnsibleError,
+        'AnsibleOptionsError': AnsibleOptionsError,
+        'AnsibleParserError': AnsibleParserError,
+        'constants': constants,
+        'callback_loader': callback_loader,
+        # before 2.8 the CLI had to be parsed explicitly before running it
+        'legacy': tuple(int(p) for p in __version__.split('.')[:2]) < (2, 8),
+    }
+
+    out = FrameWriter(emit)
+    emit({'ready': True, 'version': __version__})
+
+    for raw in iter(sys.stdin.readline, ''):
+        request = json.loads(raw)
+        out.task_id = request['id']
+        rc = run(ansible, request, out)
+        out.finish()
+        emit({'id': request['id'], 'rc': rc})
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main())
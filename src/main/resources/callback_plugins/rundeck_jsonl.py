@@ -0,0 +1,95 @@
+# -*- coding: utf-8 -*-
+"""
+Stdout callback used by the Rundeck Ansible plugin for structured results.
+
+Every event is written as a single JSON document on its own line, starting
+with '{"event": ', so the plugin can parse results per host while the run is
+still going, and tell them apart from anything else Ansible prints.
+
+  {"event": "play", "name": "..."}
+  {"event": "task", "name": "..."}
+  {"event": "result", "host": "web1", "status": "changed", "rc": 0,
+   "stdout": "...", "stderr": "...", "msg": "...", "ignored": false}
+  {"event": "result", "host": "web1", "status": "ok", "data": {...}}
+
+Results of debug tasks printing a variable carry its value as "data", always
+as the last field, so the plugin can stream it straight into its own model.
+  {"event": "stats", "host": "web1", "ok": 2, "changed": 1, "unreachable": 0,
+   "failed": 0, "skipped": 0}
+"""
+from __future__ import absolute_import, division, print_function
+__metaclass__ = type
+
+import json
+from collections import OrderedDict
+
+from ansible.module_utils.six import string_types
+from ansible.plugins.callback import CallbackBase
+
+DOCUMENTATION = '''
+    callback: rundeck_jsonl
+    type: stdout
+    short_description: one JSON document per event, for the Rundeck Ansible plugin
+    description:
+      - Writes play, task, result and stats events as JSON lines.
+'''
+
+
+class CallbackModule(CallbackBase):
+
+    CALLBACK_VERSION = 2.0
+    CALLBACK_TYPE = 'stdout'
+    CALLBACK_NAME = 'rundeck_jsonl'
+
+    def _emit(self, event, **fields):
+        doc = OrderedDict([('event', event)])
+        doc.update(fields)
+        self._display.display(json.dumps(doc, default=str))
+
+    def _result(self, result, status, ignored=False):
+        res = result._result
+        fields = OrderedDict([('host', result._host.get_name()), ('status', status)])
+        if 'rc' in res:
+            fields['rc'] = res['rc']
+        for key in ('stdout', 'stderr', 'msg'):
+            value = res.get(key)
+            if value:
+                fields[key] = value if isinstance(value, string_types) else u'%s' % value
+        if ignored:
+            fields['ignored'] = True
+        if result._task.action == 'debug':
+            var = result._task.args.get('var')
+            if var and var in res:
+                fields['data'] = res[var]
+        self._emit('result', **fields)
+
+    def v2_playbook_on_play_start(self, play):
+        self._emit('play', name=play.get_name().strip())
+
+    def v2_playbook_on_task_start(self, task, is_conditional):
+        self._emit('task', name=task.get_name().strip())
+
+    def v2_playbook_on_handler_task_start(self, task):
+        self._emit('task', name=task.get_name().strip())
+
+    def v2_runner_on_ok(self, result):
+        self._result(result, 'changed' if result._result.get('changed', False) else 'ok')
+
+    def v2_runner_on_failed(self, result, ignore_errors=False):
+        self._result(result, 'failed', ignored=ignore_errors)
+
+    def v2_runner_on_unreachable(self, result):
+        self._result(result, 'unreachable')
+
+    def v2_runner_on_skipped(self, result):
+        self._result(result, 'skipped')
+
+    def v2_playbook_on_stats(self, stats):
+        for host in sorted(stats.processed.keys()):
+            summary = stats.summarize(host)
+            self._emit('stats', host=host,
+                       ok=summary.get('ok', 0),
+                       changed=summary.get('changed', 0),
+                       unreachable=summary.get('unreachable', 0),
+                       failed=summary.get('failures', 0),
+                       skipped=summary.get('skipped', 0))
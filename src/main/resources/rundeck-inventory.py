@@ -0,0 +1,51 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+"""
+Dynamic inventory script used by the Rundeck Ansible plugin.
+
+Instead of a generated inventory file, Ansible runs this script, which fetches
+the nodes of the job from the plugin. The plugin serves them on the loopback
+interface, the URL (including an access token) is passed in the environment:
+
+  RUNDECK_INVENTORY_URL=http://127.0.0.1:<port>/inventory/<token>
+
+--list prints the whole inventory with the host variables under _meta,
+so Ansible never has to call --host, which just prints an empty object.
+"""
+import os
+import sys
+
+try:
+    from urllib.request import build_opener, ProxyHandler
+except ImportError:
+    from urllib2 import build_opener, ProxyHandler
+
+
+def main(argv):
+    if len(argv) > 1 and argv[1] == '--host':
+        sys.stdout.write('{}\n')
+        return 0
+
+    url = os.environ.get('RUNDECK_INVENTORY_URL')
+    if not url:
+        sys.stderr.write('RUNDECK_INVENTORY_URL is not set\n')
+        return 1
+
+    try:
+        # the plugin listens on the loopback interface, a proxy of the job environment
+        # must not see the URL with its token
+        opener = build_opener(ProxyHandler({}))
+        response = opener.open(url, timeout=60)
+        data = response.read()
+    except Exception as e:
+        sys.stderr.write('Could not fetch the inventory from Rundeck: %s\n' % e)
+        return 1
+
+    out = getattr(sys.stdout, 'buffer', sys.stdout)
+    out.write(data)
+    out.flush()
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv))
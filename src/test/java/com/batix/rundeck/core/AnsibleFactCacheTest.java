@@ -0,0 +1,92 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.core.AnsibleNodeMapper.HostFacts;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class AnsibleFactCacheTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void unchangedFilesAreNotParsedAgain() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    writeFacts(dir, "web1", "10.0.0.1");
+    writeFacts(dir, "web2", "10.0.0.2");
+    AnsibleFactCache cache = AnsibleFactCache.forDirectory(dir);
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+
+    Map<String, HostFacts> first = cache.getFacts(Arrays.asList("web1", "web2", "web3"), mapper, 2);
+    assertEquals(Arrays.asList("web1", "web2"), new ArrayList<>(first.keySet()));
+    assertEquals("10.0.0.1", hostname(mapper, first.get("web1")));
+
+    Map<String, HostFacts> second = cache.getFacts(Arrays.asList("web1", "web2"), mapper, 2);
+    assertSame(first.get("web1"), second.get("web1"));
+    assertSame(first.get("web2"), second.get("web2"));
+  }
+
+  @Test
+  public void changedFilesAreParsedAgain() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    Path file = writeFacts(dir, "web1", "10.0.0.1");
+    AnsibleFactCache cache = AnsibleFactCache.forDirectory(dir);
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+    HostFacts before = cache.getFacts(Arrays.asList("web1"), mapper, 1).get("web1");
+
+    writeFacts(dir, "web1", "10.0.0.9");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+    HostFacts after = cache.getFacts(Arrays.asList("web1"), mapper, 1).get("web1");
+    assertNotSame(before, after);
+    assertEquals("10.0.0.9", hostname(mapper, after));
+
+    // another mapper needs other values
+    AnsibleNodeMapper other = AnsibleNodeMapper.forMapping("ansible_kernel -> kernel");
+    assertNotSame(after, cache.getFacts(Arrays.asList("web1"), other, 1).get("web1"));
+  }
+
+  @Test
+  public void unreadableFileKeepsThePreviousFacts() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    Path file = writeFacts(dir, "web1", "10.0.0.1");
+    AnsibleFactCache cache = AnsibleFactCache.forDirectory(dir);
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+    HostFacts before = cache.getFacts(Arrays.asList("web1"), mapper, 1).get("web1");
+
+    // Ansible is just writing it
+    Files.write(file, "{\"ansible_host\": ".getBytes(UTF8));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+    assertSame(before, cache.getFacts(Arrays.asList("web1"), mapper, 1).get("web1"));
+  }
+
+  @Test
+  public void sameDirectorySharesTheCache() {
+    Path dir = folder.getRoot().toPath();
+    assertSame(AnsibleFactCache.forDirectory(dir), AnsibleFactCache.forDirectory(dir.resolve("sub").resolve("..")));
+  }
+
+  private static Path writeFacts(Path dir, String host, String address) throws IOException {
+    String facts = "{\"inventory_hostname\": \"" + host + "\", \"ansible_host\": \"" + address + "\"}";
+    return Files.write(dir.resolve(host), facts.getBytes(UTF8));
+  }
+
+  private static String hostname(AnsibleNodeMapper mapper, HostFacts facts) {
+    return mapper.createNode("fallback", facts, null, null).getHostname();
+  }
+}
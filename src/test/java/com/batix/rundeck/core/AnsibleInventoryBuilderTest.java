@@ -0,0 +1,153 @@
+package com.batix.rundeck.core;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnsibleInventoryBuilderTest {
+
+  @Test
+  public void inventoryFileListsHostsAndGroups() throws Exception {
+    JsonObject inventory = write(nodes(), AnsibleInventoryBuilder.DEFAULT_GROUP_BY, false);
+
+    JsonObject all = inventory.getAsJsonObject("all");
+    JsonObject hosts = all.getAsJsonObject("hosts");
+    assertEquals(set("web1", "win1"), hosts.keySet());
+    JsonObject web1 = hosts.getAsJsonObject("web1");
+    assertEquals("10.0.0.1", web1.get("ansible_host").getAsString());
+    assertEquals("deploy", web1.get("username").getAsString());
+    // reserved in Ansible
+    assertFalse(web1.has("groups"));
+
+    JsonObject children = all.getAsJsonObject("children");
+    assertEquals(set("unix", "web", "db", "windows"), children.keySet());
+    assertEquals(set("web1", "win1"), children.getAsJsonObject("web").getAsJsonObject("hosts").keySet());
+    assertEquals(set("web1"), children.getAsJsonObject("db").getAsJsonObject("hosts").keySet());
+    assertEquals(set("win1"), children.getAsJsonObject("windows").getAsJsonObject("hosts").keySet());
+  }
+
+  @Test
+  public void inventoryScriptListsHostsAndGroups() throws Exception {
+    JsonObject inventory = write(nodes(), AnsibleInventoryBuilder.DEFAULT_GROUP_BY, true);
+
+    JsonObject hostvars = inventory.getAsJsonObject("_meta").getAsJsonObject("hostvars");
+    assertEquals("10.0.0.2", hostvars.getAsJsonObject("win1").get("ansible_host").getAsString());
+
+    JsonObject all = inventory.getAsJsonObject("all");
+    assertEquals(Arrays.asList("web1", "win1"), strings(all.getAsJsonArray("hosts")));
+    assertEquals(Arrays.asList("unix", "web", "db", "windows"), strings(all.getAsJsonArray("children")));
+    assertEquals(Arrays.asList("web1", "win1"), strings(inventory.getAsJsonObject("web").getAsJsonArray("hosts")));
+  }
+
+  @Test
+  public void hostIsListedOnceWhenSeveralValuesLeadToTheSameGroup() throws Exception {
+    NodeEntryImpl node = node("db1", "10.0.0.3", "unix", "Unix, db");
+    List<INodeEntry> nodes = new ArrayList<>();
+    nodes.add(node);
+
+    JsonObject file = write(nodes, AnsibleInventoryBuilder.DEFAULT_GROUP_BY, false);
+    JsonObject children = file.getAsJsonObject("all").getAsJsonObject("children");
+    assertEquals(set("unix", "db"), children.keySet());
+
+    JsonObject script = write(nodes, AnsibleInventoryBuilder.DEFAULT_GROUP_BY, true);
+    assertEquals(Arrays.asList("db1"), strings(script.getAsJsonObject("unix").getAsJsonArray("hosts")));
+  }
+
+  @Test
+  public void groupsFollowTheGroupByAttributes() throws Exception {
+    JsonObject inventory = write(nodes(), Arrays.asList("datacenter"), false);
+    JsonObject children = inventory.getAsJsonObject("all").getAsJsonObject("children");
+    assertEquals(set("dc1"), children.keySet());
+    assertEquals(set("web1"), children.getAsJsonObject("dc1").getAsJsonObject("hosts").keySet());
+  }
+
+  @Test
+  public void hashDependsOnContentNotOrder() throws Exception {
+    List<INodeEntry> nodes = nodes();
+    List<INodeEntry> reversed = new ArrayList<>(nodes);
+    Collections.reverse(reversed);
+    List<String> groupBy = AnsibleInventoryBuilder.DEFAULT_GROUP_BY;
+    assertEquals(AnsibleInventoryBuilder.hashNodes(nodes, groupBy), AnsibleInventoryBuilder.hashNodes(reversed, groupBy));
+
+    List<INodeEntry> changed = nodes();
+    ((NodeEntryImpl) changed.get(0)).setAttribute("datacenter", "dc2");
+    assertNotEquals(AnsibleInventoryBuilder.hashNodes(nodes, groupBy), AnsibleInventoryBuilder.hashNodes(changed, groupBy));
+    assertNotEquals(AnsibleInventoryBuilder.hashNodes(nodes, groupBy),
+        AnsibleInventoryBuilder.hashNodes(nodes, Arrays.asList("osFamily")));
+  }
+
+  @Test
+  public void sameNodesShareTheInventoryFile() throws Exception {
+    File first = new AnsibleInventoryBuilder(nodes()).buildInventory();
+    File second = new AnsibleInventoryBuilder(nodes()).buildInventory();
+    try {
+      assertEquals(first, second);
+      assertTrue(first.exists());
+      JsonObject inventory = new JsonParser().parse(new String(Files.readAllBytes(first.toPath()), "UTF-8"))
+          .getAsJsonObject();
+      assertEquals(set("web1", "win1"), inventory.getAsJsonObject("all").getAsJsonObject("hosts").keySet());
+    } finally {
+      AnsibleInventoryBuilder.releaseInventory(first);
+      AnsibleInventoryBuilder.releaseInventory(second);
+    }
+    // kept for the next run on the same nodes
+    assertTrue(first.exists());
+  }
+
+  private static List<INodeEntry> nodes() {
+    List<INodeEntry> nodes = new ArrayList<>();
+    NodeEntryImpl web = node("web1", "10.0.0.1", "unix", "web,DB");
+    web.setAttribute("datacenter", "dc1");
+    web.setAttribute("groups", "reserved");
+    nodes.add(web);
+    nodes.add(node("win1", "10.0.0.2", "windows", "web"));
+    return nodes;
+  }
+
+  private static NodeEntryImpl node(String name, String hostname, String osFamily, String tags) {
+    NodeEntryImpl node = new NodeEntryImpl();
+    node.setNodename(name);
+    node.setHostname(hostname);
+    node.setUsername("deploy");
+    node.setOsFamily(osFamily);
+    node.setAttribute("tags", tags);
+    return node;
+  }
+
+  private static JsonObject write(List<INodeEntry> nodes, List<String> groupBy, boolean script) throws Exception {
+    StringWriter out = new StringWriter();
+    new AnsibleInventoryBuilder(nodes, groupBy).writeInventory(out, script);
+    return new JsonParser().parse(out.toString()).getAsJsonObject();
+  }
+
+  private static List<String> strings(JsonArray array) {
+    List<String> strings = new ArrayList<>();
+    for (JsonElement element : array) {
+      strings.add(element.getAsString());
+    }
+    return strings;
+  }
+
+  private static Set<String> set(String... values) {
+    return new HashSet<>(Arrays.asList(values));
+  }
+}
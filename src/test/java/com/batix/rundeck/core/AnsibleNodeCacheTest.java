@@ -0,0 +1,123 @@
+package com.batix.rundeck.core;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AnsibleNodeCacheTest {
+
+  /**
+   * Hands out a new node set on every load, or fails once told to.
+   * Loads after the first one wait for the gate.
+   */
+  private static class Loader implements Callable<INodeSet> {
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch gate = new CountDownLatch(1);
+    volatile boolean failing = false;
+    volatile CountDownLatch loaded = new CountDownLatch(1);
+    volatile INodeSet last;
+
+    @Override
+    public INodeSet call() throws Exception {
+      if (loads.incrementAndGet() > 1) {
+        gate.await();
+      }
+      try {
+        if (failing) {
+          throw new IllegalStateException("inventory is gone");
+        }
+        last = new NodeSetImpl();
+        return last;
+      } finally {
+        loaded.countDown();
+      }
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void nodesAreServedFromTheCacheWithinTheTtl() throws Exception {
+    Loader loader = new Loader();
+    String key = "within-ttl";
+    INodeSet first = AnsibleNodeCache.getNodes(key, 60000, loader);
+    assertSame(first, AnsibleNodeCache.getNodes(key, 60000, loader));
+    assertEquals(1, loader.loads.get());
+  }
+
+  @Test(timeout = 30000)
+  public void staleNodesAreServedWhileRefreshing() throws Exception {
+    Loader loader = new Loader();
+    String key = "stale";
+    INodeSet first = AnsibleNodeCache.getNodes(key, 200, loader);
+    Thread.sleep(300);
+
+    loader.loaded = new CountDownLatch(1);
+    // right away, the refresh runs in the background
+    assertSame(first, AnsibleNodeCache.getNodes(key, 200, loader));
+    loader.gate.countDown();
+    assertTrue(loader.loaded.await(10, TimeUnit.SECONDS));
+    awaitNewNodes(key, 200, loader, first);
+  }
+
+  @Test(timeout = 30000)
+  public void failedRefreshKeepsThePreviousNodes() throws Exception {
+    Loader loader = new Loader();
+    String key = "failed-refresh";
+    INodeSet first = AnsibleNodeCache.getNodes(key, 200, loader);
+
+    loader.failing = true;
+    Thread.sleep(300);
+    loader.loaded = new CountDownLatch(1);
+    assertSame(first, AnsibleNodeCache.getNodes(key, 200, loader));
+    loader.gate.countDown();
+    assertTrue(loader.loaded.await(10, TimeUnit.SECONDS));
+    assertSame(first, AnsibleNodeCache.getNodes(key, 200, loader));
+  }
+
+  @Test(timeout = 30000)
+  public void failedFirstLoadIsReported() throws Exception {
+    Loader loader = new Loader();
+    loader.failing = true;
+    try {
+      AnsibleNodeCache.getNodes("failed-first-load", 60000, loader);
+      fail("there are no nodes to serve");
+    } catch (ExecutionException e) {
+      assertEquals("inventory is gone", e.getCause().getMessage());
+    }
+    // the next call tries again
+    loader.failing = false;
+    loader.gate.countDown();
+    AnsibleNodeCache.getNodes("failed-first-load", 60000, loader);
+    assertEquals(2, loader.loads.get());
+  }
+
+  @Test(timeout = 30000)
+  public void otherTtlStartsOver() throws Exception {
+    Loader loader = new Loader();
+    loader.gate.countDown();
+    String key = "ttl-changed";
+    INodeSet first = AnsibleNodeCache.getNodes(key, 60000, loader);
+    INodeSet second = AnsibleNodeCache.getNodes(key, 30000, loader);
+    assertTrue(first != second);
+    assertEquals(2, loader.loads.get());
+  }
+
+  private static void awaitNewNodes(String key, long ttl, Loader loader, INodeSet old) throws Exception {
+    // the loaded nodes are stored right after the loader returns
+    long deadline = System.currentTimeMillis() + 10000;
+    while (AnsibleNodeCache.getNodes(key, ttl, loader) == old && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(AnsibleNodeCache.getNodes(key, ttl, loader) != old);
+  }
+}
@@ -0,0 +1,159 @@
+package com.batix.rundeck.core;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares reading fact files with {@link AnsibleNodeMapper#readFiles} on one thread and on several.
+ *
+ * Generates synthetic fact files of about the size gathered from a typical Linux host, then reads them
+ * a number of rounds with each setting and prints the median time.
+ *
+ * Usage: AnsibleNodeMapperBenchmark [files (1000)] [threads (one per processor)] [rounds (10)]
+ */
+public class AnsibleNodeMapperBenchmark {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public static void main(String[] args) throws IOException {
+    int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    Path dir = Files.createTempDirectory("ansible-facts-benchmark");
+    try {
+      List<Path> files = new ArrayList<>(fileCount);
+      long bytes = 0;
+      for (int i = 0; i < fileCount; i++) {
+        Path file = dir.resolve("host" + i + ".example.com");
+        writeFacts(file, i);
+        bytes += Files.size(file);
+        files.add(file);
+      }
+      System.out.println(fileCount + " fact files, " + (bytes / fileCount / 1024) + " KB each on average");
+
+      AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+      // warm up both paths, so the JIT doesn't favour the second
+      measure(mapper, files, 1, rounds);
+      measure(mapper, files, threads, rounds);
+
+      long single = measure(mapper, files, 1, rounds);
+      long parallel = measure(mapper, files, threads, rounds);
+      System.out.println(String.format("%3d thread(s): %6d ms", 1, single));
+      System.out.println(String.format("%3d thread(s): %6d ms", threads, parallel));
+      System.out.println(String.format("speedup: %.2fx", (double) single / Math.max(parallel, 1)));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  /**
+   * @return the median milliseconds of reading all files
+   */
+  private static long measure(AnsibleNodeMapper mapper, List<Path> files, int threads, int rounds)
+      throws IOException {
+    long[] times = new long[rounds];
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      List<AnsibleNodeMapper.HostFacts> facts = mapper.readFiles(files, threads);
+      times[round] = (System.nanoTime() - start) / 1000000L;
+      if (facts.size() != files.size() || facts.contains(null)) {
+        throw new IllegalStateException("not all fact files were read");
+      }
+    }
+    Arrays.sort(times);
+    return times[rounds / 2];
+  }
+
+  private static void writeFacts(Path file, int host) throws IOException {
+    try (Writer out = Files.newBufferedWriter(file, UTF8); JsonWriter json = new JsonWriter(out)) {
+      json.beginObject();
+      json.name("inventory_hostname").value("host" + host + ".example.com");
+      json.name("ansible_host").value("10.0." + (host / 256 % 256) + "." + (host % 256));
+      json.name("group_names").beginArray().value("web").value("dc" + (host % 3)).endArray();
+      for (Map.Entry<String, String> attribute : AnsibleNodeMapper.DEFAULT_ATTRIBUTES.entrySet()) {
+        String[] path = attribute.getKey().split("\\.");
+        if (path.length == 1) {
+          json.name(path[0]).value(attribute.getValue() + "-" + host);
+        }
+      }
+      json.name("ansible_lsb").beginObject()
+          .name("codename").value("bionic")
+          .name("description").value("Ubuntu 18.04.1 LTS")
+          .endObject();
+      json.name("ansible_processor").beginArray();
+      for (int cpu = 0; cpu < 8; cpu++) {
+        json.value(String.valueOf(cpu)).value("GenuineIntel").value("Intel(R) Xeon(R) CPU E5-2680 v4 @ 2.40GHz");
+      }
+      json.endArray();
+
+      // the bulk of real facts, which the mapper skips
+      json.name("ansible_mounts").beginArray();
+      for (int mount = 0; mount < 20; mount++) {
+        json.beginObject()
+            .name("mount").value("/mnt/volume" + mount)
+            .name("device").value("/dev/sd" + (char) ('a' + mount))
+            .name("fstype").value("ext4")
+            .name("options").value("rw,relatime,data=ordered")
+            .name("size_total").value(107374182400L)
+            .name("size_available").value(53687091200L + mount)
+            .endObject();
+      }
+      json.endArray();
+      json.name("ansible_interfaces").beginArray();
+      for (int nic = 0; nic < 16; nic++) {
+        json.value("eth" + nic);
+      }
+      json.endArray();
+      for (int nic = 0; nic < 16; nic++) {
+        json.name("ansible_eth" + nic).beginObject()
+            .name("active").value(true)
+            .name("macaddress").value(String.format("02:42:ac:11:%02x:%02x", host % 256, nic))
+            .name("mtu").value(1500)
+            .name("ipv4").beginObject()
+            .name("address").value("172.17." + nic + "." + (host % 256))
+            .name("netmask").value("255.255.0.0")
+            .endObject()
+            .name("features").beginObject();
+        for (int feature = 0; feature < 40; feature++) {
+          json.name("feature_" + feature).value(feature % 2 == 0 ? "on" : "off [fixed]");
+        }
+        json.endObject().endObject();
+      }
+      json.name("ansible_env").beginObject();
+      for (int var = 0; var < 50; var++) {
+        json.name("VAR_" + var).value("/usr/local/sbin:/usr/local/bin:/usr/sbin:/usr/bin:/sbin:/bin:" + var);
+      }
+      json.endObject();
+      json.endObject();
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
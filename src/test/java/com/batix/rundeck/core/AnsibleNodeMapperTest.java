@@ -0,0 +1,191 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.core.AnsibleNodeMapper.HostFacts;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AnsibleNodeMapperTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final String HOSTVARS = "{"
+      + "\"inventory_hostname\": \"web1\","
+      + "\"ansible_host\": \"10.0.0.1\","
+      + "\"ansible_user\": \"deploy\","
+      + "\"group_names\": [\"web\", \"ignored_dc1\"],"
+      + "\"ansible_lsb\": {\"codename\": \"bionic\", \"description\": \"Ubuntu 18.04.1 LTS\"},"
+      + "\"ansible_os_family\": \"Debian\","
+      + "\"ansible_distribution\": \"Ubuntu\","
+      + "\"ansible_processor\": [\"0\", \"GenuineIntel\", \"Xeon\"],"
+      + "\"ansible_processor_count\": 2,"
+      + "\"ansible_fips\": false,"
+      + "\"ansible_mounts\": [{\"mount\": \"/\"}]"
+      + "}";
+
+  @Test
+  public void readsNodeAndDefaultAttributes() throws IOException {
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+    NodeEntryImpl node = mapper.createNode("fallback", read(mapper, HOSTVARS), "ignored_", "ansible");
+
+    assertEquals("web1", node.getNodename());
+    assertEquals("10.0.0.1", node.getHostname());
+    assertEquals("deploy", node.getUsername());
+    assertEquals("Debian", node.getOsFamily());
+    assertEquals(new HashSet<>(Arrays.asList("web", "ansible")), node.getTags());
+    assertEquals("Ubuntu 18.04.1 LTS", node.getAttributes().get("description"));
+    assertEquals("bionic", node.getAttributes().get("lsb_codename"));
+    assertEquals("0", node.getAttributes().get("processor0"));
+    assertEquals("GenuineIntel", node.getAttributes().get("processor1"));
+    assertEquals("2", node.getAttributes().get("processor_count"));
+    assertEquals("false", node.getAttributes().get("fips"));
+    // the same path imported twice shares its value
+    assertEquals("Ubuntu", node.getAttributes().get("distribution"));
+  }
+
+  @Test
+  public void streamedAndInMemoryHostvarsGiveTheSameNode() throws IOException {
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+    NodeEntryImpl streamed = mapper.createNode("fallback", read(mapper, HOSTVARS), null, null);
+    NodeEntryImpl inMemory = mapper.createNode("fallback", mapper.read(new JsonParser().parse(HOSTVARS)), null, null);
+
+    assertEquals(streamed.getAttributes(), inMemory.getAttributes());
+    assertEquals(streamed.getTags(), inMemory.getTags());
+  }
+
+  @Test
+  public void mappingAddsRenamesAndRemovesAttributes() throws IOException {
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.forMapping(
+        "# extra attributes\n"
+        + "$.ansible_processor[2] -> cpu_model\r\n"
+        + "ansible_lsb.codename -> codename, ansible_fips ->\n");
+    NodeEntryImpl node = mapper.createNode("fallback", read(mapper, HOSTVARS), null, null);
+
+    assertEquals("Xeon", node.getAttributes().get("cpu_model"));
+    assertEquals("bionic", node.getAttributes().get("codename"));
+    assertFalse(node.getAttributes().containsKey("lsb_codename"));
+    assertFalse(node.getAttributes().containsKey("fips"));
+    // the defaults are still there
+    assertEquals("0", node.getAttributes().get("processor0"));
+  }
+
+  @Test
+  public void mappingIsCompiledOnce() {
+    String mapping = "ansible_kernel -> kernel";
+    assertSame(AnsibleNodeMapper.forMapping(mapping), AnsibleNodeMapper.forMapping(mapping));
+    assertSame(AnsibleNodeMapper.getDefault(), AnsibleNodeMapper.forMapping(" "));
+  }
+
+  @Test
+  public void numericPartMatchesObjectKeysAndArrayIndexes() throws IOException {
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.forMapping("disks.0 -> disk0, disks.1.name -> disk1");
+
+    NodeEntryImpl fromObject = mapper.createNode("host",
+        read(mapper, "{\"disks\": {\"0\": \"sda\", \"1\": {\"name\": \"sdb\"}}}"), null, null);
+    assertEquals("sda", fromObject.getAttributes().get("disk0"));
+    assertEquals("sdb", fromObject.getAttributes().get("disk1"));
+
+    NodeEntryImpl fromArray = mapper.createNode("host",
+        read(mapper, "{\"disks\": [\"sdc\", {\"name\": \"sdd\"}]}"), null, null);
+    assertEquals("sdc", fromArray.getAttributes().get("disk0"));
+    assertEquals("sdd", fromArray.getAttributes().get("disk1"));
+  }
+
+  @Test
+  public void indexAboveTheLimitIsRejected() {
+    AnsibleNodeMapper.forMapping("ansible_processor." + AnsibleNodeMapper.MAX_INDEX + " -> last");
+    for (String path : Arrays.asList("ansible_processor." + (AnsibleNodeMapper.MAX_INDEX + 1),
+        "$.ansible_processor[99999999999999999999]")) {
+      try {
+        AnsibleNodeMapper.forMapping(path + " -> cpu");
+        fail(path + " should be rejected");
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("Array index above"));
+      }
+    }
+  }
+
+  @Test
+  public void invalidEntriesAreRejected() {
+    for (String mapping : Arrays.asList("ansible_kernel", "ansible..kernel -> kernel",
+        "ansible_processor[x] -> cpu", "ansible_kernel -> kernel version")) {
+      try {
+        AnsibleNodeMapper.forMapping(mapping);
+        fail(mapping + " should be rejected");
+      } catch (IllegalArgumentException expected) {
+        // reported as a configuration error by the source
+      }
+    }
+  }
+
+  @Test
+  public void mergeKeepsBaseValuesWhichAreNotOverridden() throws IOException {
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+    HostFacts base = read(mapper, HOSTVARS);
+    HostFacts over = read(mapper, "{\"ansible_host\": \"10.0.0.2\", \"group_names\": [\"db\"]}");
+    NodeEntryImpl node = mapper.createNode("fallback", HostFacts.merge(base, over), null, null);
+
+    assertEquals("web1", node.getNodename());
+    assertEquals("10.0.0.2", node.getHostname());
+    assertEquals(new HashSet<>(Arrays.asList("db")), node.getTags());
+  }
+
+  @Test
+  public void readFilesKeepsTheOrderAndSkipsUnreadableFiles() throws IOException {
+    Path dir = folder.getRoot().toPath();
+    List<Path> files = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      Path file = dir.resolve("host" + i);
+      String content = i == 7 ? "[\"not hostvars\"]" : "{\"inventory_hostname\": \"host" + i + "\"}";
+      Files.write(file, content.getBytes(UTF8));
+      files.add(file);
+    }
+    files.add(dir.resolve("missing"));
+
+    AnsibleNodeMapper mapper = AnsibleNodeMapper.getDefault();
+    for (int threads : new int[] {1, 4, 0}) {
+      List<HostFacts> facts = mapper.readFiles(files, threads);
+      assertEquals(files.size(), facts.size());
+      for (int i = 0; i < 50; i++) {
+        if (i == 7) {
+          assertNull(facts.get(i));
+        } else {
+          assertNotNull(facts.get(i));
+          assertEquals("host" + i, mapper.createNode("fallback", facts.get(i), null, null).getNodename());
+        }
+      }
+      assertNull(facts.get(50));
+    }
+    assertTrue(mapper.readFiles(new ArrayList<Path>(), 4).isEmpty());
+  }
+
+  private static HostFacts read(AnsibleNodeMapper mapper, String json) throws IOException {
+    try (JsonReader reader = new JsonReader(new StringReader(json))) {
+      return mapper.read(reader);
+    }
+  }
+}
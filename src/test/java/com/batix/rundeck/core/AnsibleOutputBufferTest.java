@@ -0,0 +1,156 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.core.AnsibleDescribable.OutputOverflow;
+import com.batix.rundeck.utils.BatchListener;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnsibleOutputBufferTest {
+
+  /**
+   * Collects the chunks, the first one can be held up to fill the buffer.
+   */
+  private static class Sink implements BatchListener {
+    final List<List<String>> chunks = new ArrayList<>();
+    final CountDownLatch release;
+
+    Sink(int holdChunks) {
+      release = new CountDownLatch(holdChunks);
+    }
+
+    @Override
+    public void output(String line) {
+      throw new AssertionError("lines are written in chunks");
+    }
+
+    @Override
+    public void output(List<String> lines) {
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        chunks.add(new ArrayList<>(lines));
+      }
+    }
+
+    synchronized List<String> lines() {
+      List<String> lines = new ArrayList<>();
+      for (List<String> chunk : chunks) {
+        lines.addAll(chunk);
+      }
+      return lines;
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void linesAreWrittenInOrderInChunks() throws Exception {
+    Sink sink = new Sink(0);
+    AnsibleOutputBuffer buffer = new AnsibleOutputBuffer(sink, 100, OutputOverflow.block);
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      buffer.output("line " + i);
+      expected.add("line " + i);
+    }
+    buffer.flush();
+
+    assertEquals(expected, sink.lines());
+    for (List<String> chunk : sink.chunks) {
+      assertTrue(chunk.size() <= 100);
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void blockWaitsForRoomWithoutDroppingLines() throws Exception {
+    final Sink sink = new Sink(1);
+    final AnsibleOutputBuffer buffer = new AnsibleOutputBuffer(sink, 10, OutputOverflow.block);
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      expected.add("line " + i);
+    }
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (String line : expected) {
+          buffer.output(line);
+        }
+      }
+    };
+    writer.start();
+    // the writer is stuck while the sink holds the first chunk
+    writer.join(300);
+    assertTrue(writer.isAlive());
+
+    sink.release.countDown();
+    writer.join();
+    buffer.flush();
+    assertEquals(expected, sink.lines());
+  }
+
+  @Test(timeout = 30000)
+  public void summarizeDropsLinesAndSaysSo() throws Exception {
+    Sink sink = new Sink(1);
+    AnsibleOutputBuffer buffer = new AnsibleOutputBuffer(sink, 10, OutputOverflow.summarize);
+    for (int i = 0; i < 1000; i++) {
+      buffer.output("line " + i);
+    }
+    sink.release.countDown();
+    buffer.flush();
+
+    List<String> lines = sink.lines();
+    assertTrue(lines.size() < 1000);
+    assertEquals("line 0", lines.get(0));
+    String summary = lines.get(lines.size() - 1);
+    assertTrue(summary, summary.matches("\\[warn\\] \\d+ lines of Ansible output were dropped.*"));
+  }
+
+  @Test(timeout = 30000)
+  public void dropDebugOnlyDropsDebugLines() throws Exception {
+    final Sink sink = new Sink(1);
+    AnsibleOutputBuffer buffer = new AnsibleOutputBuffer(sink, 10, OutputOverflow.dropDebug);
+    List<String> expected = new ArrayList<>();
+    // the buffer fills up while the sink is held, debug lines are dropped and the others wait
+    Thread releaser = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(300);
+        } catch (InterruptedException ignored) {
+          // released right away
+        }
+        sink.release.countDown();
+      }
+    };
+    releaser.start();
+    for (int i = 0; i < 10; i++) {
+      if (i == 5) {
+        // more than fit, the rest is dropped
+        for (int debug = 0; debug < 30; debug++) {
+          buffer.output("<10.0.0.1> ESTABLISH SSH CONNECTION " + debug);
+        }
+      }
+      buffer.output("ok: [web" + i + "]");
+      expected.add("ok: [web" + i + "]");
+    }
+    buffer.flush();
+
+    List<String> written = new ArrayList<>();
+    boolean summarized = false;
+    for (String line : sink.lines()) {
+      if (line.startsWith("ok: ")) {
+        written.add(line);
+      }
+      summarized |= line.matches("\\[warn\\] \\d+ lines of Ansible output were dropped.*");
+    }
+    assertEquals(expected, written);
+    assertTrue(summarized);
+  }
+}
@@ -0,0 +1,69 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnsibleOutputPumpTest {
+
+  @Test(timeout = 30000)
+  public void splitsLinesAtEveryTerminator() throws Exception {
+    assertEquals(Arrays.asList("unix", "windows", "old mac", "", "last without terminator"),
+        pump("printf 'unix\\nwindows\\r\\nold mac\\r\\r\\nlast without terminator'"));
+  }
+
+  @Test(timeout = 30000)
+  public void crlfSplitAcrossReadsIsOneTerminator() throws Exception {
+    assertEquals(Arrays.asList("first", "second", "", "third"),
+        pump("printf 'first\\r'; sleep 0.3; printf '\\nsecond\\r\\n'; sleep 0.3; printf '\\r\\nthird\\n'"));
+  }
+
+  @Test(timeout = 30000)
+  public void multibyteCharactersSplitAcrossReadsStayWhole() throws Exception {
+    // the two bytes of a-umlaut in separate reads
+    assertEquals(Arrays.asList("gr\u00e4tz", "\u20ac"),
+        pump("printf 'gr\\303'; sleep 0.3; printf '\\244tz\\n\\342\\202\\254\\n'"));
+  }
+
+  @Test(timeout = 30000)
+  public void longLinesGrowTheBuffer() throws Exception {
+    List<String> lines = pump("head -c 100000 /dev/zero | tr '\\0' x; echo; echo done");
+    assertEquals(2, lines.size());
+    assertEquals(100000, lines.get(0).length());
+    assertEquals("done", lines.get(1));
+  }
+
+  private static List<String> pump(String script) throws IOException, InterruptedException {
+    Process process = new ProcessBuilder("sh", "-c", script).start();
+    final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch closed = new CountDownLatch(1);
+    final IOException[] error = new IOException[1];
+    AnsibleOutputPump.pump(process, process.getInputStream(), new Listener() {
+      @Override
+      public void output(String line) {
+        lines.add(line);
+      }
+    }, false, new AnsibleOutputPump.CloseCallback() {
+      @Override
+      public void closed(IOException e) {
+        error[0] = e;
+        closed.countDown();
+      }
+    });
+    assertTrue(closed.await(20, TimeUnit.SECONDS));
+    assertNull(error[0]);
+    assertEquals(0, process.waitFor());
+    return new ArrayList<>(lines);
+  }
+}
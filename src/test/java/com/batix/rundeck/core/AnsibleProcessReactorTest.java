@@ -0,0 +1,51 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class AnsibleProcessReactorTest {
+
+  @Test(timeout = 30000)
+  public void killTreeStopsChildren() throws Exception {
+    assumeTrue(isAlive("$$"));
+    Process process = new ProcessBuilder("sh", "-c", "sleep 60 & echo $!; wait").start();
+    BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+    String child = output.readLine();
+    assertNotNull(child);
+    assertTrue(isAlive(child));
+
+    final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+    AnsibleProcessReactor.killTree(process, new Listener() {
+      @Override
+      public void output(String line) {
+        warnings.add(line);
+      }
+    });
+
+    assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+    long deadline = System.currentTimeMillis() + 10000;
+    while (isAlive(child) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertFalse(isAlive(child));
+    assertTrue(warnings.toString(), warnings.isEmpty());
+  }
+
+  private static boolean isAlive(String pid) throws IOException, InterruptedException {
+    Process kill = new ProcessBuilder("sh", "-c", "kill -0 " + pid).redirectErrorStream(true).start();
+    return kill.waitFor() == 0;
+  }
+}
@@ -0,0 +1,102 @@
+package com.batix.rundeck.core;
+
+import com.batix.rundeck.utils.Listener;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnsibleResultListenerTest {
+
+  private final List<String> lines = new ArrayList<>();
+
+  private final Listener log = new Listener() {
+    @Override
+    public void output(String line) {
+      lines.add(line);
+    }
+  };
+
+  @Test
+  public void collectsResultsPerHost() {
+    AnsibleResultListener listener = new AnsibleResultListener(log, null, null);
+    listener.output("{\"event\": \"play\", \"name\": \"deploy\"}");
+    listener.output("{\"event\": \"task\", \"name\": \"shell\"}");
+    listener.output("{\"event\": \"result\", \"host\": \"web1\", \"status\": \"changed\", \"rc\": 0, "
+        + "\"stdout\": \"line one\\r\\nline two\", \"stderr\": null}");
+    listener.output("{\"event\": \"result\", \"host\": \"web2\", \"status\": \"failed\", \"rc\": 2, "
+        + "\"msg\": \"non-zero return code\", \"ignored\": false}");
+    listener.output("{\"event\": \"result\", \"host\": \"web3\", \"status\": \"unreachable\", "
+        + "\"msg\": \"timed out\"}");
+    listener.output("{\"event\": \"stats\", \"host\": \"web1\", \"ok\": 1, \"changed\": 1, \"failed\": 0}");
+
+    assertEquals(Arrays.asList(
+        "PLAY [deploy]",
+        "TASK [shell]",
+        "web1 | CHANGED | rc=0 >>",
+        "line one",
+        "line two",
+        "web2 | FAILED! | rc=2 >>",
+        "non-zero return code",
+        "web3 | UNREACHABLE! >>",
+        "timed out",
+        "web1 : ok=1 changed=1 failed=0"), lines);
+
+    Map<String, AnsibleHostResult> results = listener.getResults();
+    assertEquals(Arrays.asList("web1", "web2", "web3"), new ArrayList<>(results.keySet()));
+    assertEquals(1, results.get("web1").getChanged());
+    assertFalse(results.get("web1").isFailed());
+    assertTrue(results.get("web2").isFailed());
+    assertEquals(Integer.valueOf(2), results.get("web2").getRc());
+    assertTrue(results.get("web3").isUnreachable());
+  }
+
+  @Test
+  public void ignoredFailureIsMarked() {
+    AnsibleResultListener listener = new AnsibleResultListener(log, null, null);
+    listener.output("{\"event\": \"result\", \"host\": \"web1\", \"status\": \"failed\", \"ignored\": true}");
+    assertEquals(Arrays.asList("web1 | FAILED (ignored) >>"), lines);
+  }
+
+  @Test
+  public void otherLinesArePassedThrough() {
+    AnsibleResultListener listener = new AnsibleResultListener(log, null, null);
+    listener.output("[WARNING]: No inventory was parsed");
+    byte[] bytes = "{\"not\": \"an event\"}".getBytes(Charset.forName("UTF-8"));
+    listener.output(bytes, 0, bytes.length);
+    assertEquals(Arrays.asList("[WARNING]: No inventory was parsed", "{\"not\": \"an event\"}"), lines);
+    assertTrue(listener.getResults().isEmpty());
+  }
+
+  @Test
+  public void brokenEventIsReportedWithoutDumpingIt() {
+    AnsibleResultListener listener = new AnsibleResultListener(log, null, null);
+    listener.output("{\"event\": \"result\", \"host\": \"web1\", \"rc\": \"not a number\"");
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0), lines.get(0).startsWith("[warn] Could not read Ansible event: "));
+    assertFalse(lines.get(0).contains("web1"));
+  }
+
+  @Test
+  public void hostLinesGoToTheHostOutputListener() {
+    final List<String> hostLines = new ArrayList<>();
+    AnsibleResultListener listener = new AnsibleResultListener(log, null, new AnsibleHostOutputListener() {
+      @Override
+      public void output(String host, String line) {
+        hostLines.add(host + ": " + line);
+      }
+    });
+    listener.output("{\"event\": \"task\", \"name\": \"shell\"}");
+    listener.output("{\"event\": \"result\", \"host\": \"web1\", \"status\": \"ok\", \"stdout\": \"hello\"}");
+
+    assertEquals(Arrays.asList("TASK [shell]"), lines);
+    assertEquals(Arrays.asList("web1: web1 | OK >>", "web1: hello"), hostLines);
+  }
+}
@@ -0,0 +1,91 @@
+package com.batix.rundeck.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+public class AnsibleSecretPipeTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Test(timeout = 30000)
+  public void vaultClientPrintsTheSecretOnce() throws Exception {
+    for (int run = 0; run < 50; run++) {
+      AnsibleSecretPipe pipe = AnsibleSecretPipe.open("vault", "s3cret");
+      assumeNotNull(pipe);
+      try {
+        assertArrayEquals("s3cret".getBytes(UTF8), runVaultClient(pipe));
+      } finally {
+        pipe.close();
+      }
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void vaultClientPrintsMultibyteSecrets() throws Exception {
+    String secret = "p\u00e4ssw\u00f6rd \u20ac\nwith a newline";
+    AnsibleSecretPipe pipe = AnsibleSecretPipe.open("vault", secret);
+    assumeNotNull(pipe);
+    try {
+      assertArrayEquals(secret.getBytes(UTF8), runVaultClient(pipe));
+    } finally {
+      pipe.close();
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void pipeIsRemovedOnceRead() throws Exception {
+    AnsibleSecretPipe pipe = AnsibleSecretPipe.open("vault", "s3cret");
+    assumeNotNull(pipe);
+    try {
+      runVaultClient(pipe);
+      // served from another thread, which removes it right after the reader got the secret
+      long deadline = System.currentTimeMillis() + 5000;
+      while (Files.exists(pipe.getPath()) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertFalse(Files.exists(pipe.getPath()));
+    } finally {
+      pipe.close();
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void closeWithoutReader() throws Exception {
+    AnsibleSecretPipe pipe = AnsibleSecretPipe.open("vault", "s3cret");
+    assumeNotNull(pipe);
+    assertTrue(Files.exists(pipe.getPath()));
+    pipe.close();
+    assertFalse(Files.exists(pipe.getPath()));
+  }
+
+  private static byte[] runVaultClient(AnsibleSecretPipe pipe) throws IOException, InterruptedException {
+    ProcessBuilder processBuilder = new ProcessBuilder(AnsibleSecretPipe.getVaultClient().toString());
+    processBuilder.environment().put(AnsibleSecretPipe.VAULT_PIPE_ENV, pipe.getPath().toString());
+    Process process = processBuilder.start();
+    process.getOutputStream().close();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = process.getInputStream()) {
+      byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    }
+    assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+    assertEquals(0, process.exitValue());
+    return out.toByteArray();
+  }
+}